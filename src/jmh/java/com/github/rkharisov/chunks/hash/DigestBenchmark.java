@@ -0,0 +1,71 @@
+package com.github.rkharisov.chunks.hash;
+
+import com.github.rkharisov.Utils;
+import com.github.rkharisov.chunks.model.enums.HashAlgorithm;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.NoSuchAlgorithmException;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Хеширование содержимого карты: {@link Utils#digest(byte[])} по массиву в памяти и {@link ContentHasher}
+ * по файлу. Крупнейший размер больше порога mmap по умолчанию, поэтому покрыты оба способа чтения
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DigestBenchmark {
+
+    @Param({"1024", "65536", "1048576", "33554432"})
+    private int size;
+
+    private byte[] content;
+    private Path file;
+    private ContentHasher contentHasher;
+
+    @Setup
+    public void setUp() throws IOException {
+        content = new byte[size];
+        new Random(size).nextBytes(content);
+        file = Files.createTempFile("digest-benchmark", ".xmind");
+        Files.write(file, content);
+        contentHasher = new ContentHasher();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public byte[] utilsDigest() throws NoSuchAlgorithmException {
+        return Utils.digest(content);
+    }
+
+    @Benchmark
+    public byte[] hashFile() throws IOException {
+        return contentHasher.hash(file);
+    }
+
+    /**
+     * Текущий и устаревший алгоритм за одно чтение, как при смене chunks.hash.algorithm
+     */
+    @Benchmark
+    public Map<HashAlgorithm, byte[]> hashFileAllAlgorithms() throws IOException {
+        return contentHasher.hash(file, EnumSet.allOf(HashAlgorithm.class));
+    }
+}
@@ -0,0 +1,62 @@
+package com.github.rkharisov.chunks.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.rkharisov.chunks.model.enums.RepeatInterval;
+import com.github.rkharisov.chunks.model.response.ChunkDTO;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Сериализация ответа getActivitiesForToday в JSON тем же ObjectMapper, что настраивает Spring MVC.
+ * Каждый десятый чанк дополнительно попадает в список измененных
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ActivitiesSerializationBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    private int chunks;
+
+    private ObjectMapper objectMapper;
+    private Map<String, List<ChunkDTO>> activities;
+
+    @Setup
+    public void setUp() {
+        objectMapper = Jackson2ObjectMapperBuilder.json().build();
+        ChunkService chunkService = new ChunkService();
+        RepeatInterval[] intervals = RepeatInterval.values();
+        List<ChunkDTO> repeat = new ArrayList<>(chunks);
+        List<ChunkDTO> mutated = new ArrayList<>(chunks / 10 + 1);
+        for (int i = 0; i < chunks; i++) {
+            String path = String.join(File.separator, "", "maps", "topic" + i % 100, "chunk" + i + ".xmind");
+            ChunkDTO dto = chunkService.mapToResponse(UUID.randomUUID(), intervals[i % intervals.length], path);
+            repeat.add(dto);
+            if (i % 10 == 0) mutated.add(dto);
+        }
+        activities = new HashMap<>();
+        activities.put(DueIndex.REPEAT, repeat);
+        activities.put(DueIndex.MUTATED, mutated);
+    }
+
+    @Benchmark
+    public byte[] writeActivities() throws JsonProcessingException {
+        return objectMapper.writeValueAsBytes(activities);
+    }
+}
@@ -0,0 +1,50 @@
+package com.github.rkharisov.chunks.service;
+
+import com.github.rkharisov.chunks.model.enums.RepeatInterval;
+import com.github.rkharisov.chunks.model.response.ChunkDTO;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Расчет следующего этапа повторения и преобразование чанка в ответ API - обе операции выполняются
+ * на каждый чанк ответа, поэтому их стоимость умножается на размер списка
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ChunkMappingBenchmark {
+
+    private ChunkService chunkService;
+    private UUID id;
+    private String path;
+
+    @Setup
+    public void setUp() {
+        //mapToResponse не обращается к зависимостям сервиса
+        chunkService = new ChunkService();
+        id = UUID.randomUUID();
+        path = String.join(File.separator, "", "maps", "biology", "cells", "mitochondria.xmind");
+    }
+
+    @Benchmark
+    public void repeatIntervalNext(Blackhole blackhole) {
+        for (RepeatInterval interval : RepeatInterval.values()) {
+            blackhole.consume(interval.next());
+        }
+    }
+
+    @Benchmark
+    public ChunkDTO mapToResponse() {
+        return chunkService.mapToResponse(id, RepeatInterval.WEEK, path);
+    }
+}
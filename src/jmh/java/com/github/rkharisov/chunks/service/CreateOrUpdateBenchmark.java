@@ -0,0 +1,124 @@
+package com.github.rkharisov.chunks.service;
+
+import com.github.rkharisov.chunks.hash.ContentHasher;
+import com.github.rkharisov.chunks.metrics.IngestMetrics;
+import com.github.rkharisov.chunks.model.entity.ChunkEntity;
+import com.github.rkharisov.chunks.repository.ChunkRepository;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.autoconfigure.domain.EntityScan;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * {@link ChunkService#createOrUpdate(Path)} во встроенной H2 в памяти: файл без изменений (только отпечаток),
+ * измененный файл (хеш и обновление строки) и новый файл (хеш и вставка).
+ * Контекст поднимается без веб-сервера и наблюдателей, только сервис чанков и его зависимости
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CreateOrUpdateBenchmark {
+
+    @Configuration
+    @EnableAutoConfiguration
+    @EntityScan(basePackageClasses = ChunkEntity.class)
+    @EnableJpaRepositories(basePackageClasses = ChunkRepository.class)
+    @Import({ChunkService.class, ContentHasher.class, DueIndex.class, ChunkCache.class, KnownKeys.class, IngestMetrics.class})
+    static class Config {
+    }
+
+    private static final int MAP_SIZE = 64 * 1024;
+
+    private Path workDir;
+    private ConfigurableApplicationContext context;
+    private ChunkService chunkService;
+
+    private Path unchanged;
+    private Path modified;
+    private Path created;
+    private long counter;
+
+    @Setup
+    public void setUp() throws IOException, NoSuchAlgorithmException {
+        workDir = Files.createTempDirectory("create-or-update-benchmark");
+        SpringApplication application = new SpringApplication(Config.class);
+        application.setWebApplicationType(WebApplicationType.NONE);
+        context = application.run(
+                "--webdav.workdir=" + workDir,
+                "--spring.datasource.url=jdbc:h2:mem:benchmark;DB_CLOSE_DELAY=-1",
+                "--spring.jpa.hibernate.ddl-auto=create-drop",
+                "--logging.level.com.github.rkharisov=WARN");
+        chunkService = context.getBean(ChunkService.class);
+
+        unchanged = writeMap(workDir.resolve("unchanged.xmind"));
+        chunkService.createOrUpdate(unchanged);
+        modified = writeMap(workDir.resolve("modified.xmind"));
+        chunkService.createOrUpdate(modified);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        context.close();
+        try (Stream<Path> files = Files.walk(workDir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void nextFiles() throws IOException {
+        writeMap(modified);
+        created = writeMap(workDir.resolve("created" + counter + ".xmind"));
+    }
+
+    @Benchmark
+    public void unchanged() throws IOException, NoSuchAlgorithmException {
+        chunkService.createOrUpdate(unchanged);
+    }
+
+    @Benchmark
+    public void modified() throws IOException, NoSuchAlgorithmException {
+        chunkService.createOrUpdate(modified);
+    }
+
+    @Benchmark
+    public void created() throws IOException, NoSuchAlgorithmException {
+        chunkService.createOrUpdate(created);
+    }
+
+    /**
+     * Записать карту с уникальным содержимым. Время изменения тоже уникально, иначе при совпадающем размере
+     * отпечаток файла не изменится и файл не будет перечитан
+     */
+    private Path writeMap(Path path) throws IOException {
+        long next = ++counter;
+        byte[] content = new byte[MAP_SIZE];
+        byte[] marker = Long.toString(next).getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(marker, 0, content, 0, marker.length);
+        Files.write(path, content);
+        Files.setLastModifiedTime(path, FileTime.fromMillis(next * 1000));
+        return path;
+    }
+}
@@ -1,12 +1,58 @@
 package com.github.rkharisov;
 
+import com.github.rkharisov.chunks.service.MapDirWatcher;
+
+import java.io.File;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
 public class Utils {
 
+    private static final ThreadLocal<MessageDigest> MD5 = new ThreadLocal<>();
+
     public static byte[] digest(byte[] data) throws NoSuchAlgorithmException {
-        return MessageDigest.getInstance("MD5").digest(data);
+        MessageDigest messageDigest = MD5.get();
+        if (messageDigest == null) {
+            messageDigest = MessageDigest.getInstance("MD5");
+            MD5.set(messageDigest);
+        }
+        return messageDigest.digest(data);
+    }
+
+    /**
+     * Нижняя граница (включительно) путей внутри каталога.
+     * Вместе с {@link #childrenTo(String)} задает диапазон, по которому база ищет по индексу на path,
+     * тогда как LIKE с параметром индекс не использует
+     *
+     * @param dir
+     * @return
+     */
+    public static String childrenFrom(String dir) {
+        return dir.endsWith(File.separator) ? dir : dir + File.separator;
+    }
+
+    /**
+     * Верхняя граница (не включительно) путей внутри каталога: разделитель заменяется следующим за ним символом
+     *
+     * @param dir
+     * @return
+     */
+    public static String childrenTo(String dir) {
+        String from = childrenFrom(dir);
+        int last = from.length() - 1;
+        return from.substring(0, last) + (char) (from.charAt(last) + 1);
+    }
+
+    /**
+     * Имя чанка для ответа API: имя файла карты без расширения
+     *
+     * @param path
+     * @return
+     */
+    public static String chunkName(String path) {
+        String name = path.substring(path.lastIndexOf(File.separatorChar) + 1);
+        int suffix = name.indexOf(MapDirWatcher.MAP_SUFFIX);
+        return suffix < 0 ? name : name.substring(0, suffix);
     }
 
     private Utils() {
@@ -0,0 +1,183 @@
+package com.github.rkharisov.chunks.hash;
+
+import com.github.rkharisov.chunks.model.enums.HashAlgorithm;
+import com.github.rkharisov.chunks.model.enums.HashMode;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Считает хеш содержимого файла, не загружая его целиком в память.
+ * Небольшие файлы читаются через переиспользуемый direct буфер потока, крупные отображаются в память.
+ * Экземпляры {@link StreamingHasher} также создаются один раз на поток.
+ * В режиме {@link HashMode#ZIP_ENTRIES} хешируются только записи содержимого из центрального каталога архива
+ */
+@Component
+public class ContentHasher {
+
+    @Value("${chunks.hash.algorithm:MD5}")
+    private HashAlgorithm algorithm = HashAlgorithm.MD5;
+
+    @Value("${chunks.hash.bufferSize:65536}")
+    private int bufferSize = 64 * 1024;
+
+    @Value("${chunks.hash.mmapThreshold:16777216}")
+    private long mmapThreshold = 16 * 1024 * 1024;
+
+    @Value("${chunks.hash.mode:CONTENT}")
+    private HashMode mode = HashMode.CONTENT;
+
+    /**
+     * Записи архива, которые считаются содержимым карты в режиме ZIP_ENTRIES: имя записи или каталог с / на конце
+     */
+    @Value("${chunks.hash.zipEntries:content.xml,content.json}")
+    private String[] zipEntries = {"content.xml", "content.json"};
+
+    private final ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(bufferSize));
+
+    private final ThreadLocal<Map<HashAlgorithm, StreamingHasher>> hashers = ThreadLocal.withInitial(() -> new EnumMap<>(HashAlgorithm.class));
+
+    /**
+     * Алгоритм, которым хешируются новые и измененные чанки
+     *
+     * @return
+     */
+    public HashAlgorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * Режим, которым хешируются новые и измененные чанки
+     *
+     * @return
+     */
+    public HashMode getMode() {
+        return mode;
+    }
+
+    public byte[] hash(Path path) throws IOException {
+        return hash(path, algorithm);
+    }
+
+    public byte[] hash(Path path, HashAlgorithm algorithm) throws IOException {
+        return hash(path, algorithm, mode);
+    }
+
+    public byte[] hash(Path path, HashAlgorithm algorithm, HashMode mode) throws IOException {
+        return hash(path, EnumSet.of(algorithm), mode).get(algorithm);
+    }
+
+    public Map<HashAlgorithm, byte[]> hash(Path path, Set<HashAlgorithm> algorithms) throws IOException {
+        return hash(path, algorithms, mode);
+    }
+
+    /**
+     * Посчитать несколько хешей за одно чтение файла
+     *
+     * @param path
+     * @param algorithms
+     * @param mode
+     * @return
+     * @throws IOException
+     */
+    public Map<HashAlgorithm, byte[]> hash(Path path, Set<HashAlgorithm> algorithms, HashMode mode) throws IOException {
+        StreamingHasher[] active = algorithms.stream()
+                .map(this::hasher)
+                .toArray(StreamingHasher[]::new);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (mode != HashMode.ZIP_ENTRIES || !updateZipEntries(active, channel)) {
+                updateContent(active, channel);
+            }
+        } catch (IOException | RuntimeException e) {
+            for (StreamingHasher hasher : active) {
+                hasher.digest();
+            }
+            throw e;
+        }
+        Map<HashAlgorithm, byte[]> digests = new EnumMap<>(HashAlgorithm.class);
+        for (HashAlgorithm alg : algorithms) {
+            digests.put(alg, hasher(alg).digest());
+        }
+        return digests;
+    }
+
+    private void updateContent(StreamingHasher[] active, FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size >= mmapThreshold) {
+            for (long position = 0; position < size; ) {
+                long length = Math.min(size - position, Integer.MAX_VALUE);
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                update(active, mapped);
+                position += length;
+            }
+        } else {
+            ByteBuffer buffer = buffers.get();
+            buffer.clear();
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                update(active, buffer);
+                buffer.clear();
+            }
+        }
+    }
+
+    /**
+     * Хеш по записям содержимого из центрального каталога: имя, CRC32 и размер каждой записи в порядке имен,
+     * чтобы порядок записей в архиве на хеш не влиял
+     *
+     * @return false, если файл не zip-архив или в нем нет записей содержимого
+     */
+    private boolean updateZipEntries(StreamingHasher[] active, FileChannel channel) throws IOException {
+        List<ZipCentralDirectory.Entry> entries = ZipCentralDirectory.read(channel);
+        if (entries == null) return false;
+        List<ZipCentralDirectory.Entry> content = entries.stream()
+                .filter(entry -> isContentEntry(entry.getName()))
+                .sorted(Comparator.comparing(ZipCentralDirectory.Entry::getName))
+                .collect(Collectors.toList());
+        if (content.isEmpty()) return false;
+        for (ZipCentralDirectory.Entry entry : content) {
+            byte[] name = entry.getName().getBytes(StandardCharsets.UTF_8);
+            ByteBuffer record = ByteBuffer.allocate(name.length + 1 + Integer.BYTES + Long.BYTES);
+            record.put(name).put((byte) 0).putInt(entry.getCrc()).putLong(entry.getSize());
+            record.flip();
+            update(active, record);
+        }
+        return true;
+    }
+
+    private boolean isContentEntry(String name) {
+        for (String contentEntry : zipEntries) {
+            String entry = contentEntry.trim();
+            if (entry.endsWith("/") ? name.startsWith(entry) && name.length() > entry.length() : name.equals(entry)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void update(StreamingHasher[] active, ByteBuffer data) {
+        int start = data.position();
+        for (StreamingHasher hasher : active) {
+            data.position(start);
+            hasher.update(data);
+        }
+    }
+
+    private StreamingHasher hasher(HashAlgorithm algorithm) {
+        return hashers.get().computeIfAbsent(algorithm, HashAlgorithm::newHasher);
+    }
+}
@@ -0,0 +1,28 @@
+package com.github.rkharisov.chunks.hash;
+
+import com.github.rkharisov.chunks.model.entity.Fingerprint;
+import com.github.rkharisov.chunks.model.enums.HashAlgorithm;
+import com.github.rkharisov.chunks.model.enums.HashMode;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.nio.file.Path;
+import java.util.Map;
+
+/**
+ * Хеши файла, посчитанные за одно чтение: основным алгоритмом и алгоритмами, которые еще встречаются в базе
+ */
+@Data
+@AllArgsConstructor
+public class FileDigest {
+
+    private Path path;
+    private Fingerprint fingerprint;
+    private HashAlgorithm algorithm;
+    private HashMode mode;
+    private Map<HashAlgorithm, byte[]> digests;
+
+    public byte[] getDigest() {
+        return digests.get(algorithm);
+    }
+}
@@ -0,0 +1,28 @@
+package com.github.rkharisov.chunks.hash;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+public class MessageDigestHasher implements StreamingHasher {
+
+    private final MessageDigest messageDigest;
+
+    public MessageDigestHasher(String algorithm) {
+        try {
+            this.messageDigest = MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void update(ByteBuffer data) {
+        messageDigest.update(data);
+    }
+
+    @Override
+    public byte[] digest() {
+        return messageDigest.digest();
+    }
+}
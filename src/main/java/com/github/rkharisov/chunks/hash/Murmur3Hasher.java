@@ -0,0 +1,121 @@
+package com.github.rkharisov.chunks.hash;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * MurmurHash3 x64 128 (seed 0). Не криптографический, но заметно быстрее MD5.
+ * Результат совпадает с Hashing.murmur3_128() из guava
+ */
+public class Murmur3Hasher implements StreamingHasher {
+
+    private static final int BLOCK = 16;
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    private final ByteBuffer tail = ByteBuffer.allocate(BLOCK).order(ByteOrder.LITTLE_ENDIAN);
+    private long h1;
+    private long h2;
+    private long length;
+
+    @Override
+    public void update(ByteBuffer data) {
+        ByteOrder order = data.order();
+        data.order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            length += data.remaining();
+            if (tail.position() > 0) {
+                while (tail.hasRemaining() && data.hasRemaining()) {
+                    tail.put(data.get());
+                }
+                if (tail.hasRemaining()) return;
+                tail.flip();
+                block(tail.getLong(), tail.getLong());
+                tail.clear();
+            }
+            while (data.remaining() >= BLOCK) {
+                block(data.getLong(), data.getLong());
+            }
+            tail.put(data);
+        } finally {
+            data.order(order);
+        }
+    }
+
+    @Override
+    public byte[] digest() {
+        int rest = tail.position();
+        long k1 = 0;
+        long k2 = 0;
+        for (int i = rest - 1; i >= 8; i--) {
+            k2 ^= (tail.get(i) & 0xffL) << ((i - 8) * 8);
+        }
+        for (int i = Math.min(rest, 8) - 1; i >= 0; i--) {
+            k1 ^= (tail.get(i) & 0xffL) << (i * 8);
+        }
+        if (rest > 8) {
+            h2 ^= mixK2(k2);
+        }
+        if (rest > 0) {
+            h1 ^= mixK1(k1);
+        }
+
+        h1 ^= length;
+        h2 ^= length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+        h1 += h2;
+        h2 += h1;
+
+        byte[] result = ByteBuffer.allocate(BLOCK).order(ByteOrder.LITTLE_ENDIAN)
+                .putLong(h1)
+                .putLong(h2)
+                .array();
+        reset();
+        return result;
+    }
+
+    private void block(long k1, long k2) {
+        h1 ^= mixK1(k1);
+        h1 = Long.rotateLeft(h1, 27);
+        h1 += h2;
+        h1 = h1 * 5 + 0x52dce729;
+
+        h2 ^= mixK2(k2);
+        h2 = Long.rotateLeft(h2, 31);
+        h2 += h1;
+        h2 = h2 * 5 + 0x38495ab5;
+    }
+
+    private void reset() {
+        h1 = 0;
+        h2 = 0;
+        length = 0;
+        tail.clear();
+    }
+
+    private static long mixK1(long k1) {
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        k1 *= C2;
+        return k1;
+    }
+
+    private static long mixK2(long k2) {
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        k2 *= C1;
+        return k2;
+    }
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
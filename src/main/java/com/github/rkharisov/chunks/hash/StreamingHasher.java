@@ -0,0 +1,24 @@
+package com.github.rkharisov.chunks.hash;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Потоковое вычисление хеша. Экземпляры не потокобезопасны и переиспользуются:
+ * после {@link #digest()} состояние сбрасывается
+ */
+public interface StreamingHasher {
+
+    /**
+     * Добавить в хеш оставшиеся байты буфера, позиция буфера сдвигается до limit
+     *
+     * @param data
+     */
+    void update(ByteBuffer data);
+
+    /**
+     * Завершить вычисление и сбросить состояние
+     *
+     * @return
+     */
+    byte[] digest();
+}
@@ -0,0 +1,116 @@
+package com.github.rkharisov.chunks.hash;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Центральный каталог zip-архива: имена, CRC32 и размеры записей без чтения и распаковки их содержимого.
+ * Читаются только запись конца центрального каталога в хвосте файла и сам каталог, обычно несколько килобайт
+ */
+final class ZipCentralDirectory {
+
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int ENTRY_SIGNATURE = 0x02014b50;
+    private static final int END_SIZE = 22;
+    private static final int ENTRY_SIZE = 46;
+    private static final int MAX_COMMENT_SIZE = 0xFFFF;
+    private static final long ZIP64_MARKER = 0xFFFFFFFFL;
+
+    private ZipCentralDirectory() {
+    }
+
+    static class Entry {
+
+        private final String name;
+        private final int crc;
+        private final long size;
+
+        private Entry(String name, int crc, long size) {
+            this.name = name;
+            this.crc = crc;
+            this.size = size;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        int getCrc() {
+            return crc;
+        }
+
+        /**
+         * Размер несжатого содержимого
+         */
+        long getSize() {
+            return size;
+        }
+    }
+
+    /**
+     * Прочитать записи центрального каталога. Позиция канала не меняется
+     *
+     * @param channel
+     * @return записи в порядке архива или null, если файл не zip-архив, поврежден или в формате zip64
+     * @throws IOException
+     */
+    static List<Entry> read(FileChannel channel) throws IOException {
+        long fileSize = channel.size();
+        if (fileSize < END_SIZE) return null;
+        int tailSize = (int) Math.min(fileSize, END_SIZE + MAX_COMMENT_SIZE);
+        long tailStart = fileSize - tailSize;
+        ByteBuffer tail = read(channel, tailStart, tailSize);
+        if (tail == null) return null;
+
+        //запись конца каталога ищется с конца: после нее может идти только комментарий архива
+        int end = -1;
+        for (int i = tailSize - END_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == END_SIGNATURE) {
+                end = i;
+                break;
+            }
+        }
+        if (end < 0) return null;
+        int count = tail.getShort(end + 10) & 0xFFFF;
+        long dirSize = tail.getInt(end + 12) & 0xFFFFFFFFL;
+        long dirOffset = tail.getInt(end + 16) & 0xFFFFFFFFL;
+        if (dirSize == ZIP64_MARKER || dirOffset == ZIP64_MARKER || dirSize > Integer.MAX_VALUE
+                || dirOffset + dirSize > tailStart + end) {
+            return null;
+        }
+
+        ByteBuffer dir = read(channel, dirOffset, (int) dirSize);
+        if (dir == null) return null;
+        List<Entry> entries = new ArrayList<>(count);
+        int position = 0;
+        for (int i = 0; i < count; i++) {
+            if (position + ENTRY_SIZE > dirSize || dir.getInt(position) != ENTRY_SIGNATURE) return null;
+            int crc = dir.getInt(position + 16);
+            long size = dir.getInt(position + 24) & 0xFFFFFFFFL;
+            int nameLength = dir.getShort(position + 28) & 0xFFFF;
+            int extraLength = dir.getShort(position + 30) & 0xFFFF;
+            int commentLength = dir.getShort(position + 32) & 0xFFFF;
+            if (position + ENTRY_SIZE + nameLength > dirSize) return null;
+            byte[] name = new byte[nameLength];
+            dir.position(position + ENTRY_SIZE);
+            dir.get(name);
+            entries.add(new Entry(new String(name, StandardCharsets.UTF_8), crc, size));
+            position += ENTRY_SIZE + nameLength + extraLength + commentLength;
+        }
+        return entries;
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) return null;
+        }
+        buffer.clear();
+        return buffer;
+    }
+}
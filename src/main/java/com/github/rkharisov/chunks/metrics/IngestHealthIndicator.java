@@ -0,0 +1,31 @@
+package com.github.rkharisov.chunks.metrics;
+
+import com.github.rkharisov.chunks.model.enums.IngestState;
+import com.github.rkharisov.chunks.service.IngestLifecycle;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.stereotype.Component;
+
+/**
+ * Готовность по приему карт, раздел ingest в /actuator/health. Пока прием не дошел до chunks.ingest.readyState,
+ * статус OUT_OF_SERVICE и /actuator/health отвечает 503: балансировщик не направляет запросы на экземпляр
+ * с неполными данными
+ */
+@Component
+public class IngestHealthIndicator implements HealthIndicator {
+
+    @Autowired
+    private IngestLifecycle ingestLifecycle;
+
+    @Value("${chunks.ingest.readyState:LIVE}")
+    private IngestState readyState;
+
+    @Override
+    public Health health() {
+        IngestState state = ingestLifecycle.getState();
+        Health.Builder health = state.compareTo(readyState) >= 0 ? Health.up() : Health.outOfService();
+        return health.withDetail("state", state).build();
+    }
+}
@@ -0,0 +1,84 @@
+package com.github.rkharisov.chunks.metrics;
+
+import com.github.rkharisov.chunks.model.enums.ChangeKind;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Метрики приема изменений карт, доступны в /actuator/metrics:
+ *
+ * - chunks.watcher.events - события наблюдателя по виду (kind)
+ * - chunks.watcher.overflows - переполнения очереди событий наблюдателя
+ * - chunks.hash.bytes - прочитано и захешировано байт, скорость - производная счетчика.
+ * В режиме хеширования ZIP_ENTRIES файлы целиком не читаются и не учитываются
+ * - chunks.ingest.latency - от первого события по файлу до фиксации изменения в базе
+ * - chunks.events.pending, chunks.events.inFlight - изменения, ожидающие склейки и применения
+ */
+@Component
+public class IngestMetrics {
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final Map<ChangeKind, Counter> events = new EnumMap<>(ChangeKind.class);
+    private Counter overflows;
+    private Counter hashedBytes;
+    private Timer ingestLatency;
+
+    @PostConstruct
+    private void init() {
+        for (ChangeKind kind : ChangeKind.values()) {
+            events.put(kind, Counter.builder("chunks.watcher.events")
+                    .tag("kind", kind.name().toLowerCase())
+                    .description("События наблюдателя")
+                    .register(meterRegistry));
+        }
+        overflows = Counter.builder("chunks.watcher.overflows")
+                .description("Переполнения очереди событий наблюдателя")
+                .register(meterRegistry);
+        hashedBytes = Counter.builder("chunks.hash.bytes")
+                .baseUnit("bytes")
+                .description("Захешировано байт")
+                .register(meterRegistry);
+        ingestLatency = Timer.builder("chunks.ingest.latency")
+                .description("От первого события по файлу до фиксации изменения в базе")
+                .publishPercentiles(0.5, 0.95, 0.99)
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+    }
+
+    public void onEvent(ChangeKind kind) {
+        events.get(kind).increment();
+    }
+
+    public void onOverflow() {
+        overflows.increment();
+    }
+
+    public void onHashed(long bytes) {
+        hashedBytes.increment(bytes);
+    }
+
+    /**
+     * @param firstSeen {@link System#nanoTime()} первого события по файлу
+     */
+    public void onPersisted(long firstSeen) {
+        ingestLatency.record(System.nanoTime() - firstSeen, TimeUnit.NANOSECONDS);
+    }
+
+    public void gauge(String name, String description, Supplier<Number> value) {
+        Gauge.builder(name, value, supplier -> supplier.get().doubleValue())
+                .description(description)
+                .register(meterRegistry);
+    }
+}
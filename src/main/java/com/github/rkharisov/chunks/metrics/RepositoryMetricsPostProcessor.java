@@ -0,0 +1,77 @@
+package com.github.rkharisov.chunks.metrics;
+
+import com.github.rkharisov.chunks.repository.ChunkRepository;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.springframework.aop.framework.Advised;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.stereotype.Component;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Время выполнения каждого метода {@link ChunkRepository}: таймер chunks.repository с тегами method и exception.
+ * Для методов, возвращающих Stream, время записывается при закрытии потока и включает чтение результата.
+ * Таймеры создаются при первом вызове метода и дальше берутся из кеша, на каждом запросе только записывается время
+ */
+@Component
+public class RepositoryMetricsPostProcessor implements BeanPostProcessor {
+
+    /**
+     * Реестр запрашивается при первом вызове: постпроцессор создается раньше остальных бинов
+     */
+    @Autowired
+    private ObjectProvider<MeterRegistry> meterRegistry;
+
+    /**
+     * Таймеры по методу и классу исключения, {@link Void} - вызов без исключения
+     */
+    private final Map<Method, Map<Class<?>, Timer>> timers = new ConcurrentHashMap<>();
+
+    @Override
+    public Object postProcessAfterInitialization(Object bean, String beanName) {
+        if (bean instanceof ChunkRepository && bean instanceof Advised) {
+            ((Advised) bean).addAdvice(new TimingInterceptor());
+        }
+        return bean;
+    }
+
+    private class TimingInterceptor implements MethodInterceptor {
+
+        @Override
+        public Object invoke(MethodInvocation invocation) throws Throwable {
+            Method method = invocation.getMethod();
+            long started = System.nanoTime();
+            Object result;
+            try {
+                result = invocation.proceed();
+            } catch (Throwable e) {
+                record(method, e.getClass(), started);
+                throw e;
+            }
+            if (result instanceof Stream) {
+                return ((Stream<?>) result).onClose(() -> record(method, Void.class, started));
+            }
+            record(method, Void.class, started);
+            return result;
+        }
+    }
+
+    private void record(Method method, Class<?> exception, long started) {
+        timers.computeIfAbsent(method, key -> new ConcurrentHashMap<>())
+                .computeIfAbsent(exception, key -> Timer.builder("chunks.repository")
+                        .tag("method", method.getName())
+                        .tag("exception", exception == Void.class ? "none" : exception.getSimpleName())
+                        .description("Время выполнения запросов ChunkRepository")
+                        .register(meterRegistry.getObject()))
+                .record(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+    }
+}
@@ -1,18 +1,31 @@
 package com.github.rkharisov.chunks.model.entity;
 
+import com.github.rkharisov.Utils;
+import com.github.rkharisov.chunks.model.enums.HashAlgorithm;
+import com.github.rkharisov.chunks.model.enums.HashMode;
 import com.github.rkharisov.chunks.model.enums.RepeatInterval;
 import lombok.Data;
 import lombok.experimental.Accessors;
 import org.hibernate.annotations.GenericGenerator;
 
 import javax.persistence.Column;
+import javax.persistence.Embedded;
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
 import java.time.LocalDate;
 import java.util.UUID;
 
 @Entity
+@Table(indexes = {
+        //чанки на повторение: active = true and next_repeat_date <= ?, постранично в порядке (next_repeat_date, id)
+        @Index(name = "idx_chunk_due_key", columnList = "active, next_repeat_date, id"),
+        //измененные чанки: active = true and mutated = true
+        @Index(name = "idx_chunk_mutated", columnList = "active, mutated"),
+        @Index(name = "idx_chunk_hash_algorithm", columnList = "hash_algorithm")
+})
 @Data
 @Accessors(chain = true)
 public class ChunkEntity {
@@ -25,9 +38,21 @@ public class ChunkEntity {
     @Column(unique = true)
     private String path;
 
+    /**
+     * Имя для ответа API, вычисляется из пути при записи, см. {@link #setPath(String)}
+     */
+    private String name;
+
     @Column(unique = true)
     private byte[] hash;
 
+    private HashAlgorithm hashAlgorithm;
+
+    private HashMode hashMode;
+
+    @Embedded
+    private Fingerprint fingerprint;
+
     private RepeatInterval currentRepetitionInterval;
 
     @Column(updatable = false)
@@ -37,4 +62,16 @@ public class ChunkEntity {
     private Boolean active;
     private Boolean mutated;
 
+    /**
+     * Путь и имя меняются вместе. Переносы каталогов запросом меняют только путь: имя файла при этом то же
+     *
+     * @param path
+     * @return
+     */
+    public ChunkEntity setPath(String path) {
+        this.path = path;
+        this.name = path == null ? null : Utils.chunkName(path);
+        return this;
+    }
+
 }
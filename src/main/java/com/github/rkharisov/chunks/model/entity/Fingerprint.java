@@ -0,0 +1,33 @@
+package com.github.rkharisov.chunks.model.entity;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import javax.persistence.Embeddable;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Отпечаток файла по метаданным. Если он не изменился, файл не перечитывается и не хешируется
+ */
+@Embeddable
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class Fingerprint {
+
+    private Long fileSize;
+    private Long lastModified;
+    /**
+     * Идентификатор файла в файловой системе (устройство и inode), если она его предоставляет
+     */
+    private String fileKey;
+
+    public static Fingerprint of(BasicFileAttributes attrs) {
+        return new Fingerprint(
+                attrs.size(),
+                attrs.lastModifiedTime().toMillis(),
+                attrs.fileKey() == null ? null : attrs.fileKey().toString()
+        );
+    }
+}
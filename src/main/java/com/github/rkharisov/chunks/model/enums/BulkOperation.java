@@ -0,0 +1,19 @@
+package com.github.rkharisov.chunks.model.enums;
+
+/**
+ * Операции пакетной команды
+ */
+public enum BulkOperation {
+    /**
+     * Пометить чанк повторенным, как {@code /mark/{id}}
+     */
+    REPEATED,
+    /**
+     * Сбросить на первый этап повторения с началом завтра
+     */
+    DROP,
+    /**
+     * Пометить чанк не измененным
+     */
+    UNMUTATE
+}
@@ -0,0 +1,21 @@
+package com.github.rkharisov.chunks.model.enums;
+
+public enum BulkStatus {
+    OK,
+    /**
+     * Чанк не найден
+     */
+    NOT_FOUND,
+    /**
+     * Время повторения чанка еще не наступило
+     */
+    NOT_DUE,
+    /**
+     * Чанк уже встречался в пакете раньше, выполнена только первая команда
+     */
+    DUPLICATE,
+    /**
+     * Не разобрана операция или идентификатор
+     */
+    INVALID
+}
@@ -0,0 +1,16 @@
+package com.github.rkharisov.chunks.model.enums;
+
+/**
+ * Итоговое изменение файла после склейки событий наблюдателя
+ */
+public enum ChangeKind {
+
+    /**
+     * Файл создан, изменен или заменен другим
+     */
+    CREATED,
+    /**
+     * Файл или каталог удален либо переименован
+     */
+    DELETED
+}
@@ -0,0 +1,33 @@
+package com.github.rkharisov.chunks.model.enums;
+
+import com.github.rkharisov.chunks.hash.MessageDigestHasher;
+import com.github.rkharisov.chunks.hash.Murmur3Hasher;
+import com.github.rkharisov.chunks.hash.StreamingHasher;
+
+public enum HashAlgorithm {
+
+    MD5 {
+        @Override
+        public StreamingHasher newHasher() {
+            return new MessageDigestHasher("MD5");
+        }
+    },
+    MURMUR3_128 {
+        @Override
+        public StreamingHasher newHasher() {
+            return new Murmur3Hasher();
+        }
+    };
+
+    public abstract StreamingHasher newHasher();
+
+    /**
+     * Алгоритм, которым посчитан хеш сохраненного чанка. У строк, созданных до появления колонки, он не заполнен - это MD5
+     *
+     * @param stored
+     * @return
+     */
+    public static HashAlgorithm ofStored(HashAlgorithm stored) {
+        return stored == null ? MD5 : stored;
+    }
+}
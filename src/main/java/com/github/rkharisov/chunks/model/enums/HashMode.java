@@ -0,0 +1,27 @@
+package com.github.rkharisov.chunks.model.enums;
+
+/**
+ * Что именно хешируется в файле карты
+ */
+public enum HashMode {
+    /**
+     * Все байты файла
+     */
+    CONTENT,
+    /**
+     * Имена, CRC32 и размеры записей содержимого из центрального каталога zip-архива .xmind.
+     * Миниатюра и метаданные в хеш не входят, сам файл целиком не читается.
+     * Файл, который не является zip-архивом или не содержит записей содержимого, хешируется целиком
+     */
+    ZIP_ENTRIES;
+
+    /**
+     * Режим, которым посчитан хеш сохраненного чанка. У строк, созданных до появления колонки, он не заполнен - это CONTENT
+     *
+     * @param stored
+     * @return
+     */
+    public static HashMode ofStored(HashMode stored) {
+        return stored == null ? CONTENT : stored;
+    }
+}
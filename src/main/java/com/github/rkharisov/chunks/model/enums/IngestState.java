@@ -0,0 +1,19 @@
+package com.github.rkharisov.chunks.model.enums;
+
+/**
+ * Состояние приема карт после запуска. Состояния сменяются только вперед
+ */
+public enum IngestState {
+    /**
+     * Идет первичное сканирование хотя бы одного каталога, данные неполные
+     */
+    SCANNING,
+    /**
+     * Сканирование завершено, применяются накопленные изменения и сверки каталогов
+     */
+    CATCHING_UP,
+    /**
+     * Изменения и сверки, накопленные к концу сканирования, применены, база соответствует диску с точностью до свежих событий
+     */
+    LIVE
+}
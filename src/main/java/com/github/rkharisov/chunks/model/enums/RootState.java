@@ -0,0 +1,27 @@
+package com.github.rkharisov.chunks.model.enums;
+
+/**
+ * Состояние наблюдаемого каталога с картами
+ */
+public enum RootState {
+    /**
+     * Наблюдение еще не запущено
+     */
+    STARTING,
+    /**
+     * Идет первичное сканирование
+     */
+    SCANNING,
+    /**
+     * Сканирование завершено, изменения приходят от наблюдателя
+     */
+    WATCHING,
+    /**
+     * Сканирование завершено, изменения находит периодический опрос
+     */
+    POLLING,
+    /**
+     * Наблюдение остановлено ошибкой
+     */
+    FAILED
+}
@@ -0,0 +1,15 @@
+package com.github.rkharisov.chunks.model.enums;
+
+/**
+ * Способ обнаружения изменений в наблюдаемом каталоге
+ */
+public enum WatchMode {
+    /**
+     * События файловой системы через WatchService
+     */
+    WATCH,
+    /**
+     * Периодический опрос каталога, для сетевых и WebDAV-каталогов, где события теряются
+     */
+    POLL
+}
@@ -0,0 +1,22 @@
+package com.github.rkharisov.chunks.model.projection;
+
+import com.github.rkharisov.chunks.model.enums.RepeatInterval;
+import lombok.Data;
+
+import java.time.LocalDate;
+import java.util.UUID;
+
+/**
+ * Состояние повторения чанка без загрузки сущности
+ */
+@Data
+public class ChunkState {
+
+    private final UUID id;
+    private final String path;
+    private final RepeatInterval currentRepetitionInterval;
+    private final LocalDate nextRepeatDate;
+    private final Boolean active;
+    private final Boolean mutated;
+
+}
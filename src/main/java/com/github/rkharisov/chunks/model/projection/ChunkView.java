@@ -0,0 +1,27 @@
+package com.github.rkharisov.chunks.model.projection;
+
+import com.github.rkharisov.chunks.model.enums.RepeatInterval;
+import com.github.rkharisov.chunks.model.response.ChunkDTO;
+import lombok.Data;
+
+import java.time.LocalDate;
+import java.util.UUID;
+
+/**
+ * Поля чанка для ответа API и индекса на повторение без загрузки сущности и ее хеша
+ */
+@Data
+public class ChunkView {
+
+    private final UUID id;
+    private final String name;
+    private final String path;
+    private final RepeatInterval currentRepetitionInterval;
+    private final LocalDate nextRepeatDate;
+    private final Boolean active;
+    private final Boolean mutated;
+
+    public ChunkDTO toResponse() {
+        return new ChunkDTO(name, id, currentRepetitionInterval, path);
+    }
+}
@@ -0,0 +1,18 @@
+package com.github.rkharisov.chunks.model.projection;
+
+import com.github.rkharisov.chunks.model.entity.Fingerprint;
+import lombok.Data;
+
+@Data
+public class PathFingerprint {
+
+    private final String path;
+    private final Boolean active;
+    private final Fingerprint fingerprint;
+
+    public PathFingerprint(String path, Boolean active, Long fileSize, Long lastModified, String fileKey) {
+        this.path = path;
+        this.active = active;
+        this.fingerprint = new Fingerprint(fileSize, lastModified, fileKey);
+    }
+}
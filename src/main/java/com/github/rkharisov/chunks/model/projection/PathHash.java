@@ -0,0 +1,11 @@
+package com.github.rkharisov.chunks.model.projection;
+
+import lombok.Data;
+
+@Data
+public class PathHash {
+
+    private final String path;
+    private final byte[] hash;
+
+}
@@ -0,0 +1,18 @@
+package com.github.rkharisov.chunks.model.request;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Элемент пакетной команды. Поля строковые, чтобы ошибка в одном элементе не отменяла весь пакет
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class BulkCommand {
+
+    private String op;
+    private String id;
+
+}
@@ -0,0 +1,19 @@
+package com.github.rkharisov.chunks.model.response;
+
+import com.github.rkharisov.chunks.model.enums.BulkStatus;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+@Data
+@AllArgsConstructor
+public class BulkResult implements Response {
+
+    public String op;
+    public String id;
+    public BulkStatus status;
+    /**
+     * Состояние чанка после выполнения команды, только для OK
+     */
+    public ChunkDTO chunk;
+
+}
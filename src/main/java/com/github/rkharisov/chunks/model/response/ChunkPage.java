@@ -0,0 +1,18 @@
+package com.github.rkharisov.chunks.model.response;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+@AllArgsConstructor
+public class ChunkPage implements Response {
+
+    public List<ChunkDTO> items;
+    /**
+     * Курсор следующей страницы, null на последней странице
+     */
+    public String next;
+
+}
@@ -0,0 +1,44 @@
+package com.github.rkharisov.chunks.model.response;
+
+import com.github.rkharisov.chunks.model.enums.IngestState;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * Ход приема карт: состояние, счетчики первичного сканирования по всем каталогам и очереди изменений
+ */
+@Data
+@AllArgsConstructor
+public class IngestStatus implements Response {
+
+    private IngestState state;
+    private long filesSeen;
+    /**
+     * Файлов пропущено без чтения, т.к. их отпечаток не изменился
+     */
+    private long filesUnchanged;
+    private long filesHashed;
+    private long filesPersisted;
+    private long errors;
+    private double filesPerSecond;
+    /**
+     * Оценка времени до конца сканирования, null - оценки нет. Пока обход каталогов не закончен,
+     * найдены еще не все файлы, и оценка занижена
+     */
+    private Long etaSeconds;
+    /**
+     * Изменения, ожидающие склейки
+     */
+    private long pendingEvents;
+    /**
+     * Пачки изменений в очереди на применение
+     */
+    private long inFlightBatches;
+    /**
+     * Каталоги в очереди на сверку с базой
+     */
+    private long reconciling;
+    private List<RootStatus> roots;
+}
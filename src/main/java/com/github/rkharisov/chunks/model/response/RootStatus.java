@@ -0,0 +1,36 @@
+package com.github.rkharisov.chunks.model.response;
+
+import com.github.rkharisov.chunks.model.enums.RootState;
+import com.github.rkharisov.chunks.model.enums.WatchMode;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * Состояние наблюдаемого каталога с картами
+ */
+@Data
+@AllArgsConstructor
+public class RootStatus implements Response {
+
+    private String root;
+    private WatchMode mode;
+    private RootState state;
+    /**
+     * Файлов карт найдено первичным сканированием
+     */
+    private long filesSeen;
+    /**
+     * Файлов сохранено первичным сканированием
+     */
+    private long filesPersisted;
+    private double filesPerSecond;
+    /**
+     * Событий наблюдателя или изменений, найденных опросом, с начала наблюдения
+     */
+    private long events;
+    /**
+     * Суммарное ожидание из-за ограничения скорости хеширования
+     */
+    private long throttledMillis;
+    private String lastError;
+}
@@ -1,10 +1,22 @@
 package com.github.rkharisov.chunks.repository;
 
 import com.github.rkharisov.chunks.model.entity.ChunkEntity;
+import com.github.rkharisov.chunks.model.enums.HashAlgorithm;
+import com.github.rkharisov.chunks.model.enums.RepeatInterval;
+import com.github.rkharisov.chunks.model.projection.ChunkState;
+import com.github.rkharisov.chunks.model.projection.ChunkView;
+import com.github.rkharisov.chunks.model.projection.PathFingerprint;
+import com.github.rkharisov.chunks.model.projection.PathHash;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 import java.time.LocalDate;
+import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
 import java.util.stream.Stream;
@@ -12,11 +24,173 @@ import java.util.stream.Stream;
 @Repository
 public interface ChunkRepository extends JpaRepository<ChunkEntity, UUID> {
 
-    Optional<ChunkEntity> findFirstByPathOrHash(String path, byte[] hash);
+    Optional<ChunkEntity> findByPath(String path);
 
-    Stream<ChunkEntity> findByPathStartsWith(String path_);
+    Optional<ChunkEntity> findByHash(byte[] hash);
 
-    Stream<ChunkEntity> findAllByActiveIsTrueAndNextRepeatDateIsLessThanEqual(LocalDate date);
+    /**
+     * Пути и хеши всех чанков для фильтра известных ключей. Читает таблицу целиком, вызывается один раз при старте
+     *
+     * @return
+     */
+    @Query("select new com.github.rkharisov.chunks.model.projection.PathHash(c.path, c.hash) from ChunkEntity c")
+    List<PathHash> findAllPathHashes();
 
-    Stream<ChunkEntity> findAllByActiveIsTrueAndMutatedIsTrue();
+    /**
+     * Активные чанки для построения индекса на повторение
+     *
+     * @return
+     */
+    @Query("select new com.github.rkharisov.chunks.model.projection.ChunkView(" +
+            "c.id, c.name, c.path, c.currentRepetitionInterval, c.nextRepeatDate, c.active, c.mutated) " +
+            "from ChunkEntity c where c.active = true")
+    List<ChunkView> findActiveViews();
+
+    /**
+     * Чанки на повторение и измененные чанки за один проход. Чанк, который одновременно и на повторение,
+     * и изменен, возвращается один раз
+     *
+     * @param day
+     * @return
+     */
+    @Query("select new com.github.rkharisov.chunks.model.projection.ChunkView(" +
+            "c.id, c.name, c.path, c.currentRepetitionInterval, c.nextRepeatDate, c.active, c.mutated) " +
+            "from ChunkEntity c where c.active = true and (c.nextRepeatDate <= :day or c.mutated = true)")
+    Stream<ChunkView> findActivityViews(@Param("day") LocalDate day);
+
+    @Query("select new com.github.rkharisov.chunks.model.projection.ChunkView(" +
+            "c.id, c.name, c.path, c.currentRepetitionInterval, c.nextRepeatDate, c.active, c.mutated) " +
+            "from ChunkEntity c where c.id in :ids")
+    List<ChunkView> findViewsByIdIn(@Param("ids") Collection<UUID> ids);
+
+    /**
+     * Чанки, сохраненные до появления колонки name. Читает таблицу целиком, но только один раз при старте:
+     * индекс ради этого поддерживался бы на каждой записи
+     *
+     * @return
+     */
+    @Query("select new com.github.rkharisov.chunks.model.projection.ChunkView(" +
+            "c.id, c.name, c.path, c.currentRepetitionInterval, c.nextRepeatDate, c.active, c.mutated) " +
+            "from ChunkEntity c where c.name is null and c.path is not null")
+    List<ChunkView> findViewsWithoutName();
+
+    @Modifying
+    @Query("update ChunkEntity c set c.name = :name where c.id = :id")
+    int updateName(@Param("id") UUID id, @Param("name") String name);
+
+    /**
+     * Первая страница чанков на повторение в порядке (nextRepeatDate, id)
+     *
+     * @param day
+     * @param pageable только размер страницы
+     * @return
+     */
+    @Query("select new com.github.rkharisov.chunks.model.projection.ChunkView(" +
+            "c.id, c.name, c.path, c.currentRepetitionInterval, c.nextRepeatDate, c.active, c.mutated) " +
+            "from ChunkEntity c where c.active = true and c.nextRepeatDate <= :day " +
+            "order by c.nextRepeatDate, c.id")
+    List<ChunkView> findDueFirstPage(@Param("day") LocalDate day, Pageable pageable);
+
+    /**
+     * Следующая страница чанков на повторение после ключа (afterDate, afterId).
+     * Условие nextRepeatDate >= afterDate избыточно, но дает базе диапазон по индексу
+     *
+     * @param day
+     * @param afterDate
+     * @param afterId
+     * @param pageable  только размер страницы
+     * @return
+     */
+    @Query("select new com.github.rkharisov.chunks.model.projection.ChunkView(" +
+            "c.id, c.name, c.path, c.currentRepetitionInterval, c.nextRepeatDate, c.active, c.mutated) " +
+            "from ChunkEntity c where c.active = true and c.nextRepeatDate <= :day " +
+            "and c.nextRepeatDate >= :afterDate and (c.nextRepeatDate > :afterDate or c.id > :afterId) " +
+            "order by c.nextRepeatDate, c.id")
+    List<ChunkView> findDuePageAfter(@Param("day") LocalDate day, @Param("afterDate") LocalDate afterDate,
+                                      @Param("afterId") UUID afterId, Pageable pageable);
+
+    boolean existsByHashAlgorithm(HashAlgorithm hashAlgorithm);
+
+    boolean existsByHashAlgorithmIsNull();
+
+    @Query("select new com.github.rkharisov.chunks.model.projection.PathFingerprint(" +
+            "c.path, c.active, c.fingerprint.fileSize, c.fingerprint.lastModified, c.fingerprint.fileKey) " +
+            "from ChunkEntity c where c.active = true and c.fingerprint.fileSize is not null")
+    List<PathFingerprint> findActiveFingerprints();
+
+    /**
+     * @param from {@link com.github.rkharisov.Utils#childrenFrom(String)}
+     * @param to   {@link com.github.rkharisov.Utils#childrenTo(String)}
+     * @return
+     */
+    @Query("select new com.github.rkharisov.chunks.model.projection.PathFingerprint(" +
+            "c.path, c.active, c.fingerprint.fileSize, c.fingerprint.lastModified, c.fingerprint.fileKey) " +
+            "from ChunkEntity c where c.path >= :from and c.path < :to")
+    List<PathFingerprint> findFingerprintsByPathRange(@Param("from") String from, @Param("to") String to);
+
+    /**
+     * Деактивировать все чанки внутри каталога одним запросом
+     *
+     * @param from {@link com.github.rkharisov.Utils#childrenFrom(String)}
+     * @param to   {@link com.github.rkharisov.Utils#childrenTo(String)}
+     * @return количество деактивированных чанков
+     */
+    @Modifying(flushAutomatically = true, clearAutomatically = true)
+    @Query("update ChunkEntity c set c.active = false " +
+            "where c.active = true and c.path >= :from and c.path < :to")
+    int deactivateByPathRange(@Param("from") String from, @Param("to") String to);
+
+    boolean existsByActiveIsTrueAndPathIn(Collection<String> paths);
+
+    /**
+     * Снять пути с неактивных чанков, чтобы пути могли занять другие чанки
+     *
+     * @param paths
+     * @return
+     */
+    @Modifying(flushAutomatically = true, clearAutomatically = true)
+    @Query("update ChunkEntity c set c.path = null where c.active = false and c.path in :paths")
+    int releaseInactivePaths(@Param("paths") Collection<String> paths);
+
+    /**
+     * Перенести активные чанки каталога в другой каталог заменой префикса пути одним запросом
+     *
+     * @param from   {@link com.github.rkharisov.Utils#childrenFrom(String)} старого каталога
+     * @param to     {@link com.github.rkharisov.Utils#childrenTo(String)} старого каталога
+     * @param start  позиция (с 1) первого символа пути после старого каталога
+     * @param prefix новый каталог
+     * @return количество перенесенных чанков
+     */
+    @Modifying(flushAutomatically = true, clearAutomatically = true)
+    @Query("update ChunkEntity c set c.path = concat(:prefix, substring(c.path, :start)) " +
+            "where c.active = true and c.path >= :from and c.path < :to")
+    int movePathRange(@Param("from") String from, @Param("to") String to,
+                      @Param("start") int start, @Param("prefix") String prefix);
+
+    @Modifying(flushAutomatically = true, clearAutomatically = true)
+    @Query("update ChunkEntity c set c.active = false where c.active = true and c.path in :paths")
+    int deactivateAll(@Param("paths") Collection<String> paths);
+
+    @Query("select new com.github.rkharisov.chunks.model.projection.ChunkState(" +
+            "c.id, c.path, c.currentRepetitionInterval, c.nextRepeatDate, c.active, c.mutated) " +
+            "from ChunkEntity c where c.id in :ids")
+    List<ChunkState> findStatesByIdIn(@Param("ids") Collection<UUID> ids);
+
+    /**
+     * Перевести чанки на этап повторения с датой следующего повторения и снять признак изменения
+     *
+     * @param ids
+     * @param interval
+     * @param nextRepeatDate
+     * @return
+     */
+    @Modifying(flushAutomatically = true, clearAutomatically = true)
+    @Query("update ChunkEntity c set c.currentRepetitionInterval = :interval, c.nextRepeatDate = :nextRepeatDate, " +
+            "c.mutated = false where c.id in :ids")
+    int reschedule(@Param("ids") Collection<UUID> ids, @Param("interval") RepeatInterval interval,
+                   @Param("nextRepeatDate") LocalDate nextRepeatDate);
+
+    @Modifying(flushAutomatically = true, clearAutomatically = true)
+    @Query("update ChunkEntity c set c.mutated = false where c.id in :ids")
+    int unmutateAll(@Param("ids") Collection<UUID> ids);
 }
@@ -0,0 +1,192 @@
+package com.github.rkharisov.chunks.service;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.github.rkharisov.chunks.model.projection.ChunkView;
+import com.github.rkharisov.chunks.model.response.ChunkDTO;
+import com.github.rkharisov.chunks.model.response.ChunkPage;
+import com.github.rkharisov.chunks.repository.ChunkRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+/**
+ * Ответ на запрос чанков на сегодня, сериализованный заранее.
+ *
+ * Тело ответа кешируется вместе с ETag, составленным из метки запуска, версии {@link DueIndex} и дня,
+ * и сериализуется заново только после изменения индекса или смены дня.
+ * Версия индекса после перезапуска снова начинается с нуля, поэтому без метки запуска клиент
+ * со старым ETag получил бы 304 на уже другое содержимое.
+ * Для больших списков есть постраничная выдача по ключу (nextRepeatDate, id) и потоковая запись JSON из базы
+ */
+@Service
+public class ActivityService {
+
+    @Autowired
+    private DueIndex dueIndex;
+
+    @Autowired
+    private ChunkService chunkService;
+
+    @Autowired
+    private ChunkRepository chunkRepository;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Value("${chunks.page.maxSize:1000}")
+    private int maxPageSize;
+
+    private volatile Activities cached;
+
+    /**
+     * Случайная метка запуска
+     */
+    private final String epoch = Long.toHexString(new SecureRandom().nextLong());
+
+    /**
+     * ETag текущего ответа без обращения к базе
+     *
+     * @param day
+     * @return null, пока индекс не построен
+     */
+    public String getETag(LocalDate day) {
+        return dueIndex.isReady() ? eTag(dueIndex.getVersion(), day) : null;
+    }
+
+    /**
+     * @param day
+     * @return тело ответа в UTF-8 и его ETag. ETag нет, пока индекс не построен и отвечает база
+     * @throws JsonProcessingException
+     */
+    public Activities getActivities(LocalDate day) throws JsonProcessingException {
+        if (!dueIndex.isReady()) {
+            return new Activities(null, objectMapper.writeValueAsBytes(chunkService.queryActivities(day)));
+        }
+        //версия читается до содержимого: тело может оказаться новее ETag, но не старее
+        String eTag = eTag(dueIndex.getVersion(), day);
+        Activities activities = cached;
+        if (activities == null || !eTag.equals(activities.getETag())) {
+            activities = new Activities(eTag, objectMapper.writeValueAsBytes(dueIndex.getActivities(day)));
+            cached = activities;
+        }
+        return activities;
+    }
+
+    /**
+     * Страница чанков на повторение в порядке (nextRepeatDate, id)
+     *
+     * @param day
+     * @param cursor курсор из предыдущей страницы, null для первой страницы
+     * @param size
+     * @return
+     * @throws IllegalArgumentException если курсор не разобран
+     */
+    @Transactional(readOnly = true)
+    public ChunkPage getRepeatPage(LocalDate day, String cursor, int size) {
+        PageRequest page = PageRequest.of(0, Math.max(1, Math.min(size, maxPageSize)));
+        List<ChunkView> chunks;
+        if (cursor == null || cursor.isEmpty()) {
+            chunks = chunkRepository.findDueFirstPage(day, page);
+        } else {
+            String[] key = decodeCursor(cursor);
+            chunks = chunkRepository.findDuePageAfter(day, LocalDate.ofEpochDay(Long.parseLong(key[0])),
+                    UUID.fromString(key[1]), page);
+        }
+        List<ChunkDTO> items = new ArrayList<>(chunks.size());
+        for (ChunkView chunk : chunks) {
+            items.add(chunk.toResponse());
+        }
+        String next = null;
+        if (chunks.size() == page.getPageSize()) {
+            ChunkView last = chunks.get(chunks.size() - 1);
+            next = encodeCursor(last.getNextRepeatDate(), last.getId());
+        }
+        return new ChunkPage(items, next);
+    }
+
+    /**
+     * Записать чанки на повторение в поток по мере чтения из базы, не собирая их в памяти.
+     * Измененные чанки приходят тем же запросом и копятся до конца массива чанков на повторение, их обычно немного
+     *
+     * @param day
+     * @param out
+     * @throws IOException
+     */
+    @Transactional(readOnly = true)
+    public void writeActivities(LocalDate day, OutputStream out) throws IOException {
+        ObjectWriter writer = objectMapper.writerFor(ChunkDTO.class)
+                .without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+        try (JsonGenerator generator = objectMapper.getFactory().createGenerator(out, JsonEncoding.UTF8);
+             Stream<ChunkView> chunks = chunkService.getActivityViews(day)) {
+            List<ChunkDTO> mutated = new ArrayList<>();
+            generator.writeStartObject();
+            generator.writeArrayFieldStart(DueIndex.REPEAT);
+            Iterator<ChunkView> iterator = chunks.iterator();
+            while (iterator.hasNext()) {
+                ChunkView chunk = iterator.next();
+                if (ChunkService.isDue(chunk, day)) writer.writeValue(generator, chunk.toResponse());
+                if (Boolean.TRUE.equals(chunk.getMutated())) mutated.add(chunk.toResponse());
+            }
+            generator.writeEndArray();
+            generator.writeArrayFieldStart(DueIndex.MUTATED);
+            for (ChunkDTO chunk : mutated) {
+                writer.writeValue(generator, chunk);
+            }
+            generator.writeEndArray();
+            generator.writeEndObject();
+        }
+    }
+
+    private static String encodeCursor(LocalDate date, UUID id) {
+        String key = date.toEpochDay() + ":" + id;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String[] decodeCursor(String cursor) {
+        String[] key = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split(":");
+        if (key.length != 2) throw new IllegalArgumentException("Некорректный курсор: " + cursor);
+        return key;
+    }
+
+    private String eTag(long version, LocalDate day) {
+        return "\"" + epoch + "-" + version + "-" + day.toEpochDay() + "\"";
+    }
+
+    public static class Activities {
+
+        private final String eTag;
+        private final byte[] body;
+
+        private Activities(String eTag, byte[] body) {
+            this.eTag = eTag;
+            this.body = body;
+        }
+
+        public String getETag() {
+            return eTag;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+    }
+}
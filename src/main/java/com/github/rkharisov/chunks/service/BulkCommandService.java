@@ -0,0 +1,68 @@
+package com.github.rkharisov.chunks.service;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.rkharisov.chunks.model.request.BulkCommand;
+import com.github.rkharisov.chunks.model.response.BulkResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Пакетные команды над чанками: массив JSON читается из тела запроса по элементам, без построения дерева,
+ * и выполняется одной транзакцией в {@link ChunkService#applyBulk(List)}
+ */
+@Service
+public class BulkCommandService {
+
+    private static final Logger log = LoggerFactory.getLogger(BulkCommandService.class);
+
+    @Autowired
+    private ChunkService chunkService;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Value("${chunks.bulk.maxCommands:10000}")
+    private int maxCommands;
+
+    /**
+     * @param body массив команд вида {"op": "REPEATED|DROP|UNMUTATE", "id": "uuid"}
+     * @return результаты в порядке команд
+     * @throws IOException              если тело не является массивом JSON
+     * @throws IllegalArgumentException если команд больше допустимого
+     */
+    public List<BulkResult> execute(InputStream body) throws IOException {
+        List<BulkCommand> commands = new ArrayList<>();
+        try (JsonParser parser = objectMapper.getFactory().createParser(body)) {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                throw new IOException("Ожидается массив команд");
+            }
+            JsonToken token;
+            while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+                if (token == null) throw new IOException("Массив команд не завершен");
+                if (commands.size() == maxCommands) {
+                    throw new IllegalArgumentException("Команд в пакете больше " + maxCommands);
+                }
+                if (token == JsonToken.START_OBJECT) {
+                    commands.add(parser.readValueAs(BulkCommand.class));
+                } else {
+                    //элемент не объект: отмечается как некорректный, остальные команды выполняются
+                    parser.skipChildren();
+                    commands.add(new BulkCommand());
+                }
+            }
+        }
+        List<BulkResult> results = chunkService.applyBulk(commands);
+        log.debug("Выполнен пакет из {} команд", commands.size());
+        return results;
+    }
+}
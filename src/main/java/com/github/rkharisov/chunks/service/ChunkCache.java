@@ -0,0 +1,232 @@
+package com.github.rkharisov.chunks.service;
+
+import com.github.rkharisov.Utils;
+import com.github.rkharisov.chunks.model.projection.ChunkState;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Кеш состояний чанков по id перед {@link com.github.rkharisov.chunks.repository.ChunkRepository#findStatesByIdIn(Collection)}:
+ * отметка повторения и пакеты команд не читают из базы чанки, прочитанные или измененные незадолго до этого.
+ *
+ * - Размер ограничен chunks.cache.maxSize, вытесняются давно не читанные записи. Запись живет не дольше
+ * chunks.cache.ttlMs с момента загрузки или изменения
+ * - Изменения записываются в кеш после фиксации транзакции, как и в {@link DueIndex}: откаченные изменения в кеш не попадают
+ * - Деактивация и перенос каталога сбрасывают записи по диапазону путей
+ * - Прочитанное из базы не кладется в кеш, если во время чтения кеш изменялся: иначе чтение, начатое до фиксации
+ * чужого изменения, затерло бы его
+ * - Попадания и промахи доступны в /actuator/metrics: chunks.cache.gets (result=hit|miss), chunks.cache.evictions, chunks.cache.size
+ *
+ * Поиск по пути и хешу при сохранении файла не кешируется: там загружается сущность для изменения,
+ * а отсутствующие ключи уже отсекает {@link KnownKeys}
+ */
+@Component
+public class ChunkCache {
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    /**
+     * Максимум записей, 0 - кеш выключен
+     */
+    @Value("${chunks.cache.maxSize:10000}")
+    private int maxSize;
+
+    @Value("${chunks.cache.ttlMs:600000}")
+    private long ttlMs;
+
+    private final Map<UUID, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final NavigableMap<String, UUID> byPath = new TreeMap<>();
+
+    /**
+     * Увеличивается каждым изменением кеша, по нему загрузка узнает, что кеш изменился во время чтения из базы
+     */
+    private long generation;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    @PostConstruct
+    private void init() {
+        FunctionCounter.builder("chunks.cache.gets", hits, AtomicLong::get)
+                .tag("result", "hit")
+                .description("Чтения состояний чанков из кеша")
+                .register(meterRegistry);
+        FunctionCounter.builder("chunks.cache.gets", misses, AtomicLong::get)
+                .tag("result", "miss")
+                .description("Чтения состояний чанков из кеша")
+                .register(meterRegistry);
+        FunctionCounter.builder("chunks.cache.evictions", evictions, AtomicLong::get)
+                .description("Вытеснено записей по размеру или времени жизни")
+                .register(meterRegistry);
+        Gauge.builder("chunks.cache.size", this, ChunkCache::size)
+                .description("Записей в кеше состояний чанков")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Состояния чанков: найденные в кеше и загруженные из базы
+     *
+     * @param ids
+     * @param loader загрузка отсутствующих в кеше
+     * @return найденные чанки, отсутствующие в базе пропускаются
+     */
+    public List<ChunkState> getStates(Collection<UUID> ids, Function<List<UUID>, List<ChunkState>> loader) {
+        if (maxSize <= 0) return loader.apply(new ArrayList<>(ids));
+        List<ChunkState> states = new ArrayList<>(ids.size());
+        List<UUID> missing = new ArrayList<>();
+        long loadGeneration;
+        synchronized (this) {
+            long now = System.nanoTime();
+            for (UUID id : ids) {
+                Entry entry = entries.get(id);
+                if (entry != null && entry.expiresAt - now <= 0) {
+                    remove(id);
+                    evictions.incrementAndGet();
+                    entry = null;
+                }
+                if (entry != null) {
+                    states.add(entry.state);
+                } else {
+                    missing.add(id);
+                }
+            }
+            loadGeneration = generation;
+        }
+        hits.addAndGet(states.size());
+        misses.addAndGet(missing.size());
+        if (missing.isEmpty()) return states;
+        List<ChunkState> loaded = loader.apply(missing);
+        synchronized (this) {
+            if (generation == loadGeneration) {
+                for (ChunkState state : loaded) {
+                    add(state);
+                }
+            }
+        }
+        states.addAll(loaded);
+        return states;
+    }
+
+    /**
+     * Новое состояние чанка. Неактивный чанк в кеше остается: отметка повторения отвечает на него так же, как база
+     *
+     * @param state
+     */
+    public void put(ChunkState state) {
+        if (maxSize <= 0) return;
+        afterCommit(() -> add(state));
+    }
+
+    /**
+     * Сбросить чанки с путями
+     *
+     * @param paths
+     */
+    public void invalidatePaths(Collection<String> paths) {
+        if (maxSize <= 0) return;
+        List<String> removed = new ArrayList<>(paths);
+        afterCommit(() -> {
+            for (String path : removed) {
+                UUID id = byPath.get(path);
+                if (id != null) remove(id);
+            }
+        });
+    }
+
+    /**
+     * Сбросить чанки внутри каталога
+     *
+     * @param dir
+     */
+    public void invalidateDir(String dir) {
+        if (maxSize <= 0) return;
+        String from = Utils.childrenFrom(dir);
+        String to = Utils.childrenTo(dir);
+        afterCommit(() -> {
+            for (UUID id : new ArrayList<>(byPath.subMap(from, to).values())) {
+                remove(id);
+            }
+        });
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private void afterCommit(Runnable change) {
+        Runnable locked = () -> {
+            synchronized (this) {
+                change.run();
+                generation++;
+            }
+        };
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    locked.run();
+                }
+            });
+        } else {
+            locked.run();
+        }
+    }
+
+    private void add(ChunkState state) {
+        remove(state.getId());
+        entries.put(state.getId(), new Entry(state, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ttlMs)));
+        if (state.getPath() != null) byPath.put(state.getPath(), state.getId());
+        Iterator<Map.Entry<UUID, Entry>> eldest = entries.entrySet().iterator();
+        while (entries.size() > maxSize && eldest.hasNext()) {
+            ChunkState evicted = eldest.next().getValue().state;
+            eldest.remove();
+            if (evicted.getPath() != null) byPath.remove(evicted.getPath(), evicted.getId());
+            evictions.incrementAndGet();
+        }
+    }
+
+    private void remove(UUID id) {
+        Entry entry = entries.remove(id);
+        if (entry != null && entry.state.getPath() != null) byPath.remove(entry.state.getPath(), id);
+    }
+
+    private static class Entry {
+        private final ChunkState state;
+        private final long expiresAt;
+
+        private Entry(ChunkState state, long expiresAt) {
+            this.state = state;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -1,8 +1,22 @@
 package com.github.rkharisov.chunks.service;
 
 import com.github.rkharisov.Utils;
+import com.github.rkharisov.chunks.hash.ContentHasher;
+import com.github.rkharisov.chunks.hash.FileDigest;
+import com.github.rkharisov.chunks.metrics.IngestMetrics;
 import com.github.rkharisov.chunks.model.entity.ChunkEntity;
+import com.github.rkharisov.chunks.model.entity.Fingerprint;
+import com.github.rkharisov.chunks.model.enums.BulkOperation;
+import com.github.rkharisov.chunks.model.enums.BulkStatus;
+import com.github.rkharisov.chunks.model.enums.HashAlgorithm;
+import com.github.rkharisov.chunks.model.enums.HashMode;
 import com.github.rkharisov.chunks.model.enums.RepeatInterval;
+import com.github.rkharisov.chunks.model.projection.ChunkState;
+import com.github.rkharisov.chunks.model.projection.ChunkView;
+import com.github.rkharisov.chunks.model.projection.PathFingerprint;
+import com.github.rkharisov.chunks.model.projection.PathHash;
+import com.github.rkharisov.chunks.model.request.BulkCommand;
+import com.github.rkharisov.chunks.model.response.BulkResult;
 import com.github.rkharisov.chunks.model.response.ChunkDTO;
 import com.github.rkharisov.chunks.model.response.Response;
 import com.github.rkharisov.chunks.model.response.UnaryResponse;
@@ -10,19 +24,37 @@ import com.github.rkharisov.chunks.repository.ChunkRepository;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 
+import javax.annotation.PostConstruct;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.security.NoSuchAlgorithmException;
 import java.time.LocalDate;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -33,98 +65,570 @@ public class ChunkService {
 
     private static final Logger log = LoggerFactory.getLogger(ChunkService.class);
 
+    /**
+     * Максимальное количество путей в одном запросе с in
+     */
+    private static final int IN_BATCH_SIZE = 500;
+
     @Autowired
     private ChunkRepository chunkRepository;
 
+    @Autowired
+    private ContentHasher contentHasher;
+
+    @Autowired
+    private DueIndex dueIndex;
+
+    @Autowired
+    private ChunkCache chunkCache;
+
+    @Autowired
+    private KnownKeys knownKeys;
+
+    @Autowired
+    private IngestMetrics ingestMetrics;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    /**
+     * Алгоритмы хешей, которые встречаются в базе. Пока есть строки со старым алгоритмом,
+     * файл хешируется сразу всеми, чтобы находить такие чанки при переименовании
+     */
+    private volatile Set<HashAlgorithm> storedAlgorithms = EnumSet.noneOf(HashAlgorithm.class);
+
+    @PostConstruct
+    private void init() {
+        fillMissingNames();
+        loadKnownKeys();
+        refreshStoredAlgorithms();
+    }
+
+    /**
+     * Заполнить имя у чанков, сохраненных до появления колонки name. Выполняется один раз после обновления,
+     * по транзакции на пачку: метод вызывается из @PostConstruct, где транзакции прокси еще нет
+     */
+    private void fillMissingNames() {
+        List<ChunkView> unnamed = chunkRepository.findViewsWithoutName();
+        if (unnamed.isEmpty()) return;
+        long started = System.currentTimeMillis();
+        TransactionTemplate transaction = new TransactionTemplate(transactionManager);
+        for (int from = 0; from < unnamed.size(); from += IN_BATCH_SIZE) {
+            List<ChunkView> batch = unnamed.subList(from, Math.min(from + IN_BATCH_SIZE, unnamed.size()));
+            transaction.execute(status -> {
+                for (ChunkView chunk : batch) {
+                    chunkRepository.updateName(chunk.getId(), Utils.chunkName(chunk.getPath()));
+                }
+                return null;
+            });
+        }
+        log.info("Заполнены имена чанков: {} за {} мс", unnamed.size(), System.currentTimeMillis() - started);
+    }
+
+    /**
+     * Загрузить фильтр известных путей и хешей. Вызывается до начального сканирования,
+     * чтобы новые файлы не проверялись в базе
+     */
+    public void loadKnownKeys() {
+        long started = System.currentTimeMillis();
+        List<PathHash> known = chunkRepository.findAllPathHashes();
+        knownKeys.load(known);
+        log.info("Фильтр известных чанков загружен: {} чанков за {} мс", known.size(), System.currentTimeMillis() - started);
+    }
+
+    public void refreshStoredAlgorithms() {
+        Set<HashAlgorithm> algorithms = EnumSet.noneOf(HashAlgorithm.class);
+        //по запросу на алгоритм вместо distinct, чтобы не читать всю таблицу
+        for (HashAlgorithm algorithm : HashAlgorithm.values()) {
+            if (chunkRepository.existsByHashAlgorithm(algorithm)) algorithms.add(algorithm);
+        }
+        if (chunkRepository.existsByHashAlgorithmIsNull()) algorithms.add(HashAlgorithm.ofStored(null));
+        storedAlgorithms = algorithms;
+    }
+
     public void createOrUpdate(Path path) throws IOException, NoSuchAlgorithmException {
-        byte[] digest = Utils.digest(Files.readAllBytes(path));
+        Optional<FileDigest> digest = digestIfChanged(path);
+        if (digest.isPresent()) {
+            apply(digest.get());
+        }
+    }
+
+    /**
+     * Посчитать хеши файла, если его отпечаток отличается от сохраненного
+     *
+     * @param path
+     * @return
+     * @throws IOException
+     */
+    public Optional<FileDigest> digestIfChanged(Path path) throws IOException {
+        Fingerprint fingerprint = Fingerprint.of(Files.readAttributes(path, BasicFileAttributes.class));
+        if (isUnchanged(path.toString(), fingerprint)) {
+            log.debug("Файл не изменился {}", path);
+            return Optional.empty();
+        }
+        return Optional.of(digest(path, fingerprint));
+    }
+
+    private boolean isUnchanged(String path, Fingerprint fingerprint) {
+        return findByPath(path)
+                .filter(ChunkEntity::getActive)
+                .map(chunk -> fingerprint.equals(chunk.getFingerprint()))
+                .orElse(false);
+    }
+
+    /**
+     * Отпечатки всех активных чанков по пути файла
+     *
+     * @return
+     */
+    public Map<String, Fingerprint> getActiveFingerprints() {
+        return chunkRepository.findActiveFingerprints().stream()
+                .collect(Collectors.toMap(PathFingerprint::getPath, PathFingerprint::getFingerprint));
+    }
+
+    /**
+     * Сохраненные отпечатки всех чанков внутри каталога, в том числе неактивных
+     *
+     * @param dir
+     * @return
+     */
+    public Map<String, PathFingerprint> getFingerprintsUnder(Path dir) {
+        String dir_ = dir.toString();
+        return chunkRepository.findFingerprintsByPathRange(Utils.childrenFrom(dir_), Utils.childrenTo(dir_)).stream()
+                .collect(Collectors.toMap(PathFingerprint::getPath, Function.identity()));
+    }
+
+    public FileDigest digest(Path path) throws IOException {
+        return digest(path, Fingerprint.of(Files.readAttributes(path, BasicFileAttributes.class)));
+    }
+
+    /**
+     * Посчитать хеши файла. Не обращается к базе, поэтому может выполняться параллельно
+     *
+     * @param path
+     * @param fingerprint отпечаток, снятый до чтения файла
+     * @return
+     * @throws IOException
+     */
+    public FileDigest digest(Path path, Fingerprint fingerprint) throws IOException {
+        HashAlgorithm algorithm = contentHasher.getAlgorithm();
+        HashMode mode = contentHasher.getMode();
+        Set<HashAlgorithm> algorithms = EnumSet.of(algorithm);
+        algorithms.addAll(storedAlgorithms);
+        FileDigest digest = new FileDigest(path, fingerprint, algorithm, mode, contentHasher.hash(path, algorithms, mode));
+        //в режиме ZIP_ENTRIES читается только центральный каталог архива
+        if (mode == HashMode.CONTENT && fingerprint.getFileSize() != null) ingestMetrics.onHashed(fingerprint.getFileSize());
+        return digest;
+    }
+
+    /**
+     * Сохранить изменения по заранее посчитанным хешам файлов одной транзакцией
+     *
+     * @param fileDigests
+     * @return прежние пути переименованных чанков
+     * @throws IOException
+     */
+    @Transactional
+    public Set<Path> applyAll(List<FileDigest> fileDigests) throws IOException {
+        Set<Path> movedFrom = new HashSet<>();
+        for (FileDigest fileDigest : fileDigests) {
+            apply(fileDigest).ifPresent(movedFrom::add);
+        }
+        return movedFrom;
+    }
+
+    /**
+     * Применить склеенные изменения файлов одной транзакцией: сначала создания и изменения, затем удаления.
+     * Удаление пути, с которого чанк только что переименован, уже учтено переименованием и не выполняется,
+     * так что переименование - это одно обновление пути без промежуточной деактивации
+     *
+     * @param deleted
+     * @param changed
+     * @return прежние пути переименованных чанков
+     * @throws IOException
+     */
+    @Transactional
+    public Set<Path> applyChanges(List<Path> deleted, List<FileDigest> changed) throws IOException {
+        Set<Path> movedFrom = applyAll(changed);
+        List<Path> unmatched = new ArrayList<>(deleted.size());
+        for (Path path : deleted) {
+            if (!movedFrom.contains(path)) unmatched.add(path);
+        }
+        if (!unmatched.isEmpty()) markInactive(unmatched);
+        return movedFrom;
+    }
+
+    /**
+     * @param fileDigest
+     * @return прежний путь, если найденный по хешу чанк переименован
+     * @throws IOException
+     */
+    public Optional<Path> apply(FileDigest fileDigest) throws IOException {
+        Path path = fileDigest.getPath();
+        Map<HashAlgorithm, byte[]> digests = fileDigest.getDigests();
+        byte[] digest = fileDigest.getDigest();
         String path_ = path.toString();
-        Optional<ChunkEntity> maybeChunk = chunkRepository.findFirstByPathOrHash(path_, digest);
+        Optional<ChunkEntity> byPath = findByPath(path_);
+        Optional<ChunkEntity> byHash = findByHash(digest, digests);
+        if (byPath.isPresent() && byHash.isPresent() && !byPath.get().getId().equals(byHash.get().getId())) {
+            if (Boolean.TRUE.equals(byPath.get().getActive())) {
+                //по пути лежит содержимое другого чанка: история повторений остается у чанка пути,
+                //у другого чанка снимается хеш, чтобы не нарушить уникальность
+                ChunkEntity other = byHash.get();
+                other.setHash(null);
+                chunkRepository.saveAndFlush(other);
+                log.warn("Содержимое {} совпадает с чанком {}, хеш перенесен на чанк пути", path_, other.getPath());
+            } else {
+                //по пути остался удаленный чанк, а файл - это перенесенный чанк хеша: история остается у него,
+                //у удаленного чанка снимается путь, чтобы не нарушить уникальность
+                ChunkEntity stale = byPath.get();
+                stale.setPath(null);
+                chunkRepository.saveAndFlush(stale);
+                index(stale);
+                byPath = Optional.empty();
+                log.warn("Путь {} освобожден удаленным чанком {} для чанка {}", path_, stale.getId(), byHash.get().getPath());
+            }
+        }
+        Optional<ChunkEntity> maybeChunk = byPath.isPresent() ? byPath : byHash;
+        Optional<Path> movedFrom = Optional.empty();
         if (maybeChunk.isPresent()) {
             ChunkEntity chunk = maybeChunk.get();
-            if (Arrays.equals(chunk.getHash(), digest)) {
+            HashAlgorithm storedAlgorithm = HashAlgorithm.ofStored(chunk.getHashAlgorithm());
+            HashMode storedMode = HashMode.ofStored(chunk.getHashMode());
+            //сравнение идет тем же алгоритмом и режимом, которыми посчитан сохраненный хеш,
+            //поэтому смена режима сама по себе не помечает чанк измененным
+            byte[] storedDigest = storedMode == fileDigest.getMode() && digests.containsKey(storedAlgorithm)
+                    ? digests.get(storedAlgorithm)
+                    : contentHasher.hash(path, storedAlgorithm, storedMode);
+            if (Arrays.equals(chunk.getHash(), storedDigest)) {
                 //здесь если файл был переименован
+                if (!chunk.getPath().equals(path_)) movedFrom = Optional.of(Paths.get(chunk.getPath()));
                 chunk.setPath(path_);
                 chunk.setActive(true);
             } else if (chunk.getPath().equals(path_)) {
-                //здесь если файл был изменен
-                chunk.setHash(digest);
+                //здесь если файл был изменен, в том числе если файл снова появился на месте удаленного
                 chunk.setMutated(true);
+                chunk.setActive(true);
             }
+            //хеш старым алгоритмом или режимом заменяется при первом же обращении к чанку
+            chunk.setHash(digest);
+            chunk.setHashAlgorithm(fileDigest.getAlgorithm());
+            chunk.setHashMode(fileDigest.getMode());
+            chunk.setFingerprint(fileDigest.getFingerprint());
             chunkRepository.save(chunk);
+            knownKeys.add(path_, digest);
+            index(chunk);
         } else {
             //здесь если новый чанк
-            createNewChunk(path_, digest);
+            createNewChunk(path_, digest, fileDigest.getFingerprint());
         }
+        return movedFrom;
+    }
+
+    private Optional<ChunkEntity> findByPath(String path) {
+        return knownKeys.mightContainPath(path) ? chunkRepository.findByPath(path) : Optional.empty();
     }
 
-    protected void createNewChunk(String path, byte[] hash) {
+    /**
+     * Чанк по хешу текущим алгоритмом, затем по хешам старыми алгоритмами
+     */
+    private Optional<ChunkEntity> findByHash(byte[] digest, Map<HashAlgorithm, byte[]> digests) {
+        Optional<ChunkEntity> maybeChunk = knownKeys.mightContainDigest(digest)
+                ? chunkRepository.findByHash(digest)
+                : Optional.empty();
+        for (byte[] legacyDigest : digests.values()) {
+            if (maybeChunk.isPresent()) break;
+            if (legacyDigest != digest && knownKeys.mightContainDigest(legacyDigest)) {
+                maybeChunk = chunkRepository.findByHash(legacyDigest);
+            }
+        }
+        return maybeChunk;
+    }
+
+    protected void createNewChunk(String path, byte[] hash, Fingerprint fingerprint) {
         ChunkEntity chunk = new ChunkEntity();
         chunk.setPath(path);
         chunk.setHash(hash);
+        chunk.setHashAlgorithm(contentHasher.getAlgorithm());
+        chunk.setHashMode(contentHasher.getMode());
+        chunk.setFingerprint(fingerprint);
         chunk.setCurrentRepetitionInterval(DAY);
         chunk.setCreationDate(LocalDate.now());
         chunk.setNextRepeatDate(chunk.getCreationDate().plus(chunk.getCurrentRepetitionInterval().getPeriod()));
         chunk.setActive(true);
         chunk.setMutated(false);
         chunkRepository.save(chunk);
+        knownKeys.add(path, hash);
+        index(chunk);
+    }
+
+    private void index(ChunkEntity chunk) {
+        dueIndex.put(chunk, mapToResponse(chunk));
+        chunkCache.put(new ChunkState(chunk.getId(), chunk.getPath(), chunk.getCurrentRepetitionInterval(),
+                chunk.getNextRepeatDate(), chunk.getActive(), chunk.getMutated()));
     }
 
     @Transactional
     public void markInactive(Path path) {
         String path_ = path.toString();
-        try (Stream<ChunkEntity> chunkStream = chunkRepository.findByPathStartsWith(path_)) {
-            List<ChunkEntity> chunks = chunkStream
-                    .peek(ce -> ce.setActive(false))
-                    .collect(Collectors.toList());
-            chunkRepository.saveAll(chunks);
+        String from = Utils.childrenFrom(path_);
+        String to = Utils.childrenTo(path_);
+        chunkRepository.deactivateAll(Collections.singletonList(path_));
+        chunkRepository.deactivateByPathRange(from, to);
+        dueIndex.removePaths(Collections.singletonList(path_));
+        dueIndex.removeRange(from, to);
+        chunkCache.invalidatePaths(Collections.singletonList(path_));
+        chunkCache.invalidateDir(path_);
+    }
+
+    /**
+     * Деактивировать чанки удаленных файлов и каталогов.
+     * Пути внутри уже удаленных каталогов отбрасываются, файлы карт деактивируются пачками по списку путей,
+     * каталоги - отдельным запросом на каждый
+     *
+     * @param paths
+     */
+    @Transactional
+    public void markInactive(Collection<Path> paths) {
+        Set<Path> deleted = new HashSet<>(paths);
+        List<String> files = new ArrayList<>();
+        for (Path path : deleted) {
+            if (isInside(path, deleted)) continue;
+            if (path.toString().endsWith(MapDirWatcher.MAP_SUFFIX)) {
+                files.add(path.toString());
+            } else {
+                markInactive(path);
+            }
         }
+        for (int from = 0; from < files.size(); from += IN_BATCH_SIZE) {
+            chunkRepository.deactivateAll(files.subList(from, Math.min(from + IN_BATCH_SIZE, files.size())));
+        }
+        dueIndex.removePaths(files);
+        chunkCache.invalidatePaths(files);
     }
 
-    @Transactional(readOnly = true)
-    public Stream<ChunkEntity> getChunksForToday() {
-        return getChunksForDay(LocalDate.now());
+    /**
+     * Перенести каталог одним запросом: активные чанки внутри from получают пути внутри to. Файлы не читаются
+     *
+     * @param from
+     * @param to
+     * @param paths новые пути перенесенных файлов
+     * @return false, если какой-то из новых путей уже занят активным чанком и перенос заменой префикса невозможен
+     */
+    @Transactional
+    public boolean moveDir(Path from, Path to, Collection<String> paths) {
+        String from_ = from.toString();
+        String to_ = to.toString();
+        List<String> targets = new ArrayList<>(paths);
+        for (int i = 0; i < targets.size(); i += IN_BATCH_SIZE) {
+            if (chunkRepository.existsByActiveIsTrueAndPathIn(targets.subList(i, Math.min(i + IN_BATCH_SIZE, targets.size())))) {
+                return false;
+            }
+        }
+        //удаленные когда-то карты на тех же путях уступают пути перенесенным чанкам
+        for (int i = 0; i < targets.size(); i += IN_BATCH_SIZE) {
+            chunkRepository.releaseInactivePaths(targets.subList(i, Math.min(i + IN_BATCH_SIZE, targets.size())));
+        }
+        chunkCache.invalidatePaths(targets);
+        int moved = chunkRepository.movePathRange(Utils.childrenFrom(from_), Utils.childrenTo(from_),
+                from_.length() + 1, to_);
+        for (String path : paths) {
+            knownKeys.add(path, null);
+        }
+        dueIndex.movePrefix(from_, to_);
+        chunkCache.invalidateDir(from_);
+        log.info("Каталог {} перенесен в {}, чанков {}", from, to, moved);
+        return true;
+    }
+
+    private static boolean isInside(Path path, Set<Path> dirs) {
+        for (Path parent = path.getParent(); parent != null; parent = parent.getParent()) {
+            if (dirs.contains(parent)) return true;
+        }
+        return false;
     }
 
+    /**
+     * Чанки на повторение и измененные чанки из базы одним запросом, пока индекс в памяти не построен
+     *
+     * @param day
+     * @return
+     */
     @Transactional(readOnly = true)
-    public Stream<ChunkEntity> getChunksForDay(LocalDate day) {
-        return chunkRepository.findAllByActiveIsTrueAndNextRepeatDateIsLessThanEqual(day);
+    public Map<String, List<ChunkDTO>> queryActivities(LocalDate day) {
+        List<ChunkDTO> repeat = new ArrayList<>();
+        List<ChunkDTO> mutated = new ArrayList<>();
+        try (Stream<ChunkView> chunks = getActivityViews(day)) {
+            chunks.forEach(chunk -> {
+                if (isDue(chunk, day)) repeat.add(chunk.toResponse());
+                if (Boolean.TRUE.equals(chunk.getMutated())) mutated.add(chunk.toResponse());
+            });
+        }
+        Map<String, List<ChunkDTO>> activities = new HashMap<>();
+        activities.put(DueIndex.REPEAT, repeat);
+        activities.put(DueIndex.MUTATED, mutated);
+        return activities;
     }
 
+    /**
+     * Чанки на повторение и измененные чанки без загрузки сущностей, см. {@link #isDue(ChunkView, LocalDate)}
+     *
+     * @param day
+     * @return
+     */
     @Transactional(readOnly = true)
-    public Stream<ChunkEntity> getMutated() {
-        return chunkRepository.findAllByActiveIsTrueAndMutatedIsTrue();
+    public Stream<ChunkView> getActivityViews(LocalDate day) {
+        return chunkRepository.findActivityViews(day);
+    }
+
+    public static boolean isDue(ChunkView chunk, LocalDate day) {
+        return chunk.getNextRepeatDate() != null && !chunk.getNextRepeatDate().isAfter(day);
+    }
+
+    /**
+     * Построить индекс чанков на повторение заново: при старте и в полночь, когда меняется текущий день
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    @Scheduled(cron = "${chunks.dueIndex.rebuildCron:0 0 0 * * *}")
+    public void rebuildDueIndex() {
+        long started = System.currentTimeMillis();
+        int size = dueIndex.rebuild(chunkRepository::findActiveViews);
+        log.info("Индекс чанков на повторение построен: {} чанков за {} мс", size, System.currentTimeMillis() - started);
     }
 
     public ChunkDTO mapToResponse(ChunkEntity entity) {
-        String name = Paths.get(entity.getPath()).getFileName().toString();
-        return new ChunkDTO(
-                name.substring(0, name.indexOf(MapDirWatcher.MAP_SUFFIX)),
-                entity.getId(),
-                entity.getCurrentRepetitionInterval(),
-                entity.getPath()
-        );
+        return new ChunkDTO(entity.getName(), entity.getId(), entity.getCurrentRepetitionInterval(), entity.getPath());
     }
 
-    public Response markRepeated(UUID id) {
-        Optional<ChunkEntity> maybeEntity = chunkRepository.findById(id);
-        ChunkEntity chunkEntity;
-        if (maybeEntity.isPresent() && !(chunkEntity = maybeEntity.get()).getNextRepeatDate().isAfter(LocalDate.now())) {
-            RepeatInterval cri = chunkEntity.getCurrentRepetitionInterval();
-            if (cri == RepeatInterval.YEAR) {
-                chunkEntity.setNextRepeatDate(chunkEntity.getNextRepeatDate().plus(cri.getPeriod()));
-                chunkEntity.setCurrentRepetitionInterval(RepeatInterval.YEAR);
+    public ChunkDTO mapToResponse(UUID id, RepeatInterval currentRepetitionInterval, String path) {
+        return new ChunkDTO(Utils.chunkName(path), id, currentRepetitionInterval, path);
+    }
+
+    /**
+     * Выполнить пакет команд одной транзакцией по тем же правилам, что {@link #markRepeated(UUID)},
+     * {@link #dropRepetitionDay(List)} и {@link #unmutate(List)}.
+     * Состояния чанков читаются одним запросом, изменения выполняются запросами на группу чанков
+     * с одинаковым новым состоянием. Для повторяющегося чанка выполняется только первая команда
+     *
+     * @param commands
+     * @return результаты в порядке команд
+     */
+    @Transactional
+    public List<BulkResult> applyBulk(List<BulkCommand> commands) {
+        LocalDate today = LocalDate.now();
+        BulkResult[] results = new BulkResult[commands.size()];
+        Map<UUID, Integer> accepted = new LinkedHashMap<>();
+        for (int i = 0; i < commands.size(); i++) {
+            BulkCommand command = commands.get(i);
+            UUID id;
+            try {
+                BulkOperation.valueOf(String.valueOf(command.getOp()));
+                id = UUID.fromString(String.valueOf(command.getId()));
+            } catch (IllegalArgumentException e) {
+                results[i] = new BulkResult(command.getOp(), command.getId(), BulkStatus.INVALID, null);
+                continue;
+            }
+            if (accepted.putIfAbsent(id, i) != null) {
+                results[i] = new BulkResult(command.getOp(), command.getId(), BulkStatus.DUPLICATE, null);
+            }
+        }
+
+        Map<UUID, ChunkState> states = new HashMap<>();
+        for (ChunkState state : chunkCache.getStates(accepted.keySet(), this::loadStates)) {
+            states.put(state.getId(), state);
+        }
+
+        Map<RepeatInterval, Map<LocalDate, List<UUID>>> rescheduled = new EnumMap<>(RepeatInterval.class);
+        List<UUID> unmutated = new ArrayList<>();
+        for (Map.Entry<UUID, Integer> entry : accepted.entrySet()) {
+            BulkCommand command = commands.get(entry.getValue());
+            BulkOperation operation = BulkOperation.valueOf(command.getOp());
+            ChunkState state = states.get(entry.getKey());
+            BulkStatus status = BulkStatus.OK;
+            RepeatInterval interval = state == null ? null : state.getCurrentRepetitionInterval();
+            LocalDate nextRepeatDate = state == null ? null : state.getNextRepeatDate();
+            if (state == null) {
+                status = BulkStatus.NOT_FOUND;
+            } else if (operation == BulkOperation.REPEATED) {
+                if (nextRepeatDate == null || nextRepeatDate.isAfter(today)) {
+                    status = BulkStatus.NOT_DUE;
+                } else {
+                    //на этапе YEAR next() возвращает YEAR, как и в markRepeated
+                    interval = interval.next();
+                    nextRepeatDate = nextRepeatDate.plus(interval.getPeriod());
+                }
+            } else if (operation == BulkOperation.DROP) {
+                interval = DAY;
+                nextRepeatDate = today.plusDays(1);
+            }
+            if (status != BulkStatus.OK) {
+                results[entry.getValue()] = new BulkResult(command.getOp(), command.getId(), status, null);
+                continue;
+            }
+            if (operation == BulkOperation.UNMUTATE) {
+                unmutated.add(state.getId());
             } else {
-                chunkEntity.setCurrentRepetitionInterval(chunkEntity.getCurrentRepetitionInterval().next());
-                chunkEntity.setNextRepeatDate(chunkEntity.getNextRepeatDate().plus(chunkEntity.getCurrentRepetitionInterval().getPeriod()));
+                rescheduled.computeIfAbsent(interval, key -> new HashMap<>())
+                        .computeIfAbsent(nextRepeatDate, key -> new ArrayList<>())
+                        .add(state.getId());
+            }
+            ChunkDTO chunk = mapToResponse(state.getId(), interval, state.getPath());
+            dueIndex.put(state.getId(), state.getPath(), nextRepeatDate, false,
+                    Boolean.TRUE.equals(state.getActive()), chunk);
+            chunkCache.put(new ChunkState(state.getId(), state.getPath(), interval, nextRepeatDate, state.getActive(), false));
+            results[entry.getValue()] = new BulkResult(command.getOp(), command.getId(), BulkStatus.OK, chunk);
+        }
+
+        for (Map.Entry<RepeatInterval, Map<LocalDate, List<UUID>>> byInterval : rescheduled.entrySet()) {
+            for (Map.Entry<LocalDate, List<UUID>> byDate : byInterval.getValue().entrySet()) {
+                List<UUID> group = byDate.getValue();
+                for (int from = 0; from < group.size(); from += IN_BATCH_SIZE) {
+                    chunkRepository.reschedule(group.subList(from, Math.min(from + IN_BATCH_SIZE, group.size())),
+                            byInterval.getKey(), byDate.getKey());
+                }
             }
-            chunkEntity.setMutated(false);
-            return mapToResponse(chunkRepository.save(chunkEntity));
+        }
+        for (int from = 0; from < unmutated.size(); from += IN_BATCH_SIZE) {
+            chunkRepository.unmutateAll(unmutated.subList(from, Math.min(from + IN_BATCH_SIZE, unmutated.size())));
+        }
+        return Arrays.asList(results);
+    }
+
+    private List<ChunkState> loadStates(List<UUID> ids) {
+        List<ChunkState> states = new ArrayList<>(ids.size());
+        for (int from = 0; from < ids.size(); from += IN_BATCH_SIZE) {
+            states.addAll(chunkRepository.findStatesByIdIn(ids.subList(from, Math.min(from + IN_BATCH_SIZE, ids.size()))));
+        }
+        return states;
+    }
+
+    /**
+     * Сдвинуть чанк на следующий этап повторения. Состояние берется из {@link ChunkCache},
+     * изменение выполняется запросом без загрузки сущности
+     *
+     * @param id
+     * @return
+     */
+    @Transactional
+    public Response markRepeated(UUID id) {
+        Optional<ChunkState> maybeState = chunkCache.getStates(Collections.singletonList(id), this::loadStates)
+                .stream()
+                .findFirst();
+        ChunkState state;
+        if (maybeState.isPresent() && !(state = maybeState.get()).getNextRepeatDate().isAfter(LocalDate.now())) {
+            //на этапе YEAR next() возвращает YEAR
+            RepeatInterval interval = state.getCurrentRepetitionInterval().next();
+            LocalDate nextRepeatDate = state.getNextRepeatDate().plus(interval.getPeriod());
+            chunkRepository.reschedule(Collections.singletonList(id), interval, nextRepeatDate);
+            ChunkDTO response = mapToResponse(id, interval, state.getPath());
+            dueIndex.put(id, state.getPath(), nextRepeatDate, false, Boolean.TRUE.equals(state.getActive()), response);
+            chunkCache.put(new ChunkState(id, state.getPath(), interval, nextRepeatDate, state.getActive(), false));
+            return response;
         } else {
             String message = String.join("", "Не удалось пометить чанк повторенным. Сущность найдена: ",
-                    Boolean.toString(maybeEntity.isPresent()),
+                    Boolean.toString(maybeState.isPresent()),
                     ", дата повторения: ",
-                    maybeEntity.map(ce -> ce.getNextRepeatDate().toString()).orElse("не известно"));
+                    maybeState.map(cs -> cs.getNextRepeatDate().toString()).orElse("не известно"));
             log.warn(message);
             return new UnaryResponse(message);
         }
@@ -135,38 +639,58 @@ public class ChunkService {
      * Установить дату следующего повторения на завтра и фазу на DAY
      *
      * @param uuids
+     * @return измененные чанки, не найденные пропускаются
      */
-    public List<ChunkEntity> dropRepetitionDay(List<UUID> uuids) {
-        List<ChunkEntity> chunkEntities = chunkRepository.findAllById(uuids).stream()
-                .map(ce -> {
-                    ce.setNextRepeatDate(LocalDate.now().plusDays(1));
-                    ce.setCurrentRepetitionInterval(DAY);
-                    ce.setMutated(false);
-                    return ce;
-                }).collect(Collectors.toList());
-        return chunkRepository.saveAll(chunkEntities);
-
+    @Transactional
+    public List<ChunkDTO> dropRepetitionDay(List<UUID> uuids) {
+        LocalDate tomorrow = LocalDate.now().plusDays(1);
+        for (int from = 0; from < uuids.size(); from += IN_BATCH_SIZE) {
+            chunkRepository.reschedule(uuids.subList(from, Math.min(from + IN_BATCH_SIZE, uuids.size())), DAY, tomorrow);
+        }
+        return reindex(uuids);
     }
 
     /**
      * Отметить чанк как не нужный для обновления
      *
      * @param uuids
-     * @return
+     * @return измененные чанки, не найденные пропускаются
      */
-    public List<ChunkEntity> unmutate(List<UUID> uuids) {
-        List<ChunkEntity> chunkEntities = chunkRepository.findAllById(uuids).stream()
-                .map(ce -> ce.setMutated(false))
-                .collect(Collectors.toList());
-        return chunkRepository.saveAll(chunkEntities);
+    @Transactional
+    public List<ChunkDTO> unmutate(List<UUID> uuids) {
+        for (int from = 0; from < uuids.size(); from += IN_BATCH_SIZE) {
+            chunkRepository.unmutateAll(uuids.subList(from, Math.min(from + IN_BATCH_SIZE, uuids.size())));
+        }
+        return reindex(uuids);
+    }
+
+    /**
+     * Перечитать чанки, измененные запросом, и обновить их в индексе на повторение
+     */
+    private List<ChunkDTO> reindex(List<UUID> uuids) {
+        List<ChunkDTO> changed = new ArrayList<>(uuids.size());
+        for (int from = 0; from < uuids.size(); from += IN_BATCH_SIZE) {
+            for (ChunkView chunk : chunkRepository.findViewsByIdIn(uuids.subList(from, Math.min(from + IN_BATCH_SIZE, uuids.size())))) {
+                ChunkDTO dto = chunk.toResponse();
+                dueIndex.put(chunk.getId(), chunk.getPath(), chunk.getNextRepeatDate(),
+                        Boolean.TRUE.equals(chunk.getMutated()), Boolean.TRUE.equals(chunk.getActive()), dto);
+                chunkCache.put(new ChunkState(chunk.getId(), chunk.getPath(), chunk.getCurrentRepetitionInterval(),
+                        chunk.getNextRepeatDate(), chunk.getActive(), chunk.getMutated()));
+                changed.add(dto);
+            }
+        }
+        return changed;
     }
 
     /**
+     * Транзакция открывается здесь: вызовы dropRepetitionDay и unmutate внутри сервиса идут мимо прокси
+     *
      * @param dropRequired
      * @param rawUuids
      * @return
      */
-    public List<ChunkEntity> dropOrUnmutate(Boolean dropRequired, List<String> rawUuids) {
+    @Transactional
+    public List<ChunkDTO> dropOrUnmutate(Boolean dropRequired, List<String> rawUuids) {
         List<UUID> uuids = rawUuids.stream()
                 .map(UUID::fromString).collect(Collectors.toList());
         return dropRequired ? dropRepetitionDay(uuids) : unmutate(uuids);
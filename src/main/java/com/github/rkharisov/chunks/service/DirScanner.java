@@ -0,0 +1,359 @@
+package com.github.rkharisov.chunks.service;
+
+import com.github.rkharisov.chunks.hash.FileDigest;
+import com.github.rkharisov.chunks.model.entity.Fingerprint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Первичное сканирование каталога с картами.
+ *
+ * - Файлы, отпечаток которых совпадает с сохраненным в базе, не читаются
+ * - Обход каталогов распределяется по ForkJoinPool, каждый каталог - отдельная задача
+ * - Найденные файлы хешируются на ограниченном пуле потоков. Когда очередь пула заполнена,
+ * хеширует сам обходящий поток, поэтому обход не убегает вперед
+ * - Готовые хеши сохраняются вызывающим потоком пачками, каждая пачка - одна транзакция
+ * - Каталог верхнего уровня, все файлы которого сохранены, отмечается в {@link EventJournal}. Прерванное
+ * остановкой сканирование после перезапуска пропускает отмеченные каталоги, а после окончания сверяет их
+ * с базой в фоне через {@link Reconciler}: за время остановки в них могли появиться изменения
+ * - С chunks.scan.recentFirst из найденных, но еще не хешированных файлов первым хешируется самый свежий: карты,
+ * с которыми сейчас работают, попадают в базу раньше. Хеширование при этом идет вместе с обходом
+ */
+@Service
+public class DirScanner {
+
+    private static final Logger log = LoggerFactory.getLogger(DirScanner.class);
+
+    private static final long REPORT_INTERVAL = TimeUnit.SECONDS.toNanos(10);
+
+    @Autowired
+    private ChunkService chunkService;
+
+    @Autowired
+    private WatchedRoots watchedRoots;
+
+    @Autowired
+    private EventJournal eventJournal;
+
+    @Autowired
+    private Reconciler reconciler;
+
+    /**
+     * Число потоков обхода каталогов, 0 - по числу процессоров
+     */
+    @Value("${chunks.scan.parallelism:0}")
+    private int parallelism;
+
+    /**
+     * Число потоков хеширования, 0 - по числу процессоров
+     */
+    @Value("${chunks.scan.hashThreads:0}")
+    private int hashThreads;
+
+    @Value("${chunks.scan.queueCapacity:1000}")
+    private int queueCapacity;
+
+    @Value("${chunks.scan.batchSize:200}")
+    private int batchSize;
+
+    /**
+     * Хешировать измененные файлы от новых к старым
+     */
+    @Value("${chunks.scan.recentFirst:false}")
+    private boolean recentFirst;
+
+    /**
+     * Рекурсивно добавить все файлы каталога
+     *
+     * @param root
+     * @return
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public ScanStats scan(Path root) throws IOException, InterruptedException {
+        ScanStats stats = new ScanStats(root);
+        scan(stats);
+        return stats;
+    }
+
+    /**
+     * Рекурсивно добавить все файлы каталога stats.getRoot(), счетчики видны во время сканирования
+     *
+     * @param stats
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public void scan(ScanStats stats) throws IOException, InterruptedException {
+        Path root = stats.getRoot();
+        ForkJoinPool walkPool = new ForkJoinPool(threads(parallelism));
+        int hashPoolSize = threads(hashThreads);
+        ThreadPoolExecutor hashPool = new ThreadPoolExecutor(hashPoolSize, hashPoolSize, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), new ThreadPoolExecutor.CallerRunsPolicy());
+        Set<Path> resumed = eventJournal.startScan(root);
+        if (!resumed.isEmpty()) {
+            log.info("Продолжаю прерванное сканирование {}, пропускаю завершенных каталогов: {}", root, resumed.size());
+        }
+        try {
+            Scan scan = new Scan(chunkService.getActiveFingerprints(), hashPool, stats, resumed);
+            scan.visited.add(dirKey(root, Files.readAttributes(root, BasicFileAttributes.class)));
+            //задача обхода завершается, когда все найденные файлы переданы на хеширование
+            ForkJoinTask<?> walk = walkPool.submit(() -> new WalkTask(root, null, scan).invoke());
+            persist(walk, scan);
+        } finally {
+            walkPool.shutdownNow();
+            hashPool.shutdownNow();
+            stats.finish();
+        }
+        eventJournal.scanDone(root);
+        log.info("Сканирование завершено {}", stats);
+        for (Path dir : resumed) {
+            reconciler.reconcile(dir);
+        }
+    }
+
+    /**
+     * На каждый отложенный файл ставится одна задача, поэтому файл для нее всегда есть
+     */
+    private void hashNewest(Scan scan) {
+        Candidate candidate = scan.candidates.poll();
+        if (candidate != null) hash(candidate.file, candidate.fingerprint, candidate.topDir, scan);
+    }
+
+    private void hash(Path file, Fingerprint fingerprint, Path topDir, Scan scan) {
+        try {
+            watchedRoots.throttle(file);
+            scan.digests.put(chunkService.digest(file, fingerprint));
+            scan.stats.onHashed();
+        } catch (IOException e) {
+            scan.stats.onError();
+            scan.onFileDone(topDir);
+            log.error("{}: {}", file, e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void persist(ForkJoinTask<?> walk, Scan scan) throws InterruptedException {
+        BlockingQueue<FileDigest> digests = scan.digests;
+        ThreadPoolExecutor hashPool = scan.hashPool;
+        ScanStats stats = scan.stats;
+        List<FileDigest> batch = new ArrayList<>(batchSize);
+        long reportAt = System.nanoTime() + REPORT_INTERVAL;
+        while (true) {
+            FileDigest next = digests.poll(100, TimeUnit.MILLISECONDS);
+            if (next != null) {
+                batch.add(next);
+                digests.drainTo(batch, batchSize - batch.size());
+                if (batch.size() >= batchSize) {
+                    flush(batch, scan);
+                }
+            } else if (walk.isDone() && !hashPool.isShutdown()) {
+                hashPool.shutdown();
+            } else if (hashPool.isTerminated() && digests.isEmpty()) {
+                break;
+            }
+            if (System.nanoTime() > reportAt) {
+                log.info("Сканирование {}", stats);
+                reportAt = System.nanoTime() + REPORT_INTERVAL;
+            }
+        }
+        flush(batch, scan);
+    }
+
+    private void flush(List<FileDigest> batch, Scan scan) {
+        if (batch.isEmpty()) return;
+        ScanStats stats = scan.stats;
+        try {
+            chunkService.applyAll(batch);
+            stats.onPersisted(batch.size());
+        } catch (IOException | RuntimeException e) {
+            log.warn("Не удалось сохранить пачку из {} файлов одной транзакцией, сохраняю по одному: {}", batch.size(), e.getMessage());
+            for (FileDigest fileDigest : batch) {
+                try {
+                    chunkService.apply(fileDigest);
+                    stats.onPersisted(1);
+                } catch (IOException | RuntimeException ex) {
+                    stats.onError();
+                    log.error("{}: {}", fileDigest.getPath(), ex.getMessage());
+                }
+            }
+        }
+        for (FileDigest fileDigest : batch) {
+            scan.onFileDone(scan.topDirOf(fileDigest.getPath()));
+        }
+        batch.clear();
+    }
+
+    private static int threads(int configured) {
+        return configured > 0 ? configured : Runtime.getRuntime().availableProcessors();
+    }
+
+    private static Object dirKey(Path dir, BasicFileAttributes attrs) throws IOException {
+        return attrs.fileKey() != null ? attrs.fileKey() : dir.toRealPath();
+    }
+
+    private static boolean isMap(Path path) {
+        return path.getFileName().toString().endsWith(MapDirWatcher.MAP_SUFFIX);
+    }
+
+    /**
+     * Общее состояние одного сканирования
+     */
+    private class Scan {
+
+        private final Map<String, Fingerprint> known;
+        private final ThreadPoolExecutor hashPool;
+        private final ScanStats stats;
+        private final Set<Object> visited = ConcurrentHashMap.newKeySet();
+        private final BlockingQueue<FileDigest> digests = new ArrayBlockingQueue<>(queueCapacity);
+        /**
+         * Каталоги верхнего уровня, завершенные прерванным сканированием
+         */
+        private final Set<Path> resumed;
+        /**
+         * Незавершенная работа по каталогу верхнего уровня: обход и файлы, которые еще не сохранены
+         */
+        private final Map<Path, AtomicInteger> outstanding = new ConcurrentHashMap<>();
+        /**
+         * Найденные измененные файлы при chunks.scan.recentFirst, первым выбирается самый свежий
+         */
+        private final PriorityBlockingQueue<Candidate> candidates = new PriorityBlockingQueue<>(11,
+                Comparator.comparing((Candidate candidate) -> candidate.fingerprint.getLastModified()).reversed());
+
+        private Scan(Map<String, Fingerprint> known, ThreadPoolExecutor hashPool, ScanStats stats, Set<Path> resumed) {
+            this.known = known;
+            this.hashPool = hashPool;
+            this.stats = stats;
+            this.resumed = resumed;
+        }
+
+        /**
+         * @param path
+         * @return каталог верхнего уровня, в котором лежит файл, null - файл лежит в самом сканируемом каталоге
+         */
+        private Path topDirOf(Path path) {
+            Path root = stats.getRoot();
+            if (root.equals(path.getParent())) return null;
+            return root.resolve(root.relativize(path).getName(0));
+        }
+
+        private void onFileStarted(Path topDir) {
+            if (topDir != null) outstanding.get(topDir).incrementAndGet();
+        }
+
+        private void onFileDone(Path topDir) {
+            if (topDir != null && outstanding.get(topDir).decrementAndGet() == 0) {
+                eventJournal.scanDirDone(stats.getRoot(), topDir);
+            }
+        }
+    }
+
+    /**
+     * Обход одного каталога: вложенные каталоги обходятся параллельно, файлы отправляются на хеширование
+     */
+    private class WalkTask extends RecursiveAction {
+
+        private final Path dir;
+        /**
+         * Каталог верхнего уровня, в котором идет обход, null - обход самого сканируемого каталога
+         */
+        private final Path topDir;
+        private final Scan scan;
+
+        private WalkTask(Path dir, Path topDir, Scan scan) {
+            this.dir = dir;
+            this.topDir = topDir;
+            this.scan = scan;
+        }
+
+        @Override
+        protected void compute() {
+            List<WalkTask> subTasks = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                for (Path entry : entries) {
+                    try {
+                        visit(entry, subTasks);
+                    } catch (IOException e) {
+                        scan.stats.onError();
+                        log.error("{}: {}", entry, e.getMessage());
+                    }
+                }
+            } catch (IOException e) {
+                scan.stats.onError();
+                log.error("Не удалось прочитать каталог {}: {}", dir, e.getMessage());
+            }
+            invokeAll(subTasks);
+            //обход каталога верхнего уровня закончен, осталось дождаться сохранения его файлов
+            if (dir.equals(topDir)) scan.onFileDone(topDir);
+        }
+
+        private void visit(Path entry, List<WalkTask> subTasks) throws IOException {
+            //ссылки на каталоги обходятся, как и раньше, но каждый каталог только один раз
+            BasicFileAttributes attrs = Files.readAttributes(entry, BasicFileAttributes.class);
+            if (attrs.isDirectory()) {
+                if (topDir != null) {
+                    if (scan.visited.add(dirKey(entry, attrs))) subTasks.add(new WalkTask(entry, topDir, scan));
+                } else if (scan.resumed.contains(entry)) {
+                    log.debug("Каталог {} просмотрен до остановки, пропускаю", entry);
+                } else if (scan.visited.add(dirKey(entry, attrs))) {
+                    scan.outstanding.put(entry, new AtomicInteger(1));
+                    subTasks.add(new WalkTask(entry, entry, scan));
+                }
+            } else if (isMap(entry)) {
+                scan.stats.onSeen();
+                Fingerprint fingerprint = Fingerprint.of(attrs);
+                if (fingerprint.equals(scan.known.get(entry.toString()))) {
+                    scan.stats.onUnchanged();
+                } else {
+                    scan.onFileStarted(topDir);
+                    if (recentFirst) {
+                        scan.candidates.add(new Candidate(entry, fingerprint, topDir));
+                        scan.hashPool.execute(() -> hashNewest(scan));
+                    } else {
+                        scan.hashPool.execute(() -> hash(entry, fingerprint, topDir, scan));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Измененный файл, ожидающий хеширования
+     */
+    private static class Candidate {
+
+        private final Path file;
+        private final Fingerprint fingerprint;
+        private final Path topDir;
+
+        private Candidate(Path file, Fingerprint fingerprint, Path topDir) {
+            this.file = file;
+            this.fingerprint = fingerprint;
+            this.topDir = topDir;
+        }
+    }
+}
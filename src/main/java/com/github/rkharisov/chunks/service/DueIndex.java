@@ -0,0 +1,272 @@
+package com.github.rkharisov.chunks.service;
+
+import com.github.rkharisov.Utils;
+import com.github.rkharisov.chunks.model.entity.ChunkEntity;
+import com.github.rkharisov.chunks.model.projection.ChunkView;
+import com.github.rkharisov.chunks.model.response.ChunkDTO;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+/**
+ * Индекс активных чанков в памяти: корзины по дате следующего повторения и отдельное множество измененных.
+ * Отвечает на запрос чанков на сегодня без обращения к базе.
+ *
+ * Изменения применяются после фиксации транзакции, в которой они сделаны, поэтому откаченные изменения в индекс
+ * не попадают. Индекс строится заново из базы при старте и в полночь
+ */
+@Component
+public class DueIndex {
+
+    public static final String REPEAT = "repeat";
+    public static final String MUTATED = "mutated";
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final Map<UUID, Entry> entries = new HashMap<>();
+    private final NavigableMap<LocalDate, Set<UUID>> byDate = new TreeMap<>();
+    private final NavigableMap<String, UUID> byPath = new TreeMap<>();
+    private final Set<UUID> mutated = new LinkedHashSet<>();
+
+    private volatile boolean ready;
+
+    /**
+     * Версия содержимого, увеличивается каждым примененным изменением и перестроением
+     */
+    private volatile long version;
+
+    /**
+     * Индекс построен и может отвечать вместо базы
+     *
+     * @return
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Чанки, время повторения которых наступило к дню, и измененные чанки
+     *
+     * @param day
+     * @return
+     */
+    public Map<String, List<ChunkDTO>> getActivities(LocalDate day) {
+        lock.readLock().lock();
+        try {
+            List<ChunkDTO> repeat = new ArrayList<>();
+            for (Set<UUID> ids : byDate.headMap(day, true).values()) {
+                for (UUID id : ids) {
+                    repeat.add(entries.get(id).dto);
+                }
+            }
+            List<ChunkDTO> changed = new ArrayList<>(mutated.size());
+            for (UUID id : mutated) {
+                changed.add(entries.get(id).dto);
+            }
+            Map<String, List<ChunkDTO>> activities = new HashMap<>();
+            activities.put(REPEAT, repeat);
+            activities.put(MUTATED, changed);
+            return activities;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Есть активные чанки внутри каталога
+     *
+     * @param dir
+     * @return
+     */
+    public boolean hasPathsUnder(String dir) {
+        lock.readLock().lock();
+        try {
+            return !byPath.subMap(Utils.childrenFrom(dir), Utils.childrenTo(dir)).isEmpty();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Сохраненное состояние чанка. Неактивный чанк удаляется из индекса
+     *
+     * @param chunk
+     * @param dto
+     */
+    public void put(ChunkEntity chunk, ChunkDTO dto) {
+        //сущность изменяемая, поэтому состояние снимается сразу, а не после фиксации
+        put(chunk.getId(), chunk.getPath(), chunk.getNextRepeatDate(), Boolean.TRUE.equals(chunk.getMutated()),
+                Boolean.TRUE.equals(chunk.getActive()), dto);
+    }
+
+    /**
+     * Состояние чанка, измененного запросом без загрузки сущности
+     *
+     * @param id
+     * @param path
+     * @param nextRepeatDate
+     * @param mutated
+     * @param active
+     * @param dto
+     */
+    public void put(UUID id, String path, LocalDate nextRepeatDate, boolean mutated, boolean active, ChunkDTO dto) {
+        Entry entry = new Entry(id, path, nextRepeatDate, mutated, dto);
+        afterCommit(() -> {
+            remove(entry.id);
+            if (active) add(entry);
+        });
+    }
+
+    /**
+     * Чанки с путями деактивированы
+     *
+     * @param paths
+     */
+    public void removePaths(Collection<String> paths) {
+        List<String> removed = new ArrayList<>(paths);
+        afterCommit(() -> {
+            for (String path : removed) {
+                UUID id = byPath.get(path);
+                if (id != null) remove(id);
+            }
+        });
+    }
+
+    /**
+     * Чанки с путями из диапазона [from, to) деактивированы
+     *
+     * @param from
+     * @param to
+     */
+    public void removeRange(String from, String to) {
+        afterCommit(() -> {
+            for (UUID id : new ArrayList<>(byPath.subMap(from, to).values())) {
+                remove(id);
+            }
+        });
+    }
+
+    /**
+     * Чанки каталога перенесены в другой каталог. Имя файла при этом не меняется, поэтому меняется только путь
+     *
+     * @param fromDir
+     * @param toDir
+     */
+    public void movePrefix(String fromDir, String toDir) {
+        afterCommit(() -> {
+            String from = Utils.childrenFrom(fromDir);
+            for (UUID id : new ArrayList<>(byPath.subMap(from, Utils.childrenTo(fromDir)).values())) {
+                Entry entry = entries.get(id);
+                String path = toDir + entry.path.substring(fromDir.length());
+                ChunkDTO dto = new ChunkDTO(entry.dto.name, id, entry.dto.currentRepetitionInterval, path);
+                remove(id);
+                add(new Entry(id, path, entry.nextRepeatDate, entry.mutated, dto));
+            }
+        });
+    }
+
+    /**
+     * Построить индекс заново. Загрузка идет под блокировкой записи, поэтому изменения,
+     * зафиксированные во время загрузки, применяются уже к новому индексу
+     *
+     * @param activeChunks загрузка активных чанков из базы
+     * @return количество чанков в индексе
+     */
+    public int rebuild(Supplier<List<ChunkView>> activeChunks) {
+        lock.writeLock().lock();
+        try {
+            entries.clear();
+            byDate.clear();
+            byPath.clear();
+            mutated.clear();
+            for (ChunkView chunk : activeChunks.get()) {
+                add(new Entry(chunk.getId(), chunk.getPath(), chunk.getNextRepeatDate(),
+                        Boolean.TRUE.equals(chunk.getMutated()), chunk.toResponse()));
+            }
+            version++;
+            ready = true;
+            return entries.size();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void afterCommit(Runnable change) {
+        Runnable locked = () -> {
+            lock.writeLock().lock();
+            try {
+                change.run();
+                version++;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        };
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    locked.run();
+                }
+            });
+        } else {
+            locked.run();
+        }
+    }
+
+    private void add(Entry entry) {
+        entries.put(entry.id, entry);
+        if (entry.nextRepeatDate != null) {
+            byDate.computeIfAbsent(entry.nextRepeatDate, date -> new HashSet<>()).add(entry.id);
+        }
+        if (entry.path != null) byPath.put(entry.path, entry.id);
+        if (entry.mutated) mutated.add(entry.id);
+    }
+
+    private void remove(UUID id) {
+        Entry entry = entries.remove(id);
+        if (entry == null) return;
+        if (entry.nextRepeatDate != null) {
+            Set<UUID> ids = byDate.get(entry.nextRepeatDate);
+            ids.remove(id);
+            if (ids.isEmpty()) byDate.remove(entry.nextRepeatDate);
+        }
+        if (entry.path != null) byPath.remove(entry.path, id);
+        mutated.remove(id);
+    }
+
+    private static class Entry {
+        private final UUID id;
+        private final String path;
+        private final LocalDate nextRepeatDate;
+        private final boolean mutated;
+        private final ChunkDTO dto;
+
+        private Entry(UUID id, String path, LocalDate nextRepeatDate, boolean mutated, ChunkDTO dto) {
+            this.id = id;
+            this.path = path;
+            this.nextRepeatDate = nextRepeatDate;
+            this.mutated = mutated;
+            this.dto = dto;
+        }
+    }
+}
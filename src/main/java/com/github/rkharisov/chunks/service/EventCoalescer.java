@@ -0,0 +1,493 @@
+package com.github.rkharisov.chunks.service;
+
+import com.github.rkharisov.chunks.hash.FileDigest;
+import com.github.rkharisov.chunks.metrics.IngestMetrics;
+import com.github.rkharisov.chunks.model.entity.Fingerprint;
+import com.github.rkharisov.chunks.model.enums.ChangeKind;
+import com.github.rkharisov.chunks.model.projection.PathFingerprint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import static com.github.rkharisov.chunks.model.enums.ChangeKind.DELETED;
+
+/**
+ * Склеивает события наблюдателя по пути файла.
+ *
+ * Редактор при сохранении карты присылает пачку событий удаления и создания. События по одному пути копятся,
+ * пока по нему не наступит тишина в течение quietWindowMs, от них остается только итоговое изменение.
+ * Готовые изменения делятся по каталогам верхнего уровня внутри наблюдаемых каталогов. Изменения одного такого каталога
+ * применяются одной транзакцией и строго по очереди, разных каталогов - параллельно, см. {@link StripedExecutor}.
+ * Поток наблюдателя только выбирает события и не ждет хеширования и базы.
+ *
+ * Переименование приходит удалением старого пути и созданием нового. Удаление ждет дольше, renameWindowMs:
+ * если за это время создан файл с тем же содержимым, чанк просто получает новый путь, а ожидающее удаление
+ * отбрасывается без деактивации. Так же переносится каталог целиком, см. {@link #submitDir(Path)}
+ *
+ * Каждое событие записывается в {@link EventJournal} и отмечается там после применения.
+ * При старте события, не примененные до остановки, ставятся в очередь заново
+ */
+@Service
+public class EventCoalescer {
+
+    private static final Logger log = LoggerFactory.getLogger(EventCoalescer.class);
+
+    @Autowired
+    private ChunkService chunkService;
+
+    @Value("${chunks.events.quietWindowMs:500}")
+    private long quietWindowMs;
+
+    /**
+     * Изменение применяется не позже этого срока, даже если события по файлу продолжают приходить
+     */
+    @Value("${chunks.events.maxDelayMs:5000}")
+    private long maxDelayMs;
+
+    /**
+     * Сколько удаление ждет создания файла с тем же содержимым
+     */
+    @Value("${chunks.events.renameWindowMs:2000}")
+    private long renameWindowMs;
+
+    @Autowired
+    private WatchedRoots watchedRoots;
+
+    @Autowired
+    private IngestMetrics ingestMetrics;
+
+    @Autowired
+    private EventJournal eventJournal;
+
+    @Autowired
+    private DueIndex dueIndex;
+
+    /**
+     * Число потоков применения изменений, 0 - по числу процессоров. Не используется, если доступны виртуальные потоки
+     */
+    @Value("${chunks.events.threads:0}")
+    private int threads;
+
+    /**
+     * Число полос: каталоги верхнего уровня с разными полосами обрабатываются параллельно
+     */
+    @Value("${chunks.events.stripes:16}")
+    private int stripes;
+
+    @Value("${chunks.events.virtualThreads:true}")
+    private boolean virtualThreads;
+
+    private final Map<Path, PendingChange> pending = new ConcurrentHashMap<>();
+    /**
+     * Номер последнего принятого события
+     */
+    private final AtomicLong accepted = new AtomicLong();
+    /**
+     * Номера первых событий изменений, которые ждут склейки или применяются
+     */
+    private final Set<Long> unapplied = new ConcurrentSkipListSet<>();
+    /**
+     * Время в наносекундах для окон склейки, в тестах подменяется
+     */
+    private LongSupplier clock = System::nanoTime;
+    private ScheduledExecutorService flusher;
+    private StripedExecutor workers;
+
+    @PostConstruct
+    private void start() {
+        workers = new StripedExecutor("event-worker",
+                threads > 0 ? threads : Runtime.getRuntime().availableProcessors(), stripes, virtualThreads);
+        flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "event-coalescer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(10, quietWindowMs / 2);
+        flusher.scheduleWithFixedDelay(this::flushReady, period, period, TimeUnit.MILLISECONDS);
+        ingestMetrics.gauge("chunks.events.pending", "Пути, события по которым ожидают склейки", this::size);
+        ingestMetrics.gauge("chunks.events.inFlight", "Пачки изменений в очереди на применение", workers::size);
+        replay();
+    }
+
+    /**
+     * Заново поставить в очередь события, не примененные до остановки. Итог по пути определяется диском:
+     * за время остановки файл мог появиться или пропасть
+     */
+    private void replay() {
+        Map<Path, ChangeKind> unacknowledged = eventJournal.getUnacknowledged();
+        if (unacknowledged.isEmpty()) return;
+        for (Path path : unacknowledged.keySet()) {
+            submit(Files.exists(path) ? ChangeKind.CREATED : DELETED, path);
+        }
+        log.info("Из журнала повторно поставлено в очередь изменений: {}", unacknowledged.size());
+    }
+
+    @PreDestroy
+    private void stop() throws InterruptedException {
+        flusher.shutdown();
+        flusher.awaitTermination(maxDelayMs, TimeUnit.MILLISECONDS);
+        flush(true);
+        workers.shutdown(maxDelayMs);
+    }
+
+    public void submit(ChangeKind kind, Path path) {
+        long number = accepted.incrementAndGet();
+        PendingChange change = new PendingChange(kind, clock.getAsLong(), eventJournal.append(kind, path), number);
+        //номер отмечается до появления изменения в очереди, иначе сброс мог бы закончить его раньше отметки
+        unapplied.add(number);
+        if (pending.merge(path, change, PendingChange::then).first != number) unapplied.remove(number);
+    }
+
+    /**
+     * @return номер последнего принятого события, см. {@link #isAppliedThrough(long)}
+     */
+    public long getAccepted() {
+        return accepted.get();
+    }
+
+    /**
+     * Все события с номерами до mark включительно применены или отброшены. Применение могло не удаться,
+     * тогда событие остается в журнале. События, пришедшие позже, не учитываются
+     *
+     * @param mark номер из {@link #getAccepted()}
+     * @return
+     */
+    public boolean isAppliedThrough(long mark) {
+        Iterator<Long> oldest = unapplied.iterator();
+        return !oldest.hasNext() || oldest.next() > mark;
+    }
+
+    /**
+     * Число путей, изменения по которым еще не применены
+     *
+     * @return
+     */
+    public int size() {
+        return pending.size();
+    }
+
+    /**
+     * Число пачек изменений, поставленных на применение и еще не примененных
+     *
+     * @return
+     */
+    public int inFlight() {
+        return workers.size();
+    }
+
+    /**
+     * Новый каталог: перенесенный каталог переносится в базе целиком, см. {@link #tryMoveDir(Path, Map)},
+     * иначе его файлы карт ставятся в очередь как созданные. Сравнение и перенос идут в полосе каталога
+     * по очереди с его изменениями, поток наблюдателя не ждет базы
+     *
+     * @param dir созданный каталог
+     */
+    public void submitDir(Path dir) {
+        workers.execute(stripeKey(dir), () -> {
+            try {
+                Map<String, Fingerprint> files = listMaps(dir);
+                if (tryMoveDir(dir, files)) {
+                    log.debug("Каталог {} перенесен", dir);
+                    return;
+                }
+                for (String file : files.keySet()) {
+                    submit(ChangeKind.CREATED, Paths.get(file));
+                }
+            } catch (IOException | RuntimeException e) {
+                log.error("{}: {}", dir, e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Новый каталог - это перенесенный каталог, удаление которого еще ждет применения, если в нем те же файлы карт
+     * с теми же отпечатками. Тогда чанки переносятся одним запросом без чтения файлов, а удаление отбрасывается
+     *
+     * @param dir   созданный каталог
+     * @param files файлы карт каталога
+     * @return true, если каталог перенесен
+     */
+    private boolean tryMoveDir(Path dir, Map<String, Fingerprint> files) {
+        for (Map.Entry<Path, PendingChange> entry : pending.entrySet()) {
+            Path deleted = entry.getKey();
+            PendingChange change = entry.getValue();
+            if (change.kind != DELETED || deleted.startsWith(dir) || dir.startsWith(deleted)) continue;
+            //удален файл карты, а не каталог
+            if (deleted.getFileName().toString().endsWith(MapDirWatcher.MAP_SUFFIX)) continue;
+            //под удаленным путем нет активных чанков, база не нужна
+            if (dueIndex.isReady() && !dueIndex.hasPathsUnder(deleted.toString())) continue;
+            Map<String, PathFingerprint> stored = chunkService.getFingerprintsUnder(deleted);
+            //удален каталог без чанков
+            if (stored.isEmpty()) continue;
+            if (!sameFiles(deleted, stored, dir, files)) continue;
+            //удаление могли применить, пока сравнивались отпечатки
+            if (!pending.remove(deleted, change)) continue;
+            boolean moved = false;
+            try {
+                moved = chunkService.moveDir(deleted, dir, files.keySet());
+            } finally {
+                //пока удаление было вне очереди, по пути могло прийти новое событие, оно его заменяет
+                if (moved || pending.putIfAbsent(deleted, change) != null) unapplied.remove(change.first);
+            }
+            if (moved) {
+                eventJournal.ack(deleted, change.seq);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Отпечатки файлов карт внутри каталога. Читаются только метаданные
+     *
+     * @param dir
+     * @return
+     * @throws IOException
+     */
+    private Map<String, Fingerprint> listMaps(Path dir) throws IOException {
+        Map<String, Fingerprint> files = new HashMap<>();
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile() && file.getFileName().toString().endsWith(MapDirWatcher.MAP_SUFFIX)) {
+                    files.put(file.toString(), Fingerprint.of(attrs));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return files;
+    }
+
+    /**
+     * Активные чанки удаленного каталога и файлы нового каталога совпадают по относительным путям и отпечаткам
+     */
+    private static boolean sameFiles(Path deleted, Map<String, PathFingerprint> stored,
+                                     Path dir, Map<String, Fingerprint> files) {
+        String from = deleted.toString();
+        String to = dir.toString();
+        int active = 0;
+        for (PathFingerprint chunk : stored.values()) {
+            if (!Boolean.TRUE.equals(chunk.getActive())) continue;
+            active++;
+            Fingerprint fingerprint = files.get(to + chunk.getPath().substring(from.length()));
+            if (fingerprint == null || !fingerprint.equals(chunk.getFingerprint())) return false;
+        }
+        return active > 0 && active == files.size();
+    }
+
+    private void flushReady() {
+        try {
+            flush(false);
+        } catch (RuntimeException e) {
+            log.error("Не удалось применить изменения: {}", e.getMessage());
+        }
+    }
+
+    private void flush(boolean force) {
+        long now = clock.getAsLong();
+        long quietWindow = TimeUnit.MILLISECONDS.toNanos(quietWindowMs);
+        long maxDelay = TimeUnit.MILLISECONDS.toNanos(maxDelayMs);
+        long renameWindow = Math.max(quietWindow, TimeUnit.MILLISECONDS.toNanos(renameWindowMs));
+        Map<Path, Batch> batches = new HashMap<>();
+        for (Map.Entry<Path, PendingChange> entry : pending.entrySet()) {
+            PendingChange change = entry.getValue();
+            //удаление ждет парного создания дольше обычной тишины, но не дольше общего срока
+            long window = change.kind == DELETED ? renameWindow : quietWindow;
+            boolean ready = force
+                    || now - change.lastSeen >= window
+                    || now - change.firstSeen >= Math.max(maxDelay, window);
+            if (ready && pending.remove(entry.getKey(), change)) {
+                Batch batch = batches.computeIfAbsent(stripeKey(entry.getKey()), key -> new Batch());
+                (change.kind == DELETED ? batch.deleted : batch.created).add(entry.getKey());
+                batch.firstSeen.add(change.firstSeen);
+                batch.seqs.put(entry.getKey(), change.seq);
+                batch.firsts.add(change.first);
+            }
+        }
+        for (Map.Entry<Path, Batch> entry : batches.entrySet()) {
+            Batch batch = entry.getValue();
+            workers.execute(entry.getKey(), () -> {
+                try {
+                    Set<Path> failed = new HashSet<>();
+                    dropMoved(apply(batch.deleted, digest(batch.created, failed), failed));
+                    for (long firstSeen : batch.firstSeen) {
+                        ingestMetrics.onPersisted(firstSeen);
+                    }
+                    //неудавшиеся изменения остаются в журнале и повторяются после перезапуска
+                    batch.seqs.forEach((path, seq) -> {
+                        if (!failed.contains(path)) eventJournal.ack(path, seq);
+                    });
+                } catch (RuntimeException e) {
+                    log.error("Не удалось применить изменения {}: {}", entry.getKey(), e.getMessage());
+                } finally {
+                    unapplied.removeAll(batch.firsts);
+                }
+            });
+        }
+    }
+
+    /**
+     * Каталог верхнего уровня внутри наблюдаемого каталога, изменения в котором выполняются по очереди
+     *
+     * @param path
+     * @return
+     */
+    private Path stripeKey(Path path) {
+        Optional<WatchedRoot> root = watchedRoots.rootOf(path);
+        if (!root.isPresent() || path.equals(root.get().getPath())) return path;
+        Path mapDir = root.get().getPath();
+        return mapDir.resolve(mapDir.relativize(path).getName(0));
+    }
+
+    /**
+     * Удаления старых путей переименованных чанков, которые еще ждут своей очереди, уже учтены переименованием
+     *
+     * @param movedFrom
+     */
+    private void dropMoved(Set<Path> movedFrom) {
+        for (Path path : movedFrom) {
+            PendingChange change = pending.get(path);
+            if (change != null && change.kind == DELETED && pending.remove(path, change)) {
+                unapplied.remove(change.first);
+                eventJournal.ack(path, change.seq);
+            }
+        }
+    }
+
+    /**
+     * @param created
+     * @param failed сюда добавляются пути, которые не удалось прочитать
+     * @return хеши измененных файлов
+     */
+    private List<FileDigest> digest(List<Path> created, Set<Path> failed) {
+        List<FileDigest> digests = new ArrayList<>(created.size());
+        for (int i = 0; i < created.size(); i++) {
+            Path path = created.get(i);
+            //файл могли успеть удалить, тогда событие удаления уже в очереди
+            if (!Files.isRegularFile(path)) continue;
+            try {
+                watchedRoots.throttle(path);
+                Optional<FileDigest> digest = chunkService.digestIfChanged(path);
+                digest.ifPresent(digests::add);
+            } catch (IOException e) {
+                log.error("{}: {}", path, e.getMessage());
+                failed.add(path);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failed.addAll(created.subList(i, created.size()));
+                break;
+            }
+        }
+        return digests;
+    }
+
+    /**
+     * @param deleted
+     * @param digests
+     * @param failed сюда добавляются пути, изменения которых не удалось применить
+     * @return прежние пути переименованных чанков
+     */
+    private Set<Path> apply(List<Path> deleted, List<FileDigest> digests, Set<Path> failed) {
+        try {
+            Set<Path> movedFrom = chunkService.applyChanges(deleted, digests);
+            log.debug("Применено удалений {}, изменений {}, переименований {}",
+                    deleted.size() - movedFrom.size(), digests.size(), movedFrom.size());
+            return movedFrom;
+        } catch (IOException | RuntimeException e) {
+            log.warn("Не удалось применить изменения одной транзакцией, применяю по одному: {}", e.getMessage());
+            Set<Path> movedFrom = new HashSet<>();
+            for (FileDigest digest : digests) {
+                try {
+                    chunkService.apply(digest).ifPresent(movedFrom::add);
+                } catch (IOException | RuntimeException ex) {
+                    log.error("{}: {}", digest.getPath(), ex.getMessage());
+                    failed.add(digest.getPath());
+                }
+            }
+            for (Path path : deleted) {
+                if (movedFrom.contains(path)) continue;
+                try {
+                    chunkService.markInactive(path);
+                } catch (RuntimeException ex) {
+                    log.error("{}: {}", path, ex.getMessage());
+                    failed.add(path);
+                }
+            }
+            return movedFrom;
+        }
+    }
+
+    private static class Batch {
+
+        private final List<Path> deleted = new ArrayList<>();
+        private final List<Path> created = new ArrayList<>();
+        private final List<Long> firstSeen = new ArrayList<>();
+        /**
+         * Номер последней записи журнала по каждому пути пачки
+         */
+        private final Map<Path, Long> seqs = new HashMap<>();
+        /**
+         * Номера первых событий изменений пачки
+         */
+        private final List<Long> firsts = new ArrayList<>();
+    }
+
+    private static class PendingChange {
+
+        private final ChangeKind kind;
+        private final long firstSeen;
+        private final long lastSeen;
+        private final long seq;
+        /**
+         * Номер первого склеенного события, см. {@link #getAccepted()}
+         */
+        private final long first;
+
+        private PendingChange(ChangeKind kind, long seen, long seq, long first) {
+            this(kind, seen, seen, seq, first);
+        }
+
+        private PendingChange(ChangeKind kind, long firstSeen, long lastSeen, long seq, long first) {
+            this.kind = kind;
+            this.firstSeen = firstSeen;
+            this.lastSeen = lastSeen;
+            this.seq = seq;
+            this.first = first;
+        }
+
+        /**
+         * Итог двух изменений подряд определяется последним: удаление и создание - это замена файла,
+         * создание и удаление - удаление
+         */
+        private PendingChange then(PendingChange next) {
+            return new PendingChange(next.kind, firstSeen, next.lastSeen, Math.max(seq, next.seq), first);
+        }
+    }
+}
@@ -0,0 +1,426 @@
+package com.github.rkharisov.chunks.service;
+
+import com.github.rkharisov.chunks.model.enums.ChangeKind;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Журнал принятых событий наблюдателя и хода первичного сканирования, чтобы после перезапуска продолжить работу,
+ * а не начинать заново.
+ *
+ * - Журнал только дописывается. Запись: длина, CRC32 и содержимое. Оборванная при остановке запись в хвосте
+ * отбрасывается при открытии
+ * - Записи копятся в памяти и сбрасываются на диск с fsync раз в syncIntervalMs одной операцией,
+ * поэтому после сбоя могут потеряться события только за последний интервал
+ * - По каждому пути важно только последнее событие: отметка о применении снимает все события пути до нее
+ * - Сканирование отмечает начало, каждый завершенный каталог верхнего уровня и окончание.
+ * Прерванное сканирование продолжается с завершенных каталогов
+ * - Когда файл журнала разрастается, он в фоне переписывается только из непримененных событий и незавершенных
+ * сканирований
+ */
+@Service
+public class EventJournal {
+
+    private static final Logger log = LoggerFactory.getLogger(EventJournal.class);
+
+    private static final byte EVENT = 1;
+    private static final byte ACK = 2;
+    private static final byte SCAN_STARTED = 3;
+    private static final byte SCAN_DIR_DONE = 4;
+    private static final byte SCAN_DONE = 5;
+
+    /**
+     * Длина и CRC32 перед содержимым записи
+     */
+    private static final int HEADER_SIZE = 2 * Integer.BYTES;
+
+    @Value("${chunks.journal.enabled:true}")
+    private boolean enabled;
+
+    @Value("${chunks.journal.file:${webdav.workdir}/journal/events.journal}")
+    private String file;
+
+    @Value("${chunks.journal.syncIntervalMs:50}")
+    private long syncIntervalMs;
+
+    /**
+     * Размер файла, после которого журнал переписывается без отработанных записей
+     */
+    @Value("${chunks.journal.compactBytes:4194304}")
+    private long compactBytes;
+
+    private Path path;
+    private FileChannel channel;
+    private ScheduledExecutorService syncer;
+
+    /**
+     * Записи, еще не сброшенные на диск
+     */
+    private ByteArrayOutputStream unsynced = new ByteArrayOutputStream();
+    private long nextSeq = 1;
+    private long compactedSize;
+
+    /**
+     * Последнее непримененное событие по пути
+     */
+    private final Map<Path, Event> events = new HashMap<>();
+    /**
+     * Завершенные каталоги незаконченных сканирований по наблюдаемому каталогу
+     */
+    private final Map<Path, Set<Path>> scans = new HashMap<>();
+
+    @PostConstruct
+    void open() throws IOException {
+        if (!enabled) return;
+        path = Paths.get(file);
+        Files.createDirectories(path.toAbsolutePath().getParent());
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long valid = read();
+        if (valid < channel.size()) {
+            log.warn("Журнал {}: отброшено {} байт оборванной записи", path, channel.size() - valid);
+            channel.truncate(valid);
+        }
+        channel.position(valid);
+        compactedSize = valid;
+        log.info("Журнал {} открыт: непримененных событий {}, незавершенных сканирований {}",
+                path, events.size(), scans.size());
+
+        syncer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "event-journal");
+            thread.setDaemon(true);
+            return thread;
+        });
+        syncer.scheduleWithFixedDelay(this::syncQuietly, syncIntervalMs, syncIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    void close() throws IOException, InterruptedException {
+        if (!enabled) return;
+        syncer.shutdown();
+        syncer.awaitTermination(syncIntervalMs * 10, TimeUnit.MILLISECONDS);
+        sync();
+        channel.close();
+    }
+
+    /**
+     * Записать принятое событие
+     *
+     * @param kind
+     * @param path
+     * @return номер записи для {@link #ack(Path, long)}, 0 - журнал отключен
+     */
+    public synchronized long append(ChangeKind kind, Path path) {
+        if (!enabled) return 0;
+        long seq = nextSeq++;
+        events.put(path, new Event(seq, kind));
+        write(EVENT, out -> {
+            out.writeLong(seq);
+            out.writeByte(kind.ordinal());
+            out.writeUTF(path.toString());
+        });
+        return seq;
+    }
+
+    /**
+     * Отметить события пути до seq включительно примененными
+     *
+     * @param path
+     * @param seq
+     */
+    public synchronized void ack(Path path, long seq) {
+        if (!enabled || seq <= 0) return;
+        Event event = events.get(path);
+        if (event == null || event.seq > seq) return;
+        events.remove(path);
+        write(ACK, out -> {
+            out.writeLong(seq);
+            out.writeUTF(path.toString());
+        });
+    }
+
+    /**
+     * Непримененные события в порядке поступления
+     *
+     * @return
+     */
+    public synchronized Map<Path, ChangeKind> getUnacknowledged() {
+        Map<Path, ChangeKind> unacknowledged = new LinkedHashMap<>();
+        events.entrySet().stream()
+                .sorted(Comparator.comparingLong(entry -> entry.getValue().seq))
+                .forEach(entry -> unacknowledged.put(entry.getKey(), entry.getValue().kind));
+        return unacknowledged;
+    }
+
+    /**
+     * Начать сканирование каталога или продолжить прерванное
+     *
+     * @param root
+     * @return каталоги верхнего уровня, которые прерванное сканирование уже завершило
+     */
+    public synchronized Set<Path> startScan(Path root) {
+        if (!enabled) return Collections.emptySet();
+        Set<Path> done = scans.get(root);
+        if (done != null) return new HashSet<>(done);
+        scans.put(root, new HashSet<>());
+        write(SCAN_STARTED, out -> out.writeUTF(root.toString()));
+        return Collections.emptySet();
+    }
+
+    /**
+     * Все файлы каталога верхнего уровня просмотрены и сохранены
+     *
+     * @param root
+     * @param dir
+     */
+    public synchronized void scanDirDone(Path root, Path dir) {
+        if (!enabled) return;
+        Set<Path> done = scans.get(root);
+        if (done == null || !done.add(dir)) return;
+        write(SCAN_DIR_DONE, out -> {
+            out.writeUTF(root.toString());
+            out.writeUTF(dir.toString());
+        });
+    }
+
+    public synchronized void scanDone(Path root) {
+        if (!enabled || scans.remove(root) == null) return;
+        write(SCAN_DONE, out -> out.writeUTF(root.toString()));
+    }
+
+    private void syncQuietly() {
+        try {
+            sync();
+            if (channel.size() > compactBytes && channel.size() > 2 * compactedSize) compact();
+        } catch (IOException | RuntimeException e) {
+            log.error("Журнал {}: {}", path, e.getMessage());
+        }
+    }
+
+    /**
+     * Сбросить накопленные записи на диск одной записью и одним fsync. Выполняется только потоком журнала
+     * и при закрытии, поэтому записи в файл не перемешиваются
+     *
+     * @throws IOException
+     */
+    private void sync() throws IOException {
+        byte[] records;
+        synchronized (this) {
+            if (unsynced.size() == 0) return;
+            records = unsynced.toByteArray();
+            unsynced.reset();
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(records);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        channel.force(false);
+    }
+
+    /**
+     * Сбросить на диск запись каталога о перенесенном в него файле
+     *
+     * @param dir
+     */
+    private void forceDir(Path dir) {
+        try (FileChannel directory = FileChannel.open(dir, StandardOpenOption.READ)) {
+            directory.force(true);
+        } catch (IOException e) {
+            //Windows не открывает каталог как файл, там перенос сбрасывается самой файловой системой
+            log.debug("Журнал {}: не удалось сбросить каталог {}: {}", path, dir, e.getMessage());
+        }
+    }
+
+    /**
+     * Переписать журнал из текущего состояния: новый файл пишется рядом и заменяет старый переносом.
+     * Под блокировкой снимается только снимок состояния, запись и fsync идут без нее, и append/ack не ждут диска.
+     * Записи, добавленные после снимка, остаются в буфере и следующим {@link #sync()} попадают уже в новый файл.
+     * Как и sync, выполняется только потоком журнала, поэтому сжатия не пересекаются
+     *
+     * @throws IOException
+     */
+    private void compact() throws IOException {
+        long started = System.nanoTime();
+        long before = channel.size();
+        Path compacted = path.resolveSibling(path.getFileName() + ".compact");
+        ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+        synchronized (this) {
+            //записи, не попавшие на диск, уже отражены в состоянии
+            unsynced.reset();
+            for (Map.Entry<Path, Set<Path>> scan : scans.entrySet()) {
+                write(snapshot, SCAN_STARTED, out -> out.writeUTF(scan.getKey().toString()));
+                for (Path dir : scan.getValue()) {
+                    write(snapshot, SCAN_DIR_DONE, out -> {
+                        out.writeUTF(scan.getKey().toString());
+                        out.writeUTF(dir.toString());
+                    });
+                }
+            }
+            for (Map.Entry<Path, Event> event : events.entrySet()) {
+                write(snapshot, EVENT, out -> {
+                    out.writeLong(event.getValue().seq);
+                    out.writeByte(event.getValue().kind.ordinal());
+                    out.writeUTF(event.getKey().toString());
+                });
+            }
+        }
+        try (FileChannel written = FileChannel.open(compacted, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.wrap(snapshot.toByteArray());
+            while (buffer.hasRemaining()) {
+                written.write(buffer);
+            }
+            written.force(true);
+        }
+        channel.close();
+        Files.move(compacted, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        //без этого после сбоя запись каталога может указывать на старый файл, и все записанное после сжатия пропадет
+        forceDir(path.toAbsolutePath().getParent());
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+        compactedSize = channel.size();
+        log.info("Журнал {} сжат с {} до {} байт за {} мс", path, before, compactedSize,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+    }
+
+    /**
+     * Восстановить состояние из файла
+     *
+     * @return длина корректной части файла
+     * @throws IOException
+     */
+    private long read() throws IOException {
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (true) {
+            header.clear();
+            if (!readFully(header, position)) return position;
+            int length = header.getInt(0);
+            int crc = header.getInt(Integer.BYTES);
+            if (length <= 0 || position + HEADER_SIZE + length > channel.size()) return position;
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            if (!readFully(payload, position + HEADER_SIZE) || crc(payload.array()) != crc) return position;
+            try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload.array()))) {
+                apply(in);
+            } catch (EOFException | IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+                return position;
+            }
+            position += HEADER_SIZE + length;
+        }
+    }
+
+    private void apply(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case EVENT: {
+                long seq = in.readLong();
+                ChangeKind kind = ChangeKind.values()[in.readByte()];
+                events.put(Paths.get(in.readUTF()), new Event(seq, kind));
+                nextSeq = Math.max(nextSeq, seq + 1);
+                break;
+            }
+            case ACK: {
+                long seq = in.readLong();
+                Path path = Paths.get(in.readUTF());
+                Event event = events.get(path);
+                if (event != null && event.seq <= seq) events.remove(path);
+                break;
+            }
+            case SCAN_STARTED:
+                scans.put(Paths.get(in.readUTF()), new HashSet<>());
+                break;
+            case SCAN_DIR_DONE: {
+                Set<Path> done = scans.get(Paths.get(in.readUTF()));
+                Path dir = Paths.get(in.readUTF());
+                if (done != null) done.add(dir);
+                break;
+            }
+            case SCAN_DONE:
+                scans.remove(Paths.get(in.readUTF()));
+                break;
+            default:
+                throw new IllegalArgumentException("Неизвестный тип записи " + type);
+        }
+    }
+
+    private boolean readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Добавить запись в буфер, вызывается под блокировкой журнала
+     */
+    private void write(byte type, RecordWriter writer) {
+        write(unsynced, type, writer);
+    }
+
+    private static void write(ByteArrayOutputStream to, byte type, RecordWriter writer) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(type);
+            writer.write(out);
+            byte[] payload = bytes.toByteArray();
+            DataOutputStream record = new DataOutputStream(to);
+            record.writeInt(payload.length);
+            record.writeInt(crc(payload));
+            record.write(payload);
+        } catch (IOException e) {
+            //запись в память не бросает IOException
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static int crc(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        return (int) crc.getValue();
+    }
+
+    private interface RecordWriter {
+
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private static class Event {
+
+        private final long seq;
+        private final ChangeKind kind;
+
+        private Event(long seq, ChangeKind kind) {
+            this.seq = seq;
+            this.kind = kind;
+        }
+    }
+}
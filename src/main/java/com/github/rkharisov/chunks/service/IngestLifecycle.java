@@ -0,0 +1,134 @@
+package com.github.rkharisov.chunks.service;
+
+import com.github.rkharisov.chunks.model.enums.IngestState;
+import com.github.rkharisov.chunks.model.enums.RootState;
+import com.github.rkharisov.chunks.model.response.IngestStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Состояние приема карт после запуска: {@link IngestState#SCANNING} - {@link IngestState#CATCHING_UP} - {@link IngestState#LIVE}.
+ *
+ * - API отвечает сразу, сканирование идет в фоне. Пока прием не дошел до LIVE, ответы могут быть неполными
+ * - Состояние вычисляется по наблюдаемым каталогам и очередям изменений и только растет: после LIVE всплеск
+ * событий не возвращает прием назад
+ * - Когда сканирование закончено, запоминаются номера последнего принятого события и последней сверки.
+ * LIVE наступает, когда применено все до них: события, пришедшие позже, уже обычная работа, и при непрерывных
+ * изменениях прием не остается в CATCHING_UP навсегда
+ * - Каталог, наблюдение за которым остановлено ошибкой, не задерживает прием
+ */
+@Service
+public class IngestLifecycle {
+
+    private static final Logger log = LoggerFactory.getLogger(IngestLifecycle.class);
+
+    @Autowired
+    private WatchedRoots watchedRoots;
+
+    @Autowired
+    private EventCoalescer eventCoalescer;
+
+    @Autowired
+    private Reconciler reconciler;
+
+    private final AtomicReference<IngestState> state = new AtomicReference<>(IngestState.SCANNING);
+    /**
+     * Очереди на момент окончания сканирования
+     */
+    private final AtomicReference<Backlog> backlog = new AtomicReference<>();
+
+    public IngestState getState() {
+        IngestState current = state.get();
+        if (current == IngestState.LIVE) return current;
+        IngestState next = evaluate();
+        if (next.compareTo(current) > 0 && state.compareAndSet(current, next)) {
+            log.info("Прием карт: {} -> {}", current, next);
+        }
+        return state.get();
+    }
+
+    /**
+     * Переходы отмечаются в логе и без запросов к API
+     */
+    @Scheduled(fixedDelay = 1000)
+    void check() {
+        getState();
+    }
+
+    public IngestStatus getStatus() {
+        IngestState state = getState();
+        long seen = 0, unchanged = 0, hashed = 0, persisted = 0, errors = 0;
+        double filesPerSecond = 0;
+        Long eta = null;
+        for (WatchedRoot root : watchedRoots.getRoots()) {
+            ScanStats scan = root.getScan();
+            if (scan == null) continue;
+            seen += scan.getFilesSeen();
+            unchanged += scan.getFilesUnchanged();
+            hashed += scan.getFilesHashed();
+            persisted += scan.getFilesPersisted();
+            errors += scan.getErrors();
+            filesPerSecond += scan.getFilesPerSecond();
+            if (root.getState() == RootState.SCANNING) {
+                //каталоги сканируются параллельно, сканирование закончится вместе с самым долгим
+                Long rootEta = eta(scan);
+                if (rootEta != null && (eta == null || rootEta > eta)) eta = rootEta;
+            }
+        }
+        return new IngestStatus(state, seen, unchanged, hashed, persisted, errors, filesPerSecond, eta,
+                eventCoalescer.size(), eventCoalescer.inFlight(), reconciler.getQueued(), watchedRoots.getStatus());
+    }
+
+    private IngestState evaluate() {
+        for (WatchedRoot root : watchedRoots.getRoots()) {
+            RootState rootState = root.getState();
+            if (rootState == RootState.STARTING || rootState == RootState.SCANNING) return IngestState.SCANNING;
+        }
+        if (backlog.get() == null
+                && backlog.compareAndSet(null, new Backlog(eventCoalescer.getAccepted(), reconciler.getRequested()))) {
+            log.info("Сканирование закончено, к применению событий {}, сверок {}",
+                    eventCoalescer.size(), reconciler.getQueued());
+        }
+        Backlog captured = backlog.get();
+        if (!eventCoalescer.isAppliedThrough(captured.events) || !reconciler.isDoneThrough(captured.reconciles)) {
+            return IngestState.CATCHING_UP;
+        }
+        return IngestState.LIVE;
+    }
+
+    /**
+     * Оставшиеся найденные файлы по скорости сохранения
+     *
+     * @param scan
+     * @return секунд, null - еще ничего не сохранено
+     */
+    private static Long eta(ScanStats scan) {
+        long persisted = scan.getFilesPersisted();
+        long elapsed = scan.getElapsedMillis();
+        if (persisted == 0 || elapsed == 0) return null;
+        long remaining = scan.getFilesSeen() - scan.getFilesUnchanged() - persisted - scan.getErrors();
+        return Math.max(0, remaining) * elapsed / persisted / 1000;
+    }
+
+    private static class Backlog {
+
+        /**
+         * Номер последнего принятого события, см. {@link EventCoalescer#getAccepted()}
+         */
+        private final long events;
+        /**
+         * Номер последней поставленной сверки, см. {@link Reconciler#getRequested()}
+         */
+        private final long reconciles;
+
+        private Backlog(long events, long reconciles) {
+            this.events = events;
+            this.reconciles = reconciles;
+        }
+    }
+}
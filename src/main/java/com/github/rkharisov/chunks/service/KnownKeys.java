@@ -0,0 +1,95 @@
+package com.github.rkharisov.chunks.service;
+
+import com.github.rkharisov.chunks.hash.BloomFilter;
+import com.github.rkharisov.chunks.hash.Murmur3Hasher;
+import com.github.rkharisov.chunks.model.projection.PathHash;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Фильтр известных путей и хешей чанков, в том числе неактивных.
+ * Отрицательный ответ точен, поэтому для нового файла запросы к базе по пути и по хешу не нужны.
+ * Пока фильтр не загружен, на любой ключ отвечает "возможно есть"
+ */
+@Component
+public class KnownKeys {
+
+    private static final ThreadLocal<Murmur3Hasher> HASHER = ThreadLocal.withInitial(Murmur3Hasher::new);
+
+    @Value("${chunks.filter.expectedKeys:100000}")
+    private long expectedKeys;
+
+    @Value("${chunks.filter.fpp:0.01}")
+    private double fpp;
+
+    private volatile BloomFilter paths;
+    private volatile BloomFilter digests;
+
+    /**
+     * Загрузить фильтр. Размер выбирается с запасом в два раза от текущего количества чанков
+     *
+     * @param known пути и хеши всех чанков
+     */
+    public void load(List<PathHash> known) {
+        long capacity = Math.max(expectedKeys, 2L * known.size());
+        BloomFilter loadedPaths = new BloomFilter(capacity, fpp);
+        BloomFilter loadedDigests = new BloomFilter(capacity, fpp);
+        for (PathHash pathHash : known) {
+            if (pathHash.getPath() != null) put(loadedPaths, pathKey(pathHash.getPath()));
+            if (pathHash.getHash() != null) put(loadedDigests, digestKey(pathHash.getHash()));
+        }
+        paths = loadedPaths;
+        digests = loadedDigests;
+    }
+
+    public boolean isLoaded() {
+        return paths != null;
+    }
+
+    public void add(String path, byte[] digest) {
+        BloomFilter paths = this.paths;
+        BloomFilter digests = this.digests;
+        if (paths == null) return;
+        if (path != null) put(paths, pathKey(path));
+        if (digest != null) put(digests, digestKey(digest));
+    }
+
+    public boolean mightContainPath(String path) {
+        BloomFilter paths = this.paths;
+        return paths == null || mightContain(paths, pathKey(path));
+    }
+
+    public boolean mightContainDigest(byte[] digest) {
+        BloomFilter digests = this.digests;
+        return digests == null || mightContain(digests, digestKey(digest));
+    }
+
+    private static void put(BloomFilter filter, ByteBuffer key) {
+        filter.put(key.getLong(0), key.getLong(8));
+    }
+
+    private static boolean mightContain(BloomFilter filter, ByteBuffer key) {
+        return filter.mightContain(key.getLong(0), key.getLong(8));
+    }
+
+    private static ByteBuffer pathKey(String path) {
+        return murmur(path.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Хеши содержимого уже равномерно распределены, поэтому 128-битные используются как есть
+     */
+    private static ByteBuffer digestKey(byte[] digest) {
+        return digest.length >= 16 ? ByteBuffer.wrap(digest) : murmur(digest);
+    }
+
+    private static ByteBuffer murmur(byte[] data) {
+        Murmur3Hasher hasher = HASHER.get();
+        hasher.update(ByteBuffer.wrap(data));
+        return ByteBuffer.wrap(hasher.digest());
+    }
+}
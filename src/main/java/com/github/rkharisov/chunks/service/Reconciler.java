@@ -0,0 +1,210 @@
+package com.github.rkharisov.chunks.service;
+
+import com.github.rkharisov.chunks.hash.FileDigest;
+import com.github.rkharisov.chunks.model.entity.Fingerprint;
+import com.github.rkharisov.chunks.model.projection.PathFingerprint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Сверка каталога с базой после потери событий наблюдателя.
+ *
+ * Содержимое каталога на диске (путь, размер, время изменения) сравнивается с сохраненными отпечатками чанков
+ * внутри каталога, применяется только разница: пропавшие файлы деактивируются, новые и измененные хешируются.
+ * Сверка выполняется в своем потоке, обработка обычных событий в это время продолжается
+ */
+@Service
+public class Reconciler {
+
+    private static final Logger log = LoggerFactory.getLogger(Reconciler.class);
+
+    @Autowired
+    private ChunkService chunkService;
+
+    @Autowired
+    private WatchedRoots watchedRoots;
+
+    @Value("${chunks.scan.batchSize:200}")
+    private int batchSize;
+
+    private final Set<Path> scheduled = ConcurrentHashMap.newKeySet();
+    /**
+     * Сверки в очереди и выполняемая
+     */
+    private final AtomicInteger queued = new AtomicInteger();
+    /**
+     * Номер последней поставленной сверки
+     */
+    private final AtomicLong requested = new AtomicLong();
+    /**
+     * Номер последней законченной сверки. Сверки выполняются по одной в порядке постановки
+     */
+    private volatile long completed;
+    private ExecutorService executor;
+
+    @PostConstruct
+    private void start() {
+        executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "reconciler");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    private void stop() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Поставить сверку каталога в очередь. Каталог, сверка которого или сверка одного из родительских каталогов
+     * еще не началась, повторно не ставится: после переполнения очереди событий приходят сверки
+     * и наблюдаемого каталога, и вложенных
+     *
+     * @param dir
+     */
+    public void reconcile(Path dir) {
+        for (Path parent = dir.getParent(); parent != null; parent = parent.getParent()) {
+            if (scheduled.contains(parent)) {
+                log.debug("Каталог {} будет сверен вместе с {}", dir, parent);
+                return;
+            }
+        }
+        if (!scheduled.add(dir)) {
+            log.debug("Сверка каталога {} уже запланирована", dir);
+            return;
+        }
+        queued.incrementAndGet();
+        long number = requested.incrementAndGet();
+        executor.execute(() -> {
+            //события, потерянные уже во время сверки, потребуют новой сверки
+            scheduled.remove(dir);
+            try {
+                reconcileNow(dir);
+            } catch (IOException | RuntimeException e) {
+                log.error("Не удалось сверить каталог {}: {}", dir, e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                completed = number;
+                queued.decrementAndGet();
+            }
+        });
+    }
+
+    /**
+     * @return сверок в очереди, включая выполняемую
+     */
+    public int getQueued() {
+        return queued.get();
+    }
+
+    /**
+     * @return номер последней поставленной сверки, см. {@link #isDoneThrough(long)}
+     */
+    public long getRequested() {
+        return requested.get();
+    }
+
+    /**
+     * Сверки с номерами до mark включительно закончены. Сверки, поставленные позже, не учитываются
+     *
+     * @param mark номер из {@link #getRequested()}
+     * @return
+     */
+    public boolean isDoneThrough(long mark) {
+        return completed >= mark;
+    }
+
+    private void reconcileNow(Path dir) throws IOException, InterruptedException {
+        long started = System.nanoTime();
+        Map<String, Fingerprint> onDisk = listMaps(dir);
+        Map<String, PathFingerprint> stored = chunkService.getFingerprintsUnder(dir);
+
+        List<Path> deleted = new ArrayList<>();
+        for (PathFingerprint chunk : stored.values()) {
+            if (chunk.getActive() && !onDisk.containsKey(chunk.getPath())) {
+                deleted.add(Paths.get(chunk.getPath()));
+            }
+        }
+        List<Path> changed = new ArrayList<>();
+        for (Map.Entry<String, Fingerprint> file : onDisk.entrySet()) {
+            PathFingerprint chunk = stored.get(file.getKey());
+            if (chunk == null || !chunk.getActive() || !file.getValue().equals(chunk.getFingerprint())) {
+                changed.add(Paths.get(file.getKey()));
+            }
+        }
+
+        for (int from = 0; from < deleted.size(); from += batchSize) {
+            List<Path> batch = new ArrayList<>();
+            for (Path path : deleted.subList(from, Math.min(from + batchSize, deleted.size()))) {
+                //файл мог снова появиться, пока шла сверка
+                if (Files.notExists(path)) batch.add(path);
+            }
+            chunkService.applyChanges(batch, Collections.emptyList());
+        }
+        for (int from = 0; from < changed.size(); from += batchSize) {
+            List<FileDigest> batch = new ArrayList<>();
+            for (Path path : changed.subList(from, Math.min(from + batchSize, changed.size()))) {
+                try {
+                    if (!Files.isRegularFile(path)) continue;
+                    watchedRoots.throttle(path);
+                    batch.add(chunkService.digest(path, onDisk.get(path.toString())));
+                } catch (IOException e) {
+                    log.error("{}: {}", path, e.getMessage());
+                }
+            }
+            chunkService.applyChanges(Collections.emptyList(), batch);
+        }
+        log.info("Сверка каталога {} завершена: файлов {}, деактивировано {}, изменено {} за {} мс",
+                dir, onDisk.size(), deleted.size(), changed.size(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+    }
+
+    private Map<String, Fingerprint> listMaps(Path dir) throws IOException {
+        Map<String, Fingerprint> files = new HashMap<>();
+        Files.walkFileTree(dir, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile() && file.getFileName().toString().endsWith(MapDirWatcher.MAP_SUFFIX)) {
+                    files.put(file.toString(), Fingerprint.of(attrs));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                log.warn("{}: {}", file, e.getMessage());
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return files;
+    }
+}
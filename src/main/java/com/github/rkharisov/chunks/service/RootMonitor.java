@@ -0,0 +1,12 @@
+package com.github.rkharisov.chunks.service;
+
+/**
+ * Обнаружение изменений в одном наблюдаемом каталоге, выполняется в своем потоке
+ */
+interface RootMonitor extends Runnable {
+
+    /**
+     * Остановить обнаружение изменений, поток завершается
+     */
+    void close();
+}
@@ -0,0 +1,287 @@
+package com.github.rkharisov.chunks.service;
+
+import com.github.rkharisov.chunks.metrics.IngestMetrics;
+import com.github.rkharisov.chunks.model.entity.Fingerprint;
+import com.github.rkharisov.chunks.model.enums.ChangeKind;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Находит изменения в наблюдаемом каталоге периодическим опросом, для сетевых и WebDAV-каталогов,
+ * где WatchService пропускает изменения, сделанные на другой стороне.
+ *
+ * - Хранится снимок каталогов: время изменения, вложенные каталоги и отпечатки файлов карт
+ * - Каталог перечитывается, только если изменилось его время изменения. У остальных каталогов
+ * проверяются отпечатки уже известных файлов: изменение содержимого файла время каталога не меняет
+ * - Время изменения каталога, совпадающее со временем снимка с точностью до RACY_WINDOW, ненадежно:
+ * такой каталог перечитывается и при следующем опросе
+ * - Каждое обращение к файловой системе берет разрешение у своего ограничителя, опрос не забивает канал
+ * - Найденные изменения передаются в {@link EventCoalescer}, как события наблюдателя
+ * - Недоступность самого каталога не считается удалением: опрос пропускается до следующего раза
+ */
+class RootPoller implements RootMonitor {
+
+    private static final Logger log = LoggerFactory.getLogger(RootPoller.class);
+
+    /**
+     * Точность времени изменения на сетевых файловых системах бывает до двух секунд
+     */
+    private static final long RACY_WINDOW = TimeUnit.SECONDS.toMillis(2);
+
+    private final WatchedRoot root;
+    private final ChunkService chunkService;
+    private final DirScanner dirScanner;
+    private final EventCoalescer eventCoalescer;
+    private final IngestMetrics ingestMetrics;
+    private final long intervalMs;
+    private final TokenBucket io;
+
+    private final Map<Path, DirSnapshot> snapshot = new HashMap<>();
+    private final CountDownLatch closed = new CountDownLatch(1);
+
+    RootPoller(WatchedRoot root, ChunkService chunkService, DirScanner dirScanner, EventCoalescer eventCoalescer,
+               IngestMetrics ingestMetrics, long intervalMs, TokenBucket io) {
+        this.root = root;
+        this.chunkService = chunkService;
+        this.dirScanner = dirScanner;
+        this.eventCoalescer = eventCoalescer;
+        this.ingestMetrics = ingestMetrics;
+        this.intervalMs = intervalMs;
+        this.io = io;
+    }
+
+    @Override
+    public void run() {
+        Path mapDir = root.getPath();
+        try {
+            //снимок раньше сканирования: изменения во время сканирования найдет первый опрос
+            snapshotTree(mapDir);
+            ScanStats stats = new ScanStats(mapDir);
+            root.onScan(stats);
+            dirScanner.scan(stats);
+            chunkService.refreshStoredAlgorithms();
+            root.onPolling();
+            while (!closed.await(intervalMs, TimeUnit.MILLISECONDS)) {
+                try {
+                    poll(mapDir);
+                } catch (IOException e) {
+                    log.error("Не удалось опросить директорию {}: {}", mapDir, e.getMessage());
+                    root.onError(e.getMessage());
+                }
+            }
+            log.info("Опрос директории {} остановлен", mapDir);
+        } catch (IOException | InterruptedException e) {
+            log.error("{}: {}", mapDir, e.getMessage());
+            root.onFailed(e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() {
+        closed.countDown();
+    }
+
+    /**
+     * Один проход опроса. Новые каталоги разбираются после обхода, когда удаления всех
+     * прежних каталогов уже переданы: так перенос каталога находится через {@link EventCoalescer#submitDir(Path)}
+     *
+     * @param mapDir
+     * @throws IOException         наблюдаемый каталог недоступен
+     * @throws InterruptedException
+     */
+    private void poll(Path mapDir) throws IOException, InterruptedException {
+        long started = System.nanoTime();
+        DirSnapshot previous = snapshot.get(mapDir);
+        if (previous == null) {
+            snapshotTree(mapDir);
+            return;
+        }
+        Poll poll = new Poll();
+        pollDir(mapDir, previous, poll);
+        for (Path dir : poll.createdDirs) {
+            onDirCreate(dir, poll);
+        }
+        log.debug("Опрос {}: каталогов {}, изменений {} за {} мс", mapDir, snapshot.size(), poll.changes,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+    }
+
+    private void pollDir(Path dir, DirSnapshot previous, Poll poll) throws IOException, InterruptedException {
+        io.acquire();
+        BasicFileAttributes attrs = Files.readAttributes(dir, BasicFileAttributes.class);
+        long lastModified = attrs.lastModifiedTime().toMillis();
+        DirSnapshot current;
+        if (previous.racy || lastModified != previous.lastModified) {
+            current = list(dir, lastModified);
+            for (Map.Entry<Path, Fingerprint> file : previous.files.entrySet()) {
+                if (!current.files.containsKey(file.getKey())) submit(ChangeKind.DELETED, file.getKey(), poll);
+            }
+            for (Path subDir : previous.dirs) {
+                if (current.dirs.contains(subDir)) continue;
+                forget(subDir);
+                submit(ChangeKind.DELETED, subDir, poll);
+            }
+            for (Map.Entry<Path, Fingerprint> file : current.files.entrySet()) {
+                if (!file.getValue().equals(previous.files.get(file.getKey()))) {
+                    submit(ChangeKind.CREATED, file.getKey(), poll);
+                }
+            }
+            for (Path subDir : current.dirs) {
+                if (!previous.dirs.contains(subDir)) poll.createdDirs.add(subDir);
+            }
+        } else {
+            //состав каталога не менялся, проверяются только отпечатки известных файлов
+            current = new DirSnapshot(previous.lastModified, false, new HashSet<>(previous.dirs), new HashMap<>());
+            for (Map.Entry<Path, Fingerprint> file : previous.files.entrySet()) {
+                io.acquire();
+                try {
+                    Fingerprint fingerprint = Fingerprint.of(Files.readAttributes(file.getKey(), BasicFileAttributes.class));
+                    current.files.put(file.getKey(), fingerprint);
+                    if (!fingerprint.equals(file.getValue())) submit(ChangeKind.CREATED, file.getKey(), poll);
+                } catch (NoSuchFileException e) {
+                    submit(ChangeKind.DELETED, file.getKey(), poll);
+                }
+            }
+        }
+        snapshot.put(dir, current);
+
+        for (Path subDir : new ArrayList<>(current.dirs)) {
+            DirSnapshot known = snapshot.get(subDir);
+            if (known == null) continue;
+            try {
+                pollDir(subDir, known, poll);
+            } catch (NoSuchFileException e) {
+                current.dirs.remove(subDir);
+                forget(subDir);
+                submit(ChangeKind.DELETED, subDir, poll);
+            } catch (IOException e) {
+                log.error("Не удалось опросить каталог {}: {}", subDir, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Новый каталог запоминается, а перенос или разбор по файлам выполняет {@link EventCoalescer#submitDir(Path)}
+     *
+     * @param dir
+     * @param poll
+     * @throws InterruptedException
+     */
+    private void onDirCreate(Path dir, Poll poll) throws InterruptedException {
+        try {
+            List<Path> files = snapshotTree(dir);
+            root.onEvent();
+            ingestMetrics.onEvent(ChangeKind.CREATED);
+            eventCoalescer.submitDir(dir);
+            poll.changes += files.size();
+            log.debug("Найден каталог {}", dir);
+        } catch (IOException e) {
+            log.error("{}: {}", dir, e.getMessage());
+        }
+    }
+
+    /**
+     * Запомнить каталог со всеми вложенными каталогами
+     *
+     * @param dir
+     * @return файлы карт внутри каталога
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private List<Path> snapshotTree(Path dir) throws IOException, InterruptedException {
+        List<Path> files = new ArrayList<>();
+        io.acquire();
+        DirSnapshot current = list(dir, Files.getLastModifiedTime(dir).toMillis());
+        snapshot.put(dir, current);
+        files.addAll(current.files.keySet());
+        for (Path subDir : current.dirs) {
+            try {
+                files.addAll(snapshotTree(subDir));
+            } catch (IOException e) {
+                log.error("Не удалось прочитать каталог {}: {}", subDir, e.getMessage());
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Прочитать состав каталога и отпечатки его файлов карт.
+     * Ссылки на каталоги не опрашиваются: в отличие от сканирования, опрос не защищен от циклов
+     */
+    private DirSnapshot list(Path dir, long lastModified) throws IOException, InterruptedException {
+        boolean racy = System.currentTimeMillis() - lastModified < RACY_WINDOW;
+        DirSnapshot current = new DirSnapshot(lastModified, racy, new HashSet<>(), new HashMap<>());
+        io.acquire();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+            for (Path entry : entries) {
+                io.acquire();
+                try {
+                    BasicFileAttributes attrs = Files.readAttributes(entry, BasicFileAttributes.class);
+                    if (attrs.isDirectory()) {
+                        if (!Files.isSymbolicLink(entry)) current.dirs.add(entry);
+                    } else if (attrs.isRegularFile() && entry.getFileName().toString().endsWith(MapDirWatcher.MAP_SUFFIX)) {
+                        current.files.put(entry, Fingerprint.of(attrs));
+                    }
+                } catch (NoSuchFileException e) {
+                    //удален, пока читался каталог
+                }
+            }
+        }
+        return current;
+    }
+
+    private void forget(Path dir) {
+        snapshot.keySet().removeIf(path -> path.startsWith(dir));
+    }
+
+    private void submit(ChangeKind kind, Path path, Poll poll) {
+        root.onEvent();
+        ingestMetrics.onEvent(kind);
+        eventCoalescer.submit(kind, path);
+        poll.changes++;
+    }
+
+    /**
+     * Состояние каталога на момент последнего опроса
+     */
+    private static class DirSnapshot {
+
+        private final long lastModified;
+        /**
+         * Каталог изменялся незадолго до чтения, его время изменения могло не сдвинуться после чтения
+         */
+        private final boolean racy;
+        private final Set<Path> dirs;
+        private final Map<Path, Fingerprint> files;
+
+        private DirSnapshot(long lastModified, boolean racy, Set<Path> dirs, Map<Path, Fingerprint> files) {
+            this.lastModified = lastModified;
+            this.racy = racy;
+            this.dirs = dirs;
+            this.files = files;
+        }
+    }
+
+    /**
+     * Результат одного прохода опроса
+     */
+    private static class Poll {
+
+        private final List<Path> createdDirs = new ArrayList<>();
+        private int changes;
+    }
+}
@@ -0,0 +1,235 @@
+package com.github.rkharisov.chunks.service;
+
+import com.github.rkharisov.chunks.metrics.IngestMetrics;
+import com.github.rkharisov.chunks.model.enums.ChangeKind;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Ослеживает создание, изменение, удаление чанков в одном наблюдаемом каталоге
+ *
+ * - При создании файла приходят события о создании и изменении
+ * - При создании каталога приходит событие только о создании
+ * - При переименовании каталога/файла приходят события о удалении  и создании
+ * - При удалении каталога/файла приходит событие об удалении, понять файл или каталог это был или файл нет возможности,
+ * поскольку объекта уже нет.
+ * - При удалении каталога со вложенными файлами/директориями, то нет уведомления об их удалении
+ * - События изменения приходят только для файлов. Для каталогов нет
+ */
+class RootWatcher implements RootMonitor {
+
+    private final static Logger log = LoggerFactory.getLogger(RootWatcher.class);
+
+    private final WatchedRoot root;
+    private final ChunkService chunkService;
+    private final DirScanner dirScanner;
+    private final EventCoalescer eventCoalescer;
+    private final Reconciler reconciler;
+    private final IngestMetrics ingestMetrics;
+
+    private final HashMap<WatchKey, Path> keys = new HashMap<>();
+    private volatile WatchService watchService;
+
+    RootWatcher(WatchedRoot root, ChunkService chunkService, DirScanner dirScanner,
+                EventCoalescer eventCoalescer, Reconciler reconciler, IngestMetrics ingestMetrics) {
+        this.root = root;
+        this.chunkService = chunkService;
+        this.dirScanner = dirScanner;
+        this.eventCoalescer = eventCoalescer;
+        this.reconciler = reconciler;
+        this.ingestMetrics = ingestMetrics;
+    }
+
+    @Override
+    public void run() {
+        Path mapDir = root.getPath();
+        try {
+            watchService = mapDir.getFileSystem().newWatchService();
+            addExistedFiles(mapDir);
+            subscribe(mapDir);
+        } catch (ClosedWatchServiceException e) {
+            log.info("Наблюдение за директорией {} остановлено", mapDir);
+        } catch (IOException | InterruptedException e) {
+            log.error("{}: {}", mapDir, e.getMessage());
+            root.onFailed(e.getMessage());
+        }
+    }
+
+    /**
+     * Остановить наблюдение: ожидание событий прерывается, поток наблюдателя завершается
+     */
+    @Override
+    public void close() {
+        WatchService watchService = this.watchService;
+        if (watchService == null) return;
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            log.warn("{}: {}", root.getPath(), e.getMessage());
+        }
+    }
+
+    /**
+     * Рекурсивно добавить все файлы в папке с картами
+     *
+     * @param path
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private void addExistedFiles(Path path) throws IOException, InterruptedException {
+        ScanStats stats = new ScanStats(path);
+        root.onScan(stats);
+        dirScanner.scan(stats);
+        chunkService.refreshStoredAlgorithms();
+    }
+
+
+    /**
+     * Подписка на события изменения состояния папки
+     *
+     * @param path
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private void subscribe(Path path) throws IOException, InterruptedException {
+        registerTree(path);
+        root.onWatching();
+        WatchKey key;
+        while ((key = watchService.take()) != null) {
+            try {
+                Path dir = keys.get(key);
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    WatchEvent.Kind kind = event.kind();
+                    if (dir == null) continue;
+                    root.onEvent();
+                    if (kind.equals(OVERFLOW)) {
+                        //у события переполнения нет контекста, известен только каталог ключа
+                        onOverflow(dir);
+                    } else {
+                        process(kind, dir.resolve((Path) event.context()));
+                    }
+                }
+                key.reset();
+            } catch (Exception e) {
+                log.error(e.getMessage());
+                root.onError(e.getMessage());
+            }
+        }
+        log.info("Завершаю наблюдение за директорией {}", path);
+    }
+
+    /**
+     * Зарегистрировать наблюдателя на каталог и все вложенные каталоги
+     *
+     * @param path
+     * @throws IOException
+     */
+    private void registerTree(Path path) throws IOException {
+        Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                register(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Зарегистрировать наблюдателя
+     * @param path
+     * @return
+     * @throws IOException
+     */
+    private WatchKey register(Path path) throws IOException {
+        WatchKey key = path.register(watchService, ENTRY_CREATE, ENTRY_DELETE);
+        keys.put(key, path);
+        return key;
+    }
+
+
+    private void process(WatchEvent.Kind kind, Path eventEntry) {
+        if (kind.equals(ENTRY_CREATE)) {
+            if (!isValidEntry(eventEntry)) return;
+            ingestMetrics.onEvent(ChangeKind.CREATED);
+            onEntryCreate(eventEntry);
+        } else if (kind.equals(ENTRY_DELETE)) {
+            ingestMetrics.onEvent(ChangeKind.DELETED);
+            onEntryDelete(eventEntry);
+        }
+    }
+
+    private boolean isValidEntry(Path eventEntry) {
+        File file = eventEntry.toFile();
+        return file.isDirectory() || file.getName().endsWith(MapDirWatcher.MAP_SUFFIX);
+    }
+
+    /**
+     * Реакция на создание объекта в папке
+     * Здесь если новый файл, если переименовали старый файл или если изменили файл.
+     * Новый каталог сразу ставится на наблюдение, а перенос или разбор по файлам выполняет {@link EventCoalescer#submitDir(Path)}
+     * @param eventEntry
+     */
+    private void onEntryCreate(Path eventEntry) {
+        try {
+            if (eventEntry.toFile().isDirectory()) {
+                registerTree(eventEntry);
+                eventCoalescer.submitDir(eventEntry);
+                log.debug("Отслеживаю каталог {}", eventEntry);
+            } else {
+                onFileCreate(eventEntry);
+            }
+        } catch (IOException e) {
+            log.error(e.getMessage());
+        }
+    }
+
+    private void onFileCreate(Path file) {
+        eventCoalescer.submit(ChangeKind.CREATED, file);
+        log.debug("Добавлен файл {}", file);
+    }
+
+    /**
+     * Реакция на удаление объекта в папке
+     * Здесь если объект удален или переименован
+     * @param eventEntry
+     */
+    private void onEntryDelete(Path eventEntry) {
+        ArrayList<WatchKey> toRemove = new ArrayList<>();
+        keys.entrySet().stream()
+                .filter(e -> e.getValue().startsWith(eventEntry))
+                .forEach(e -> {
+                    e.getKey().cancel();
+                    toRemove.add(e.getKey());
+                    log.debug("Отменяю отслеживание каталога {}", e.getValue());
+                });
+        toRemove.forEach(keys::remove);
+        eventCoalescer.submit(ChangeKind.DELETED, eventEntry);
+        log.debug("Удален файл или каталог{}", eventEntry);
+    }
+
+    /**
+     * Реакция на переполнение буфера событий(события постаявляются быстрее чем приложение успевает их обработать)
+     * События внутри каталога потеряны, поэтому его вложенные каталоги заново ставятся на наблюдение,
+     * а содержимое сверяется с базой
+     * @param dir каталог, события которого потеряны
+     */
+    private void onOverflow(Path dir) {
+        log.error("Получено событие переполнения {}", dir);
+        ingestMetrics.onOverflow();
+        try {
+            registerTree(dir);
+        } catch (IOException e) {
+            log.error(e.getMessage());
+        }
+        reconciler.reconcile(dir);
+    }
+
+}
@@ -0,0 +1,104 @@
+package com.github.rkharisov.chunks.service;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Счетчики сканирования каталога с картами
+ */
+public class ScanStats {
+
+    private final Path root;
+    private final long startedAt = System.nanoTime();
+    private volatile long finishedAt;
+
+    private final AtomicLong filesSeen = new AtomicLong();
+    private final AtomicLong filesUnchanged = new AtomicLong();
+    private final AtomicLong filesHashed = new AtomicLong();
+    private final AtomicLong filesPersisted = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+
+    public ScanStats(Path root) {
+        this.root = root;
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    public long getFilesSeen() {
+        return filesSeen.get();
+    }
+
+    /**
+     * Файлы, пропущенные без чтения, т.к. их отпечаток не изменился
+     *
+     * @return
+     */
+    public long getFilesUnchanged() {
+        return filesUnchanged.get();
+    }
+
+    public long getFilesHashed() {
+        return filesHashed.get();
+    }
+
+    public long getFilesPersisted() {
+        return filesPersisted.get();
+    }
+
+    public long getErrors() {
+        return errors.get();
+    }
+
+    public boolean isFinished() {
+        return finishedAt != 0;
+    }
+
+    public long getElapsedMillis() {
+        long end = isFinished() ? finishedAt : System.nanoTime();
+        return TimeUnit.NANOSECONDS.toMillis(end - startedAt);
+    }
+
+    /**
+     * Скорость обработки файлов (сохраненных и пропущенных без изменений), файлов в секунду
+     *
+     * @return
+     */
+    public double getFilesPerSecond() {
+        long elapsed = getElapsedMillis();
+        return elapsed == 0 ? 0 : (filesPersisted.get() + filesUnchanged.get()) * 1000.0 / elapsed;
+    }
+
+    void onSeen() {
+        filesSeen.incrementAndGet();
+    }
+
+    void onUnchanged() {
+        filesUnchanged.incrementAndGet();
+    }
+
+    void onHashed() {
+        filesHashed.incrementAndGet();
+    }
+
+    void onPersisted(int count) {
+        filesPersisted.addAndGet(count);
+    }
+
+    void onError() {
+        errors.incrementAndGet();
+    }
+
+    void finish() {
+        finishedAt = System.nanoTime();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: найдено %d, без изменений %d, захешировано %d, сохранено %d, ошибок %d за %d мс (%.1f файлов/с)",
+                root, getFilesSeen(), getFilesUnchanged(), getFilesHashed(), getFilesPersisted(), getErrors(),
+                getElapsedMillis(), getFilesPerSecond());
+    }
+}
@@ -0,0 +1,146 @@
+package com.github.rkharisov.chunks.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Выполняет задачи с одним ключом строго по очереди, а задачи с разными ключами - параллельно.
+ *
+ * Ключи распределяются хешем по полосам, у каждой полосы своя очередь. Очередь полосы выполняется
+ * по одной задаче в общем пуле, поэтому медленная задача задерживает только свою полосу.
+ * Если JVM поддерживает виртуальные потоки, пул создает виртуальный поток на задачу, иначе это пул
+ * фиксированного размера
+ */
+public class StripedExecutor {
+
+    private static final Logger log = LoggerFactory.getLogger(StripedExecutor.class);
+
+    private final ExecutorService executor;
+    private final Lane[] lanes;
+    private final AtomicInteger queued = new AtomicInteger();
+
+    /**
+     * @param name           префикс имен потоков
+     * @param threads        размер пула платформенных потоков, с виртуальными потоками не используется
+     * @param stripes        число полос
+     * @param virtualThreads использовать виртуальные потоки, если они есть
+     */
+    public StripedExecutor(String name, int threads, int stripes, boolean virtualThreads) {
+        this.executor = createExecutor(name, threads, virtualThreads);
+        this.lanes = new Lane[stripes];
+        for (int i = 0; i < stripes; i++) {
+            lanes[i] = new Lane();
+        }
+    }
+
+    /**
+     * Поставить задачу в очередь полосы ключа. После остановки пула задача отбрасывается
+     *
+     * @param key
+     * @param task
+     */
+    public void execute(Object key, Runnable task) {
+        queued.incrementAndGet();
+        lanes[Math.floorMod(key.hashCode(), lanes.length)].execute(task);
+    }
+
+    /**
+     * Число поставленных и еще не выполненных задач
+     *
+     * @return
+     */
+    public int size() {
+        return queued.get();
+    }
+
+    /**
+     * Дождаться выполнения поставленных задач и остановить пул
+     *
+     * @param timeoutMs
+     * @throws InterruptedException
+     */
+    public void shutdown(long timeoutMs) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        synchronized (queued) {
+            long left;
+            while (queued.get() > 0 && (left = deadline - System.nanoTime()) > 0) {
+                TimeUnit.NANOSECONDS.timedWait(queued, left);
+            }
+        }
+        executor.shutdown();
+        executor.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+
+    private void done(int tasks) {
+        if (queued.addAndGet(-tasks) == 0) {
+            synchronized (queued) {
+                queued.notifyAll();
+            }
+        }
+    }
+
+    private static ExecutorService createExecutor(String name, int threads, boolean virtualThreads) {
+        if (virtualThreads) {
+            try {
+                Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                log.info("{}: задачи выполняются в виртуальных потоках, размер пула {} не используется", name, threads);
+                return (ExecutorService) factory.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                log.debug("{}: виртуальные потоки недоступны, используется пул из {} потоков", name, threads);
+            }
+        }
+        AtomicInteger counter = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Очередь задач, которые выполняются в общем пуле по одной
+     */
+    private class Lane implements Executor {
+
+        private final Queue<Runnable> tasks = new ArrayDeque<>();
+        private Runnable active;
+
+        @Override
+        public synchronized void execute(Runnable task) {
+            tasks.add(() -> {
+                try {
+                    task.run();
+                } finally {
+                    done(1);
+                    next();
+                }
+            });
+            if (active == null) next();
+        }
+
+        private synchronized void next() {
+            active = tasks.poll();
+            if (active == null) return;
+            try {
+                executor.execute(active);
+            } catch (RejectedExecutionException e) {
+                //пул остановлен: задачи полосы уже не выполнятся, и shutdown не должен ждать их до таймаута
+                int dropped = tasks.size() + 1;
+                tasks.clear();
+                active = null;
+                log.warn("Пул остановлен, отброшено задач: {}", dropped);
+                done(dropped);
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.github.rkharisov.chunks.service;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Ограничение скорости: не больше rate разрешений в секунду, с запасом burst на короткие всплески.
+ * Нулевая или отрицательная скорость - без ограничения
+ */
+public class TokenBucket {
+
+    private final double nanosPerToken;
+    private final double capacity;
+    /**
+     * Время в наносекундах, в тестах подменяется
+     */
+    private final LongSupplier clock;
+
+    private double tokens;
+    private long refilledAt;
+
+    public TokenBucket(double rate, int burst) {
+        this(rate, burst, System::nanoTime);
+    }
+
+    TokenBucket(double rate, int burst, LongSupplier clock) {
+        this.nanosPerToken = rate > 0 ? TimeUnit.SECONDS.toNanos(1) / rate : 0;
+        this.capacity = Math.max(1, burst);
+        this.clock = clock;
+        this.tokens = capacity;
+        this.refilledAt = clock.getAsLong();
+    }
+
+    public boolean isLimited() {
+        return nanosPerToken > 0;
+    }
+
+    /**
+     * Получить разрешение, при необходимости подождав. Разрешение резервируется сразу,
+     * поэтому ожидающие потоки получают разрешения по очереди, а не все разом
+     *
+     * @return время ожидания, нс
+     * @throws InterruptedException
+     */
+    public long acquire() throws InterruptedException {
+        if (!isLimited()) return 0;
+        long wait;
+        synchronized (this) {
+            long now = clock.getAsLong();
+            tokens = Math.min(capacity, tokens + (now - refilledAt) / nanosPerToken);
+            refilledAt = now;
+            tokens -= 1;
+            wait = tokens >= 0 ? 0 : (long) (-tokens * nanosPerToken);
+        }
+        if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+        return wait;
+    }
+}
@@ -0,0 +1,101 @@
+package com.github.rkharisov.chunks.service;
+
+import com.github.rkharisov.chunks.model.enums.RootState;
+import com.github.rkharisov.chunks.model.enums.WatchMode;
+import com.github.rkharisov.chunks.model.response.RootStatus;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Наблюдаемый каталог с картами: собственное ограничение скорости хеширования и счетчики для API
+ */
+public class WatchedRoot {
+
+    private final Path path;
+    private final WatchMode mode;
+    private final TokenBucket limiter;
+
+    private volatile RootState state = RootState.STARTING;
+    private volatile ScanStats scan;
+    private volatile String lastError;
+    private final AtomicLong events = new AtomicLong();
+    private final AtomicLong throttledNanos = new AtomicLong();
+
+    public WatchedRoot(Path path, WatchMode mode, TokenBucket limiter) {
+        this.path = path;
+        this.mode = mode;
+        this.limiter = limiter;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public WatchMode getMode() {
+        return mode;
+    }
+
+    public RootState getState() {
+        return state;
+    }
+
+    /**
+     * @return счетчики первичного сканирования, null - сканирование еще не начато
+     */
+    public ScanStats getScan() {
+        return scan;
+    }
+
+    /**
+     * Дождаться разрешения на хеширование очередного файла этого каталога
+     *
+     * @throws InterruptedException
+     */
+    public void throttle() throws InterruptedException {
+        long waited = limiter.acquire();
+        if (waited > 0) throttledNanos.addAndGet(waited);
+    }
+
+    public RootStatus getStatus() {
+        ScanStats scan = this.scan;
+        return new RootStatus(
+                path.toString(),
+                mode,
+                state,
+                scan == null ? 0 : scan.getFilesSeen(),
+                scan == null ? 0 : scan.getFilesPersisted(),
+                scan == null ? 0 : scan.getFilesPerSecond(),
+                events.get(),
+                TimeUnit.NANOSECONDS.toMillis(throttledNanos.get()),
+                lastError
+        );
+    }
+
+    void onScan(ScanStats scan) {
+        this.scan = scan;
+        this.state = RootState.SCANNING;
+    }
+
+    void onWatching() {
+        this.state = RootState.WATCHING;
+    }
+
+    void onPolling() {
+        this.state = RootState.POLLING;
+    }
+
+    void onEvent() {
+        events.incrementAndGet();
+    }
+
+    void onError(String error) {
+        this.lastError = error;
+    }
+
+    void onFailed(String error) {
+        this.lastError = error;
+        this.state = RootState.FAILED;
+    }
+}
@@ -0,0 +1,106 @@
+package com.github.rkharisov.chunks.service;
+
+import com.github.rkharisov.chunks.model.enums.WatchMode;
+import com.github.rkharisov.chunks.model.response.RootStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+/**
+ * Список наблюдаемых каталогов с картами. У каждого каталога свой наблюдатель и свое первичное сканирование,
+ * а хеширование и сохранение общие. Скорость хеширования ограничивается для каждого каталога отдельно,
+ * поэтому большой или медленный каталог не занимает общий конвейер целиком
+ */
+@Component
+public class WatchedRoots {
+
+    private static final Logger log = LoggerFactory.getLogger(WatchedRoots.class);
+
+    /**
+     * Префикс каталога, изменения в котором находятся опросом, а не событиями файловой системы
+     */
+    public static final String POLL_PREFIX = "poll:";
+
+    /**
+     * Каталоги через запятую, по умолчанию единственный webdav.mapDir. Каталог с префиксом poll: опрашивается
+     */
+    @Value("${webdav.mapDirs:${webdav.mapDir}}")
+    private String[] mapDirs;
+
+    /**
+     * Файлов в секунду, которые хешируются из одного каталога, 0 - без ограничения
+     */
+    @Value("${chunks.roots.filesPerSecond:0}")
+    private double filesPerSecond;
+
+    @Value("${chunks.roots.burst:100}")
+    private int burst;
+
+    private List<WatchedRoot> roots;
+
+    @PostConstruct
+    private void init() {
+        List<WatchedRoot> roots = new ArrayList<>();
+        for (String mapDir : mapDirs) {
+            String dir = mapDir.trim();
+            if (dir.isEmpty()) continue;
+            WatchMode mode = WatchMode.WATCH;
+            if (dir.startsWith(POLL_PREFIX)) {
+                mode = WatchMode.POLL;
+                dir = dir.substring(POLL_PREFIX.length());
+            }
+            Path path = Paths.get(dir).toAbsolutePath().normalize();
+            if (roots.stream().anyMatch(root -> path.startsWith(root.getPath()) || root.getPath().startsWith(path))) {
+                log.warn("Каталог {} пропущен: он совпадает с другим наблюдаемым каталогом или вложен в него", path);
+                continue;
+            }
+            roots.add(new WatchedRoot(path, mode, new TokenBucket(filesPerSecond, burst)));
+        }
+        this.roots = Collections.unmodifiableList(roots);
+        log.info("Наблюдаемые каталоги: {}", roots.stream()
+                .map(root -> root.getPath() + " (" + root.getMode() + ")")
+                .collect(Collectors.toList()));
+    }
+
+    public List<WatchedRoot> getRoots() {
+        return roots;
+    }
+
+    public List<RootStatus> getStatus() {
+        return roots.stream().map(WatchedRoot::getStatus).collect(Collectors.toList());
+    }
+
+    /**
+     * Наблюдаемый каталог, в котором находится путь
+     *
+     * @param path
+     * @return
+     */
+    public Optional<WatchedRoot> rootOf(Path path) {
+        for (WatchedRoot root : roots) {
+            if (path.startsWith(root.getPath())) return Optional.of(root);
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Дождаться разрешения на хеширование файла по ограничению его каталога
+     *
+     * @param file
+     * @throws InterruptedException
+     */
+    public void throttle(Path file) throws InterruptedException {
+        Optional<WatchedRoot> root = rootOf(file);
+        if (root.isPresent()) root.get().throttle();
+    }
+}
@@ -1,49 +1,132 @@
 package com.github.rkharisov.controller;
 
-import com.github.rkharisov.chunks.model.entity.ChunkEntity;
+import com.github.rkharisov.chunks.model.response.BulkResult;
 import com.github.rkharisov.chunks.model.response.ChunkDTO;
+import com.github.rkharisov.chunks.model.response.ChunkPage;
+import com.github.rkharisov.chunks.model.response.IngestStatus;
 import com.github.rkharisov.chunks.model.response.Response;
+import com.github.rkharisov.chunks.model.response.RootStatus;
+import com.github.rkharisov.chunks.service.ActivityService;
+import com.github.rkharisov.chunks.service.BulkCommandService;
 import com.github.rkharisov.chunks.service.ChunkService;
+import com.github.rkharisov.chunks.service.IngestLifecycle;
+import com.github.rkharisov.chunks.service.WatchedRoots;
 import io.swagger.annotations.ApiOperation;
 import io.swagger.annotations.ApiParam;
 import io.swagger.annotations.ApiResponse;
 import io.swagger.annotations.ApiResponses;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
-import org.springframework.transaction.annotation.Transactional;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.LocalDate;
 import java.util.*;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 @RestController
 public class ChunkController {
 
+    private static final Logger log = LoggerFactory.getLogger(ChunkController.class);
+
+    /**
+     * Состояние приема карт в ответах со списками чанков: до LIVE список может быть неполным
+     */
+    public static final String INGEST_STATE_HEADER = "X-Ingest-State";
+
     @Autowired
     private ChunkService chunkService;
 
+    @Autowired
+    private ActivityService activityService;
+
+    @Autowired
+    private BulkCommandService bulkCommandService;
+
+    @Autowired
+    private WatchedRoots watchedRoots;
+
+    @Autowired
+    private IngestLifecycle ingestLifecycle;
+
 
     @GetMapping(value = "/", produces = MediaType.APPLICATION_JSON_UTF8_VALUE)
-    @Transactional(readOnly = true)
-    @ApiOperation(value = "getActivitiesForToday", notes = "Получить список активных чанков, время повторения которых наступило")
-    @ApiResponse(code = 200, message = "OK", response = ChunkDTO.class, responseContainer = "Map")
-    public @ResponseBody
-    Map<String, List<ChunkDTO>> getActivitiesForToday() {
-        Map<String, List<ChunkDTO>> responseBody = new HashMap<>();
-        try (Stream<ChunkEntity> chunksForToday = chunkService.getChunksForToday();
-             Stream<ChunkEntity> mutatedChunks = chunkService.getMutated()) {
-            responseBody.put("repeat",
-                    chunksForToday.map(chunkService::mapToResponse)
-                            .collect(Collectors.toList()));
-            responseBody.put("mutated",
-                    mutatedChunks.map(chunkService::mapToResponse)
-                            .collect(Collectors.toList()));
+    @ApiOperation(value = "getActivitiesForToday", notes = "Получить список активных чанков, время повторения которых наступило. " +
+            "Поддерживает условный запрос по If-None-Match. Заголовок X-Ingest-State - состояние приема карт")
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "OK", response = ChunkDTO.class, responseContainer = "Map"),
+            @ApiResponse(code = 304, message = "NotModified"),
+        }
+    )
+    public ResponseEntity<byte[]> getActivitiesForToday(@RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) throws IOException {
+        LocalDate today = LocalDate.now();
+        String eTag = activityService.getETag(today);
+        if (eTag != null && matches(ifNoneMatch, eTag)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(eTag).header(INGEST_STATE_HEADER, ingestState()).build();
+        }
+        ActivityService.Activities activities = activityService.getActivities(today);
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON_UTF8)
+                .header(INGEST_STATE_HEADER, ingestState());
+        if (activities.getETag() != null) response.eTag(activities.getETag());
+        return response.body(activities.getBody());
+    }
+
+    private static boolean matches(String ifNoneMatch, String eTag) {
+        if (ifNoneMatch == null) return false;
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = candidate.trim();
+            if (tag.startsWith("W/")) tag = tag.substring(2);
+            if (tag.equals(eTag) || tag.equals("*")) return true;
+        }
+        return false;
+    }
+
+    private String ingestState() {
+        return ingestLifecycle.getState().name();
+    }
+
+
+    @GetMapping(value = "/repeat", produces = MediaType.APPLICATION_JSON_UTF8_VALUE)
+    @ApiOperation(value = "getRepeatPage", notes = "Получить страницу чанков на повторение. Курсор следующей страницы возвращается в поле next")
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "OK", response = ChunkPage.class),
+            @ApiResponse(code = 400, message = "BadRequest"),
+        }
+    )
+    public ResponseEntity<ChunkPage> getRepeatPage(@RequestParam(required = false) @ApiParam(value = "Cursor from the previous page") String cursor,
+                                                   @RequestParam(defaultValue = "100") @ApiParam(value = "Page size") int size) {
+        try {
+            return ResponseEntity.ok()
+                    .header(INGEST_STATE_HEADER, ingestState())
+                    .body(activityService.getRepeatPage(LocalDate.now(), cursor, size));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).build();
         }
-        return responseBody;
+    }
+
+
+    @GetMapping(value = "/stream", produces = MediaType.APPLICATION_JSON_UTF8_VALUE)
+    @ApiOperation(value = "streamActivitiesForToday", notes = "То же, что getActivitiesForToday, но JSON пишется в ответ по мере чтения из базы")
+    @ApiResponse(code = 200, message = "OK", response = ChunkDTO.class, responseContainer = "Map")
+    public ResponseEntity<StreamingResponseBody> streamActivitiesForToday() {
+        LocalDate today = LocalDate.now();
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON_UTF8)
+                .header(INGEST_STATE_HEADER, ingestState())
+                .body(out -> activityService.writeActivities(today, out));
     }
 
 
@@ -60,16 +143,51 @@ public class ChunkController {
     }
 
 
+    @PostMapping(value = "/bulk", consumes = MediaType.APPLICATION_JSON_VALUE, produces = MediaType.APPLICATION_JSON_UTF8_VALUE)
+    @ApiOperation(value = "bulk", notes = "Выполнить пакет команд REPEATED, DROP, UNMUTATE одной транзакцией. " +
+            "Тело - массив объектов {\"op\": ..., \"id\": ...}, результат - статус по каждой команде в том же порядке")
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "OK", response = BulkResult.class, responseContainer = "List"),
+            @ApiResponse(code = 400, message = "BadRequest"),
+        }
+    )
+    public ResponseEntity<List<BulkResult>> bulk(InputStream body) {
+        try {
+            return ResponseEntity.ok(bulkCommandService.execute(body));
+        } catch (IOException | IllegalArgumentException e) {
+            log.warn("Пакет команд отклонен: {}", e.getMessage());
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).build();
+        }
+    }
+
+
+    @GetMapping(value = "/roots", produces = MediaType.APPLICATION_JSON_UTF8_VALUE)
+    @ApiOperation(value = "getRoots", notes = "Получить состояние наблюдаемых каталогов с картами: сканирование, наблюдение, " +
+            "счетчики файлов и событий, ожидание из-за ограничения скорости")
+    @ApiResponse(code = 200, message = "OK", response = RootStatus.class, responseContainer = "List")
+    public @ResponseBody
+    List<RootStatus> getRoots() {
+        return watchedRoots.getStatus();
+    }
+
+
+    @GetMapping(value = "/status", produces = MediaType.APPLICATION_JSON_UTF8_VALUE)
+    @ApiOperation(value = "getIngestStatus", notes = "Получить ход приема карт: состояние SCANNING, CATCHING_UP или LIVE, " +
+            "найдено, захешировано и сохранено файлов, оценка времени до конца сканирования, очереди изменений")
+    @ApiResponse(code = 200, message = "OK", response = IngestStatus.class)
+    public @ResponseBody
+    IngestStatus getIngestStatus() {
+        return ingestLifecycle.getStatus();
+    }
+
+
     @GetMapping(value = "/drop/{dropRequired}/{ids}", produces = MediaType.APPLICATION_JSON_UTF8_VALUE)
     @ApiOperation(value = "dropOrUnmutate", notes = "Помечает чанк не измененным и в зависимости от переданного флага либо сбрасывает на первый этап повторения с началом сегодня, либо оставляет этап повторения не измененным")
     @ApiResponse(code = 200, message = "OK", response = ChunkDTO.class, responseContainer = "List")
     public @ResponseBody
     List<ChunkDTO> dropOrUnmutate(@PathVariable @ApiParam(value = "Flag for determining whether to reset the repeat phase or not", required = true, readOnly = true) Boolean dropRequired,
                                   @PathVariable @ApiParam(value = "UUID of chank to process", required = true, readOnly = true) String ids) {
-        return chunkService.dropOrUnmutate(dropRequired, Arrays.asList(ids.split("[,|&]")))
-                .stream()
-                .map(chunkService::mapToResponse)
-                .collect(Collectors.toList());
+        return chunkService.dropOrUnmutate(dropRequired, Arrays.asList(ids.split("[,|&]")));
     }
 
 
@@ -0,0 +1,133 @@
+package com.github.rkharisov.chunks.hash;
+
+import com.github.rkharisov.Utils;
+import com.github.rkharisov.chunks.model.enums.HashAlgorithm;
+import com.github.rkharisov.chunks.model.enums.HashMode;
+import com.github.rkharisov.chunks.service.AbstractTest;
+import org.junit.AfterClass;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class ContentHasherTest extends AbstractTest {
+
+    private ContentHasher subj = new ContentHasher();
+
+    @Test
+    public void hash_shouldMatchInMemoryMd5() throws IOException, NoSuchAlgorithmException {
+        ReflectionTestUtils.setField(subj, "bufferSize", 1024);
+        for (int size : new int[]{0, 1, 1023, 1024, 1025, 100_000}) {
+            byte[] content = rantByteArr(size);
+            Path testPath = createTmpFile(content);
+
+            assertArrayEquals(Utils.digest(content), subj.hash(testPath, HashAlgorithm.MD5));
+        }
+    }
+
+    @Test
+    public void hash_shouldGiveSameResultWhenFileIsMapped() throws IOException {
+        Path testPath = createTmpFile(rantByteArr(300_000));
+        byte[] buffered = subj.hash(testPath, HashAlgorithm.MURMUR3_128);
+
+        ReflectionTestUtils.setField(subj, "mmapThreshold", 1L);
+
+        assertArrayEquals(buffered, subj.hash(testPath, HashAlgorithm.MURMUR3_128));
+    }
+
+    @Test
+    public void hash_shouldComputeSeveralAlgorithmsInOnePass() throws IOException {
+        Path testPath = createTmpFile(rantByteArr(70_000));
+
+        Map<HashAlgorithm, byte[]> digests = subj.hash(testPath, EnumSet.allOf(HashAlgorithm.class));
+
+        assertArrayEquals(subj.hash(testPath, HashAlgorithm.MD5), digests.get(HashAlgorithm.MD5));
+        assertArrayEquals(subj.hash(testPath, HashAlgorithm.MURMUR3_128), digests.get(HashAlgorithm.MURMUR3_128));
+    }
+
+    @Test
+    public void murmur3_shouldMatchReferenceVector() {
+        StreamingHasher hasher = HashAlgorithm.MURMUR3_128.newHasher();
+        byte[] data = "The quick brown fox jumps over the lazy dog".getBytes(StandardCharsets.UTF_8);
+
+        hasher.update(ByteBuffer.wrap(data, 0, 5));
+        hasher.update(ByteBuffer.wrap(data, 5, data.length - 5));
+
+        assertEquals("6c1b07bc7bbc4be347939ac4a93c437a", new BigInteger(1, hasher.digest()).toString(16));
+    }
+
+    @Test
+    public void hashZipEntries_shouldIgnoreThumbnailAndEntryOrder() throws IOException {
+        byte[] content = rantByteArr(10_000);
+        Path saved = createTmpZip("content.json", content, "Thumbnails/thumbnail.png", rantByteArr(500));
+        Path resaved = createTmpZip("Thumbnails/thumbnail.png", rantByteArr(700), "content.json", content);
+
+        assertArrayEquals(subj.hash(saved, HashAlgorithm.MD5, HashMode.ZIP_ENTRIES),
+                subj.hash(resaved, HashAlgorithm.MD5, HashMode.ZIP_ENTRIES));
+        assertFalse(Arrays.equals(subj.hash(saved, HashAlgorithm.MD5, HashMode.CONTENT),
+                subj.hash(resaved, HashAlgorithm.MD5, HashMode.CONTENT)));
+    }
+
+    @Test
+    public void hashZipEntries_shouldChangeWithContent() throws IOException {
+        byte[] thumbnail = rantByteArr(500);
+        Path saved = createTmpZip("content.json", rantByteArr(10_000), "Thumbnails/thumbnail.png", thumbnail);
+        Path edited = createTmpZip("content.json", rantByteArr(10_000), "Thumbnails/thumbnail.png", thumbnail);
+
+        assertFalse(Arrays.equals(subj.hash(saved, HashAlgorithm.MD5, HashMode.ZIP_ENTRIES),
+                subj.hash(edited, HashAlgorithm.MD5, HashMode.ZIP_ENTRIES)));
+    }
+
+    @Test
+    public void hashZipEntries_shouldHashWholeFileWhenNotZip() throws IOException {
+        Path testPath = createTmpFile(rantByteArr(5_000));
+
+        assertArrayEquals(subj.hash(testPath, HashAlgorithm.MD5, HashMode.CONTENT),
+                subj.hash(testPath, HashAlgorithm.MD5, HashMode.ZIP_ENTRIES));
+    }
+
+    /**
+     * @param entries чередующиеся имя записи и ее содержимое
+     */
+    private Path createTmpZip(Object... entries) throws IOException {
+        Path tempFile = createTmpFile(XMIND_SUFFIX);
+        try (OutputStream out = Files.newOutputStream(tempFile);
+             ZipOutputStream zip = new ZipOutputStream(out)) {
+            for (int i = 0; i < entries.length; i += 2) {
+                zip.putNextEntry(new ZipEntry((String) entries[i]));
+                zip.write((byte[]) entries[i + 1]);
+                zip.closeEntry();
+            }
+        }
+        return tempFile;
+    }
+
+    private Path createTmpFile(byte[] content) throws IOException {
+        Path tempFile = createTmpFile(XMIND_SUFFIX);
+        Files.write(tempFile, content);
+        return tempFile;
+    }
+
+    @AfterClass
+    public static void removeTempFiles() throws IOException {
+        for (Path tempPath : tempFiles) {
+            Files.deleteIfExists(tempPath);
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package com.github.rkharisov.chunks.load;
+
+import com.github.rkharisov.Utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Function;
+
+/**
+ * Синтетическая нагрузка на каталог с картами.
+ *
+ * Строит дерево из каталогов с файлами .xmind уникального содержимого и выполняет над ним случайные операции:
+ * создание, изменение, переименование и удаление файла, перенос каталога. Для каждой операции запоминается,
+ * каким должно стать состояние базы: путь активен с хешем содержимого или не активен. Проверка, вытесненная
+ * более поздней операцией над тем же путем, больше этот путь не ждет
+ */
+class FsLoadGenerator {
+
+    enum Operation {
+        CREATE(25), MODIFY(35), RENAME(15), DELETE(15), MOVE_DIR(1);
+
+        private final int weight;
+
+        Operation(int weight) {
+            this.weight = weight;
+        }
+    }
+
+    private static final int MAX_FILE_SIZE = 16 * 1024;
+
+    private final Path root;
+    private final Random random;
+
+    private final List<Path> dirs = new ArrayList<>();
+    /**
+     * Файлы на диске и хеши их содержимого
+     */
+    private final Map<Path, byte[]> files = new HashMap<>();
+    private final Map<Path, Check> waiting = new HashMap<>();
+    private final List<Check> checks = new ArrayList<>();
+    private final List<Long> latencies = new ArrayList<>();
+    private final Map<Operation, Integer> issued = new EnumMap<>(Operation.class);
+    private int superseded;
+    private long counter;
+
+    FsLoadGenerator(Path root, long seed) {
+        this.root = root;
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Построить начальное дерево. Проверки для него не создаются: его принимает первичное сканирование
+     */
+    void createTree(int fileCount, int dirCount) throws IOException, NoSuchAlgorithmException {
+        for (int i = 0; i < dirCount; i++) {
+            dirs.add(Files.createDirectories(root.resolve("dir" + i)));
+        }
+        for (int i = 0; i < fileCount; i++) {
+            Path file = dirs.get(i % dirCount).resolve("map" + ++counter + ".xmind");
+            files.put(file, writeMap(file));
+        }
+    }
+
+    /**
+     * Выполнить случайную операцию
+     *
+     * @param now {@link System#nanoTime()}
+     */
+    Operation next(long now) throws IOException, NoSuchAlgorithmException {
+        Operation operation = pick();
+        Map<Path, byte[]> expected = new HashMap<>();
+        switch (operation) {
+            case CREATE: {
+                Path file = randomDir().resolve("map" + ++counter + ".xmind");
+                byte[] digest = writeMap(file);
+                files.put(file, digest);
+                expected.put(file, digest);
+                break;
+            }
+            case MODIFY: {
+                Path file = randomFile();
+                byte[] digest = writeMap(file);
+                files.put(file, digest);
+                expected.put(file, digest);
+                break;
+            }
+            case RENAME: {
+                Path file = randomFile();
+                Path target = file.resolveSibling("map" + ++counter + ".xmind");
+                Files.move(file, target, StandardCopyOption.ATOMIC_MOVE);
+                byte[] digest = files.remove(file);
+                files.put(target, digest);
+                expected.put(file, null);
+                expected.put(target, digest);
+                break;
+            }
+            case DELETE: {
+                Path file = randomFile();
+                Files.delete(file);
+                files.remove(file);
+                expected.put(file, null);
+                break;
+            }
+            case MOVE_DIR: {
+                Path dir = randomDir();
+                Path target = root.resolve("dir" + ++counter);
+                Files.move(dir, target, StandardCopyOption.ATOMIC_MOVE);
+                dirs.set(dirs.indexOf(dir), target);
+                for (Path file : new ArrayList<>(files.keySet())) {
+                    if (!file.startsWith(dir)) continue;
+                    byte[] digest = files.remove(file);
+                    Path moved = target.resolve(dir.relativize(file));
+                    files.put(moved, digest);
+                    expected.put(file, null);
+                    expected.put(moved, digest);
+                }
+                break;
+            }
+        }
+        issued.merge(operation, 1, Integer::sum);
+        await(new Check(now, expected));
+        return operation;
+    }
+
+    /**
+     * Сверить ожидающие проверки с базой
+     *
+     * @param stored хеш активного чанка по пути, null - активного чанка нет
+     * @param now    {@link System#nanoTime()}
+     * @return число проверок, которые еще ждут
+     */
+    int poll(Function<Path, byte[]> stored, long now) {
+        Iterator<Check> iterator = checks.iterator();
+        while (iterator.hasNext()) {
+            Check check = iterator.next();
+            if (check.expected.isEmpty()) {
+                iterator.remove();
+                continue;
+            }
+            if (!check.matches(stored)) continue;
+            latencies.add(now - check.issuedAt);
+            for (Path path : check.expected.keySet()) {
+                waiting.remove(path, check);
+            }
+            iterator.remove();
+        }
+        return checks.size();
+    }
+
+    /**
+     * Расхождения диска и базы: пропущенные и лишние активные пути, пути с другим хешем
+     *
+     * @param active хеши активных чанков по пути
+     * @return
+     */
+    List<String> divergence(Map<Path, byte[]> active) {
+        List<String> problems = new ArrayList<>();
+        for (Map.Entry<Path, byte[]> file : files.entrySet()) {
+            byte[] digest = active.get(file.getKey());
+            if (digest == null) {
+                problems.add("нет в базе: " + file.getKey());
+            } else if (!Arrays.equals(digest, file.getValue())) {
+                problems.add("другой хеш: " + file.getKey());
+            }
+        }
+        for (Path path : active.keySet()) {
+            if (!files.containsKey(path)) problems.add("лишний в базе: " + path);
+        }
+        return problems;
+    }
+
+    Map<Path, byte[]> getFiles() {
+        return Collections.unmodifiableMap(files);
+    }
+
+    /**
+     * Время от операции до совпадения базы с диском по всем ее путям, нс, по возрастанию
+     */
+    List<Long> getLatencies() {
+        List<Long> sorted = new ArrayList<>(latencies);
+        Collections.sort(sorted);
+        return sorted;
+    }
+
+    Map<Operation, Integer> getIssued() {
+        return issued;
+    }
+
+    int getSuperseded() {
+        return superseded;
+    }
+
+    private void await(Check check) {
+        for (Path path : check.expected.keySet()) {
+            Check previous = waiting.put(path, check);
+            if (previous == null) continue;
+            previous.expected.remove(path);
+            if (previous.expected.isEmpty()) superseded++;
+        }
+        checks.add(check);
+    }
+
+    private Operation pick() {
+        int total = 0;
+        for (Operation operation : Operation.values()) {
+            if (isPossible(operation)) total += operation.weight;
+        }
+        int choice = random.nextInt(total);
+        for (Operation operation : Operation.values()) {
+            if (!isPossible(operation)) continue;
+            choice -= operation.weight;
+            if (choice < 0) return operation;
+        }
+        throw new IllegalStateException();
+    }
+
+    private boolean isPossible(Operation operation) {
+        return operation == Operation.CREATE || operation == Operation.MOVE_DIR || !files.isEmpty();
+    }
+
+    private Path randomDir() {
+        return dirs.get(random.nextInt(dirs.size()));
+    }
+
+    private Path randomFile() {
+        List<Path> paths = new ArrayList<>(files.keySet());
+        return paths.get(random.nextInt(paths.size()));
+    }
+
+    /**
+     * Записать уникальное содержимое случайного размера. Размер всегда отличается от прежнего, поэтому изменение
+     * видно по отпечатку, даже если время изменения файла не сдвинулось
+     */
+    private byte[] writeMap(Path file) throws IOException, NoSuchAlgorithmException {
+        long previousSize = Files.exists(file) ? Files.size(file) : -1;
+        int size;
+        do {
+            size = Long.BYTES + random.nextInt(MAX_FILE_SIZE);
+        } while (size == previousSize);
+        byte[] content = new byte[size];
+        random.nextBytes(content);
+        ByteBuffer.wrap(content).putLong(++counter);
+        Files.write(file, content);
+        return Utils.digest(content);
+    }
+
+    private static class Check {
+
+        private final long issuedAt;
+        /**
+         * Ожидаемый хеш активного чанка по пути, null - путь не активен
+         */
+        private final Map<Path, byte[]> expected;
+
+        private Check(long issuedAt, Map<Path, byte[]> expected) {
+            this.issuedAt = issuedAt;
+            this.expected = expected;
+        }
+
+        private boolean matches(Function<Path, byte[]> stored) {
+            for (Map.Entry<Path, byte[]> path : expected.entrySet()) {
+                byte[] digest = stored.apply(path.getKey());
+                if (path.getValue() == null ? digest != null : !Arrays.equals(digest, path.getValue())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.github.rkharisov.chunks.load;
+
+import com.github.rkharisov.EntryPoint;
+import com.github.rkharisov.chunks.model.entity.ChunkEntity;
+import com.github.rkharisov.chunks.model.projection.ChunkView;
+import com.github.rkharisov.chunks.model.projection.PathHash;
+import com.github.rkharisov.chunks.repository.ChunkRepository;
+import com.github.rkharisov.chunks.service.AbstractTest;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Нагрузочный прогон наблюдателя на настоящем каталоге и H2: синтетическое дерево карт, всплески операций
+ * с заданной скоростью, время до совпадения базы с диском и итоговые расхождения.
+ *
+ * Выполняется только с -Dchunks.loadTest=true, обычно через ./gradlew loadTest. Параметры - системные свойства
+ * chunks.loadTest.files, dirs, rate (операций в секунду), burst, durationSeconds, settleSeconds, seed
+ */
+public class WatcherLoadTest {
+
+    private static final Logger log = LoggerFactory.getLogger(WatcherLoadTest.class);
+
+    private static final long POLL_INTERVAL = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private static Path workDir;
+    private static Path mapDir;
+    private static FsLoadGenerator generator;
+    private static ConfigurableApplicationContext context;
+    private static ChunkRepository chunkRepository;
+
+    @BeforeClass
+    public static void setUp() throws IOException, NoSuchAlgorithmException {
+        assumeTrue("Нагрузочный прогон включается -Dchunks.loadTest=true", Boolean.getBoolean("chunks.loadTest"));
+        workDir = Files.createTempDirectory("chunks-load");
+        mapDir = Files.createDirectories(workDir.resolve("maps")).toRealPath();
+        generator = new FsLoadGenerator(mapDir, Long.getLong("chunks.loadTest.seed", 1L));
+        generator.createTree(Integer.getInteger("chunks.loadTest.files", 1000),
+                Integer.getInteger("chunks.loadTest.dirs", 20));
+
+        context = SpringApplication.run(EntryPoint.class,
+                "--webdav.workdir=" + workDir,
+                "--webdav.mapDirs=" + mapDir,
+                "--spring.datasource.url=jdbc:h2:mem:load;DB_CLOSE_DELAY=-1",
+                "--spring.jpa.hibernate.ddl-auto=create-drop",
+                "--server.port=0",
+                "--logging.level.com.github.rkharisov=INFO");
+        chunkRepository = context.getBean(ChunkRepository.class);
+    }
+
+    @AfterClass
+    public static void tearDown() throws IOException {
+        if (context != null) context.close();
+        if (workDir == null) return;
+        AbstractTest.deleteTree(workDir);
+    }
+
+    @Test
+    public void timeToConsistency() throws IOException, NoSuchAlgorithmException, InterruptedException {
+        long settle = TimeUnit.SECONDS.toNanos(Integer.getInteger("chunks.loadTest.settleSeconds", 60));
+        awaitConsistent(settle);
+        log.info("Начальное дерево из {} файлов принято", generator.getFiles().size());
+
+        double rate = Double.parseDouble(System.getProperty("chunks.loadTest.rate", "200"));
+        int burst = Integer.getInteger("chunks.loadTest.burst", 50);
+        long duration = TimeUnit.SECONDS.toNanos(Integer.getInteger("chunks.loadTest.durationSeconds", 30));
+        long burstPeriod = (long) (TimeUnit.SECONDS.toNanos(1) * burst / rate);
+
+        long started = System.nanoTime();
+        long nextBurst = started;
+        int operations = 0;
+        while (System.nanoTime() - started < duration) {
+            for (int i = 0; i < burst; i++) {
+                generator.next(System.nanoTime());
+                operations++;
+            }
+            nextBurst += burstPeriod;
+            //до следующего всплеска сверяем ожидающие операции с базой
+            while (System.nanoTime() < nextBurst) {
+                generator.poll(this::storedDigest, System.nanoTime());
+                sleepUntil(Math.min(nextBurst, System.nanoTime() + POLL_INTERVAL));
+            }
+        }
+        long loadNanos = System.nanoTime() - started;
+
+        long settleUntil = System.nanoTime() + settle;
+        int waiting;
+        while ((waiting = generator.poll(this::storedDigest, System.nanoTime())) > 0 && System.nanoTime() < settleUntil) {
+            sleepUntil(System.nanoTime() + POLL_INTERVAL);
+        }
+        List<String> divergence = generator.divergence(activeDigests());
+
+        List<Long> latencies = generator.getLatencies();
+        log.info("Операций {} за {} с ({} оп/с): {}, вытеснено более поздними {}",
+                operations, TimeUnit.NANOSECONDS.toSeconds(loadNanos),
+                String.format("%.1f", operations * 1e9 / loadNanos), generator.getIssued(), generator.getSuperseded());
+        log.info("Время до совпадения с базой, мс: p50 {}, p99 {}, max {}; не дождались {}",
+                millis(percentile(latencies, 0.5)), millis(percentile(latencies, 0.99)),
+                millis(percentile(latencies, 1.0)), waiting);
+        divergence.stream().limit(20).forEach(problem -> log.warn("Расхождение: {}", problem));
+        assertEquals("Расхождений диска и базы: " + divergence.size(), 0, divergence.size());
+    }
+
+    private void awaitConsistent(long timeout) throws InterruptedException {
+        long until = System.nanoTime() + timeout;
+        while (!generator.divergence(activeDigests()).isEmpty() && System.nanoTime() < until) {
+            TimeUnit.MILLISECONDS.sleep(200);
+        }
+    }
+
+    private byte[] storedDigest(Path path) {
+        return chunkRepository.findByPath(path.toString())
+                .filter(chunk -> Boolean.TRUE.equals(chunk.getActive()))
+                .map(ChunkEntity::getHash)
+                .orElse(null);
+    }
+
+    private Map<Path, byte[]> activeDigests() {
+        Map<String, byte[]> hashes = new HashMap<>();
+        for (PathHash pathHash : chunkRepository.findAllPathHashes()) {
+            if (pathHash.getPath() != null) hashes.put(pathHash.getPath(), pathHash.getHash());
+        }
+        Map<Path, byte[]> active = new HashMap<>();
+        for (ChunkView chunk : chunkRepository.findActiveViews()) {
+            active.put(Paths.get(chunk.getPath()), hashes.get(chunk.getPath()));
+        }
+        return active;
+    }
+
+    private static void sleepUntil(long deadline) throws InterruptedException {
+        long left = deadline - System.nanoTime();
+        if (left > 0) TimeUnit.NANOSECONDS.sleep(left);
+    }
+
+    private static long percentile(List<Long> sorted, double percentile) {
+        if (sorted.isEmpty()) return 0;
+        int index = (int) Math.ceil(percentile * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(index, sorted.size() - 1)));
+    }
+
+    private static long millis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+}
@@ -0,0 +1,188 @@
+package com.github.rkharisov.chunks.repository;
+
+import com.github.rkharisov.Utils;
+import com.github.rkharisov.chunks.model.entity.ChunkEntity;
+import com.github.rkharisov.chunks.model.enums.HashAlgorithm;
+import com.github.rkharisov.chunks.model.enums.RepeatInterval;
+import com.github.rkharisov.chunks.model.projection.ChunkView;
+import org.hibernate.resource.jdbc.spi.StatementInspector;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.domain.EntityScan;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Types;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Stream;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.not;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Планы запросов {@link ChunkRepository} в H2: ни один запрос не должен читать таблицу целиком.
+ * Исключения - {@link ChunkRepository#findAllPathHashes()} и {@link ChunkRepository#findViewsWithoutName()},
+ * которые один раз при старте читают все строки
+ */
+@RunWith(SpringRunner.class)
+@DataJpaTest
+@TestPropertySource(properties = "spring.jpa.properties.hibernate.session_factory.statement_inspector="
+        + "com.github.rkharisov.chunks.repository.ChunkRepositoryPlanTest$SqlCapture")
+public class ChunkRepositoryPlanTest {
+
+    private static final String DIR = "/maps/dir";
+
+    @Configuration
+    @EntityScan(basePackageClasses = ChunkEntity.class)
+    @EnableJpaRepositories(basePackageClasses = ChunkRepository.class)
+    static class Config {
+    }
+
+    /**
+     * Запоминает SQL, который Hibernate отправляет в базу
+     */
+    public static class SqlCapture implements StatementInspector {
+
+        private static final List<String> statements = new CopyOnWriteArrayList<>();
+
+        @Override
+        public String inspect(String sql) {
+            statements.add(sql);
+            return sql;
+        }
+    }
+
+    @Autowired
+    private ChunkRepository chunkRepository;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Before
+    public void setUp() {
+        SqlCapture.statements.clear();
+    }
+
+    @Test
+    public void findByPath() {
+        assertUsesIndex(() -> chunkRepository.findByPath(DIR));
+    }
+
+    @Test
+    public void findByHash() {
+        assertUsesIndex(() -> chunkRepository.findByHash(new byte[]{1}));
+    }
+
+    @Test
+    public void findActivityViews() {
+        assertUsesIndex(() -> {
+            try (Stream<ChunkView> chunks = chunkRepository.findActivityViews(LocalDate.now())) {
+                chunks.count();
+            }
+        });
+    }
+
+    @Test
+    public void findDuePages() {
+        assertUsesIndex(() -> chunkRepository.findDueFirstPage(LocalDate.now(), PageRequest.of(0, 10)));
+        assertUsesIndex(() -> chunkRepository.findDuePageAfter(LocalDate.now(), LocalDate.now().minusDays(1),
+                UUID.randomUUID(), PageRequest.of(0, 10)));
+    }
+
+    @Test
+    public void findAllActive() {
+        assertUsesIndex(() -> chunkRepository.findActiveViews());
+    }
+
+    @Test
+    public void existsByHashAlgorithm() {
+        assertUsesIndex(() -> chunkRepository.existsByHashAlgorithm(HashAlgorithm.MD5));
+        assertUsesIndex(() -> chunkRepository.existsByHashAlgorithmIsNull());
+    }
+
+    @Test
+    public void findActiveFingerprints() {
+        assertUsesIndex(() -> chunkRepository.findActiveFingerprints());
+    }
+
+    @Test
+    public void findFingerprintsByPathRange() {
+        assertUsesIndex(() -> chunkRepository.findFingerprintsByPathRange(Utils.childrenFrom(DIR), Utils.childrenTo(DIR)));
+    }
+
+    @Test
+    public void deactivateByPathRange() {
+        assertUsesIndex(() -> chunkRepository.deactivateByPathRange(Utils.childrenFrom(DIR), Utils.childrenTo(DIR)));
+    }
+
+    @Test
+    public void movePathRange() {
+        List<String> paths = Arrays.asList("/maps/moved/1.xmind", "/maps/moved/2.xmind");
+        assertUsesIndex(() -> chunkRepository.existsByActiveIsTrueAndPathIn(paths));
+        assertUsesIndex(() -> chunkRepository.releaseInactivePaths(paths));
+        assertUsesIndex(() -> chunkRepository.movePathRange(Utils.childrenFrom(DIR), Utils.childrenTo(DIR),
+                DIR.length() + 1, "/maps/moved"));
+    }
+
+    @Test
+    public void deactivateAll() {
+        assertUsesIndex(() -> chunkRepository.deactivateAll(Arrays.asList(DIR + "/1.xmind", DIR + "/2.xmind")));
+    }
+
+    @Test
+    public void bulkStatements() {
+        List<UUID> ids = Arrays.asList(UUID.randomUUID(), UUID.randomUUID());
+        assertUsesIndex(() -> chunkRepository.findStatesByIdIn(ids));
+        assertUsesIndex(() -> chunkRepository.findViewsByIdIn(ids));
+        assertUsesIndex(() -> chunkRepository.reschedule(ids, RepeatInterval.DAY, LocalDate.now()));
+        assertUsesIndex(() -> chunkRepository.unmutateAll(ids));
+    }
+
+    private void assertUsesIndex(Runnable query) {
+        SqlCapture.statements.clear();
+        query.run();
+        List<String> statements = new ArrayList<>(SqlCapture.statements);
+        assertFalse(statements.isEmpty());
+        for (String sql : statements) {
+            assertThat(sql, explain(sql), not(containsString("tableScan")));
+        }
+    }
+
+    /**
+     * План H2 строится при подготовке запроса, значения параметров на выбор индекса не влияют
+     *
+     * @param sql
+     * @return
+     */
+    private String explain(String sql) {
+        return jdbcTemplate.execute((Connection connection) -> {
+            try (PreparedStatement statement = connection.prepareStatement("EXPLAIN " + sql)) {
+                int parameters = statement.getParameterMetaData().getParameterCount();
+                for (int i = 1; i <= parameters; i++) {
+                    statement.setNull(i, Types.NULL);
+                }
+                try (ResultSet plan = statement.executeQuery()) {
+                    plan.next();
+                    return plan.getString(1);
+                }
+            }
+        });
+    }
+}
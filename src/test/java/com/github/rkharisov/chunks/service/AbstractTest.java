@@ -1,11 +1,15 @@
 package com.github.rkharisov.chunks.service;
 
 import com.github.rkharisov.chunks.model.entity.ChunkEntity;
+import com.github.rkharisov.chunks.model.entity.Fingerprint;
 import com.github.rkharisov.chunks.model.enums.RepeatInterval;
+import com.github.rkharisov.chunks.model.projection.ChunkView;
+import com.github.rkharisov.chunks.model.projection.PathFingerprint;
 
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.time.LocalDate;
 import java.util.*;
 import java.util.function.Function;
@@ -98,6 +102,43 @@ public class AbstractTest {
                 .collect(Collectors.toList());
     }
 
+    public static Fingerprint fingerprint(Path file) throws IOException {
+        return Fingerprint.of(Files.readAttributes(file, BasicFileAttributes.class));
+    }
+
+    /**
+     * Отпечаток чанка в базе, снятый с файла
+     *
+     * @param path      путь чанка
+     * @param file      файл, атрибуты которого записаны в отпечаток
+     * @param sizeDelta прибавка к размеру, чтобы отпечатки не совпали
+     */
+    public static PathFingerprint stored(String path, Path file, boolean active, long sizeDelta) throws IOException {
+        Fingerprint fingerprint = fingerprint(file);
+        return new PathFingerprint(path, active, fingerprint.getFileSize() + sizeDelta,
+                fingerprint.getLastModified(), fingerprint.getFileKey());
+    }
+
+    public static PathFingerprint stored(Path file, boolean active, long sizeDelta) throws IOException {
+        return stored(file.toString(), file, active, sizeDelta);
+    }
+
+    /**
+     * Удаляет временный каталог со всем содержимым
+     *
+     * @param dir
+     */
+    public static void deleteTree(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    public ChunkView view(ChunkEntity chunk) {
+        return new ChunkView(chunk.getId(), chunk.getName(), chunk.getPath(), chunk.getCurrentRepetitionInterval(),
+                chunk.getNextRepeatDate(), chunk.getActive(), chunk.getMutated());
+    }
+
 
     static class Pair {
         String name;
@@ -0,0 +1,102 @@
+package com.github.rkharisov.chunks.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.rkharisov.chunks.hash.ContentHasher;
+import com.github.rkharisov.chunks.metrics.IngestMetrics;
+import com.github.rkharisov.chunks.model.entity.ChunkEntity;
+import com.github.rkharisov.chunks.model.response.ChunkDTO;
+import com.github.rkharisov.chunks.model.response.ChunkPage;
+import com.github.rkharisov.chunks.repository.ChunkRepository;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.domain.EntityScan;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+/**
+ * Постраничная выдача {@link ActivityService} по ключу (nextRepeatDate, id) в H2
+ */
+@RunWith(SpringRunner.class)
+@DataJpaTest
+public class ActivityServiceJpaTest extends AbstractTest {
+
+    @Configuration
+    @EntityScan(basePackageClasses = ChunkEntity.class)
+    @EnableJpaRepositories(basePackageClasses = ChunkRepository.class)
+    @Import({ActivityService.class, ChunkService.class, ContentHasher.class, DueIndex.class, ChunkCache.class,
+            KnownKeys.class, IngestMetrics.class})
+    static class Config {
+
+        @Bean
+        MeterRegistry meterRegistry() {
+            return new SimpleMeterRegistry();
+        }
+
+        @Bean
+        ObjectMapper objectMapper() {
+            return new ObjectMapper();
+        }
+    }
+
+    @Autowired
+    private ActivityService activityService;
+
+    @Autowired
+    private ChunkRepository chunkRepository;
+
+    @Test
+    public void getRepeatPage_shouldBreakDateTiesByIdAcrossPages() {
+        LocalDate today = LocalDate.now();
+        List<UUID> expected = new ArrayList<>();
+        expected.add(save(today.minusDays(1)));
+        //у границы страницы даты совпадают, порядок определяет id
+        for (int i = 0; i < 5; i++) {
+            expected.add(save(today));
+        }
+        save(today.plusDays(1));
+
+        List<ChunkDTO> items = new ArrayList<>();
+        List<LocalDate> dates = new ArrayList<>();
+        String cursor = null;
+        int pages = 0;
+        do {
+            ChunkPage page = activityService.getRepeatPage(today, cursor, 2);
+            items.addAll(page.getItems());
+            cursor = page.getNext();
+            pages++;
+        } while (cursor != null && pages < 10);
+
+        List<UUID> ids = items.stream().map(ChunkDTO::getId).collect(Collectors.toList());
+        Set<UUID> unique = new HashSet<>(ids);
+        assertEquals("страницы не должны повторять чанки", ids.size(), unique.size());
+        assertEquals(new HashSet<>(expected), unique);
+        assertEquals(expected.get(0), ids.get(0));
+        for (UUID id : ids) {
+            dates.add(chunkRepository.findById(id).get().getNextRepeatDate());
+        }
+        for (int i = 1; i < dates.size(); i++) {
+            assertFalse(dates.get(i).isBefore(dates.get(i - 1)));
+        }
+    }
+
+    private UUID save(LocalDate nextRepeatDate) {
+        return chunkRepository.saveAndFlush(chunkEntity().setId(null).setNextRepeatDate(nextRepeatDate)).getId();
+    }
+}
@@ -0,0 +1,157 @@
+package com.github.rkharisov.chunks.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.rkharisov.chunks.model.entity.ChunkEntity;
+import com.github.rkharisov.chunks.model.projection.ChunkView;
+import com.github.rkharisov.chunks.model.response.ChunkDTO;
+import com.github.rkharisov.chunks.model.response.ChunkPage;
+import com.github.rkharisov.chunks.repository.ChunkRepository;
+import org.junit.Test;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+public class ActivityServiceTest extends AbstractTest {
+
+    private final ChunkRepository chunkRepository = mock(ChunkRepository.class);
+    private final ChunkService chunkService = mock(ChunkService.class);
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Test
+    public void getETag_shouldDifferAfterRestartWithSameVersion() throws Exception {
+        ChunkEntity chunk = chunkEntity().setMutated(false);
+        LocalDate today = LocalDate.now();
+        ActivityService beforeRestart = activityService(chunk);
+        ActivityService afterRestart = activityService(chunk);
+
+        String eTag = beforeRestart.getETag(today);
+
+        assertEquals(eTag, beforeRestart.getETag(today));
+        assertEquals(eTag, beforeRestart.getActivities(today).getETag());
+        //версия индекса после перезапуска та же, но ответ мог измениться
+        assertEquals(dueIndex(beforeRestart).getVersion(), dueIndex(afterRestart).getVersion());
+        assertNotEquals(eTag, afterRestart.getETag(today));
+        assertNotEquals(eTag, afterRestart.getActivities(today).getETag());
+    }
+
+    @Test
+    public void getRepeatPage_shouldContinueAfterKeyOfLastItem() {
+        LocalDate today = LocalDate.now();
+        ChunkView first = view(chunkEntity().setNextRepeatDate(today.minusDays(1)));
+        ChunkView last = view(chunkEntity().setNextRepeatDate(today));
+        ChunkView next = view(chunkEntity().setNextRepeatDate(today));
+        doReturn(Arrays.asList(first, last)).when(chunkRepository).findDueFirstPage(today, PageRequest.of(0, 2));
+        doReturn(Collections.singletonList(next)).when(chunkRepository)
+                .findDuePageAfter(today, last.getNextRepeatDate(), last.getId(), PageRequest.of(0, 2));
+        ActivityService subj = activityService();
+
+        ChunkPage firstPage = subj.getRepeatPage(today, null, 2);
+        ChunkPage lastPage = subj.getRepeatPage(today, firstPage.getNext(), 2);
+
+        assertEquals(Arrays.asList(first.getId(), last.getId()), ids(firstPage.getItems()));
+        assertNotNull(firstPage.getNext());
+        assertEquals(Collections.singletonList(next.getId()), ids(lastPage.getItems()));
+        assertNull(lastPage.getNext());
+    }
+
+    @Test
+    public void getRepeatPage_shouldRejectMalformedCursor() {
+        ActivityService subj = activityService();
+        List<String> cursors = Arrays.asList("%%%", encode("1"), encode("1:" + randStr()), encode("day:" + uuid()));
+
+        for (String cursor : cursors) {
+            try {
+                subj.getRepeatPage(LocalDate.now(), cursor, 10);
+                fail("Курсор принят: " + cursor);
+            } catch (IllegalArgumentException expected) {
+                //контроллер отвечает на это 400
+            }
+        }
+        verify(chunkRepository, never()).findDuePageAfter(any(), any(), any(), any());
+    }
+
+    @Test
+    public void writeActivities_shouldWriteSameShapeAsCachedResponse() throws Exception {
+        LocalDate today = LocalDate.now();
+        ChunkEntity due = chunkEntity().setNextRepeatDate(today.minusDays(1)).setMutated(false);
+        ChunkEntity dueMutated = chunkEntity().setNextRepeatDate(today).setMutated(true);
+        ChunkEntity futureMutated = chunkEntity().setNextRepeatDate(today.plusDays(3)).setMutated(true);
+        doAnswer(invocation -> Arrays.asList(due, dueMutated, futureMutated).stream().map(this::view))
+                .when(chunkService).getActivityViews(today);
+        ActivityService subj = activityService(due, dueMutated, futureMutated);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        subj.writeActivities(today, out);
+
+        JsonNode streamed = objectMapper.readTree(out.toByteArray());
+        JsonNode cached = objectMapper.readTree(subj.getActivities(today).getBody());
+        assertEquals(Arrays.asList(DueIndex.REPEAT, DueIndex.MUTATED), fieldNames(streamed));
+        assertEquals(new HashSet<>(Arrays.asList(due.getId().toString(), dueMutated.getId().toString())),
+                idSet(streamed.get(DueIndex.REPEAT)));
+        assertEquals(new HashSet<>(Arrays.asList(dueMutated.getId().toString(), futureMutated.getId().toString())),
+                idSet(streamed.get(DueIndex.MUTATED)));
+        assertEquals(new HashSet<>(Arrays.asList("name", "id", "currentRepetitionInterval", "path")),
+                new HashSet<>(fieldNames(streamed.get(DueIndex.REPEAT).get(0))));
+        for (String key : Arrays.asList(DueIndex.REPEAT, DueIndex.MUTATED)) {
+            assertEquals(idSet(cached.get(key)), idSet(streamed.get(key)));
+            assertEquals(fieldNames(cached.get(key).get(0)), fieldNames(streamed.get(key).get(0)));
+        }
+    }
+
+    private ActivityService activityService(ChunkEntity... chunks) {
+        DueIndex dueIndex = new DueIndex();
+        dueIndex.rebuild(() -> Arrays.stream(chunks).map(this::view).collect(Collectors.toList()));
+        ActivityService activityService = new ActivityService();
+        ReflectionTestUtils.setField(activityService, "dueIndex", dueIndex);
+        ReflectionTestUtils.setField(activityService, "chunkService", chunkService);
+        ReflectionTestUtils.setField(activityService, "chunkRepository", chunkRepository);
+        ReflectionTestUtils.setField(activityService, "objectMapper", objectMapper);
+        ReflectionTestUtils.setField(activityService, "maxPageSize", 1000);
+        return activityService;
+    }
+
+    private DueIndex dueIndex(ActivityService activityService) {
+        return (DueIndex) ReflectionTestUtils.getField(activityService, "dueIndex");
+    }
+
+    private static String encode(String key) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static List<UUID> ids(List<ChunkDTO> dtos) {
+        return dtos.stream().map(ChunkDTO::getId).collect(Collectors.toList());
+    }
+
+    private static Set<String> idSet(JsonNode array) {
+        Set<String> ids = new HashSet<>();
+        for (JsonNode item : array) {
+            ids.add(item.get("id").asText());
+        }
+        return ids;
+    }
+
+    private static List<String> fieldNames(JsonNode node) {
+        List<String> names = new ArrayList<>();
+        Iterator<String> iterator = node.fieldNames();
+        iterator.forEachRemaining(names::add);
+        return names;
+    }
+}
@@ -0,0 +1,91 @@
+package com.github.rkharisov.chunks.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.rkharisov.chunks.model.enums.BulkStatus;
+import com.github.rkharisov.chunks.model.response.BulkResult;
+import com.github.rkharisov.chunks.repository.ChunkRepository;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.*;
+
+public class BulkCommandServiceTest extends AbstractTest {
+
+    private final ChunkRepository chunkRepository = mock(ChunkRepository.class);
+    private ChunkService chunkService;
+    private BulkCommandService subj;
+
+    @Before
+    public void setUp() {
+        ChunkCache chunkCache = new ChunkCache();
+        ReflectionTestUtils.setField(chunkCache, "maxSize", 0);
+        chunkService = spy(new ChunkService());
+        ReflectionTestUtils.setField(chunkService, "chunkRepository", chunkRepository);
+        ReflectionTestUtils.setField(chunkService, "chunkCache", chunkCache);
+        subj = new BulkCommandService();
+        ReflectionTestUtils.setField(subj, "chunkService", chunkService);
+        ReflectionTestUtils.setField(subj, "objectMapper", new ObjectMapper());
+        ReflectionTestUtils.setField(subj, "maxCommands", 3);
+        when(chunkRepository.findStatesByIdIn(any())).thenReturn(Collections.emptyList());
+    }
+
+    @Test
+    public void execute_shouldMarkNonObjectElementsInvalidAndRunTheRest() throws IOException {
+        UUID missing = uuid();
+
+        List<BulkResult> results = subj.execute(json("[{\"op\": \"DROP\", \"id\": \"" + missing + "\"}, 42, [\"DROP\"]]"));
+
+        assertEquals(Arrays.asList(BulkStatus.NOT_FOUND, BulkStatus.INVALID, BulkStatus.INVALID),
+                results.stream().map(BulkResult::getStatus).collect(Collectors.toList()));
+        assertEquals(missing.toString(), results.get(0).getId());
+        verify(chunkRepository).findStatesByIdIn(Collections.singletonList(missing));
+    }
+
+    @Test
+    public void execute_shouldRejectBatchLargerThanMaxCommands() throws IOException {
+        String command = "{\"op\": \"DROP\", \"id\": \"" + uuid() + "\"}";
+
+        try {
+            subj.execute(json("[" + String.join(", ", Collections.nCopies(4, command)) + "]"));
+            fail("Пакет больше maxCommands должен отклоняться");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("3"));
+        }
+
+        verify(chunkService, never()).applyBulk(anyList());
+    }
+
+    @Test
+    public void execute_shouldFailWithIOExceptionOnMalformedJson() {
+        for (String body : Arrays.asList("[{\"op\": \"DROP\",", "[{\"op\" \"DROP\"}]", "{\"op\": \"DROP\"}", "")) {
+            try {
+                subj.execute(json(body));
+                fail("Тело должно отклоняться: " + body);
+            } catch (IOException e) {
+                //JsonProcessingException тоже IOException, контроллер отвечает на оба 400
+                assertTrue(body, e instanceof JsonProcessingException || e.getMessage().startsWith("Ожидается"));
+            }
+        }
+
+        verify(chunkService, never()).applyBulk(anyList());
+    }
+
+    private static InputStream json(String body) {
+        return new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,121 @@
+package com.github.rkharisov.chunks.service;
+
+import com.github.rkharisov.chunks.model.projection.ChunkState;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.File;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Function;
+
+import static com.github.rkharisov.chunks.model.enums.RepeatInterval.DAY;
+import static com.github.rkharisov.chunks.model.enums.RepeatInterval.WEEK;
+import static org.junit.Assert.*;
+
+public class ChunkCacheTest extends AbstractTest {
+
+    private static final String DIR = File.separator + "maps" + File.separator + "dir";
+
+    private final ChunkCache subj = new ChunkCache();
+    private final List<UUID> loaded = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        ReflectionTestUtils.setField(subj, "maxSize", 2);
+        ReflectionTestUtils.setField(subj, "ttlMs", 60000L);
+    }
+
+    @Test
+    public void getStates_shouldLoadOnlyMisses() {
+        ChunkState first = state(DIR + File.separator + "a.xmind");
+        ChunkState second = state(DIR + File.separator + "b.xmind");
+        subj.getStates(Collections.singletonList(first.getId()), loader(first, second));
+        loaded.clear();
+
+        List<ChunkState> states = subj.getStates(Arrays.asList(first.getId(), second.getId()), loader(first, second));
+
+        assertEquals(2, states.size());
+        assertEquals(Collections.singletonList(second.getId()), loaded);
+        assertEquals(1, subj.getHits());
+        assertEquals(2, subj.getMisses());
+    }
+
+    @Test
+    public void put_shouldReplaceStateAndEvictLeastRecentlyRead() {
+        ChunkState first = state(DIR + File.separator + "a.xmind");
+        ChunkState second = state(DIR + File.separator + "b.xmind");
+        ChunkState third = state(DIR + File.separator + "c.xmind");
+        subj.put(first);
+        subj.put(second);
+        //чтение делает first свежее second
+        subj.getStates(Collections.singletonList(first.getId()), loader());
+        ChunkState repeated = new ChunkState(first.getId(), first.getPath(), WEEK, LocalDate.now().plusDays(7), true, false);
+        subj.put(repeated);
+        subj.put(third);
+
+        assertEquals(2, subj.size());
+        assertEquals(Collections.singletonList(repeated), subj.getStates(Collections.singletonList(first.getId()), loader()));
+        subj.getStates(Collections.singletonList(second.getId()), loader());
+        assertEquals(Collections.singletonList(second.getId()), loaded);
+    }
+
+    @Test
+    public void getStates_shouldExpireByTtl() throws InterruptedException {
+        ReflectionTestUtils.setField(subj, "ttlMs", 1L);
+        ChunkState chunk = state(DIR + File.separator + "a.xmind");
+        subj.put(chunk);
+        Thread.sleep(5);
+
+        subj.getStates(Collections.singletonList(chunk.getId()), loader(chunk));
+
+        assertEquals(Collections.singletonList(chunk.getId()), loaded);
+    }
+
+    @Test
+    public void invalidateDir_shouldDropOnlyChunksInsideDir() {
+        ChunkState inside = state(DIR + File.separator + "a.xmind");
+        ChunkState sibling = state(DIR + "2" + File.separator + "b.xmind");
+        subj.put(inside);
+        subj.put(sibling);
+
+        subj.invalidateDir(DIR);
+
+        subj.getStates(Arrays.asList(inside.getId(), sibling.getId()), loader(inside));
+        assertEquals(Collections.singletonList(inside.getId()), loaded);
+    }
+
+    @Test
+    public void getStates_shouldNotCacheLoadRacingWithChange() {
+        ChunkState stale = state(DIR + File.separator + "a.xmind");
+        ChunkState current = new ChunkState(stale.getId(), stale.getPath(), WEEK, LocalDate.now().plusDays(7), true, false);
+
+        subj.getStates(Collections.singletonList(stale.getId()), ids -> {
+            //изменение зафиксировано, пока шло чтение старого состояния
+            subj.put(current);
+            return Collections.singletonList(stale);
+        });
+
+        assertEquals(Collections.singletonList(current), subj.getStates(Collections.singletonList(stale.getId()), loader()));
+    }
+
+    private ChunkState state(String path) {
+        return new ChunkState(uuid(), path, DAY, LocalDate.now(), true, false);
+    }
+
+    private Function<List<UUID>, List<ChunkState>> loader(ChunkState... stored) {
+        return ids -> {
+            loaded.addAll(ids);
+            List<ChunkState> found = new ArrayList<>();
+            for (ChunkState state : stored) {
+                if (ids.contains(state.getId())) found.add(state);
+            }
+            return found;
+        };
+    }
+}
@@ -0,0 +1,124 @@
+package com.github.rkharisov.chunks.service;
+
+import com.github.rkharisov.chunks.hash.ContentHasher;
+import com.github.rkharisov.chunks.metrics.IngestMetrics;
+import com.github.rkharisov.chunks.model.entity.ChunkEntity;
+import com.github.rkharisov.chunks.model.response.ChunkDTO;
+import com.github.rkharisov.chunks.model.response.Response;
+import com.github.rkharisov.chunks.repository.ChunkRepository;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.domain.EntityScan;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.util.Collections;
+import java.util.List;
+
+import static com.github.rkharisov.chunks.model.enums.RepeatInterval.DAY;
+import static com.github.rkharisov.chunks.model.enums.RepeatInterval.WEEK;
+import static com.github.rkharisov.chunks.model.enums.RepeatInterval.YEAR;
+import static org.junit.Assert.*;
+
+/**
+ * Запросы изменения {@link ChunkService} в H2. Тесты идут без внешней транзакции, как вызовы из контроллера:
+ * транзакцию должен открыть сам сервис
+ */
+@RunWith(SpringRunner.class)
+@DataJpaTest
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+public class ChunkServiceJpaTest extends AbstractTest {
+
+    @Configuration
+    @EntityScan(basePackageClasses = ChunkEntity.class)
+    @EnableJpaRepositories(basePackageClasses = ChunkRepository.class)
+    @Import({ChunkService.class, ContentHasher.class, DueIndex.class, ChunkCache.class, KnownKeys.class, IngestMetrics.class})
+    static class Config {
+
+        @Bean
+        MeterRegistry meterRegistry() {
+            return new SimpleMeterRegistry();
+        }
+    }
+
+    @Autowired
+    private ChunkService chunkService;
+
+    @Autowired
+    private ChunkRepository chunkRepository;
+
+    @After
+    public void tearDown() {
+        chunkRepository.deleteAll();
+    }
+
+    @Test
+    public void dropOrUnmutate_shouldDropInOwnTransaction() {
+        ChunkEntity chunk = chunkRepository.save(chunkEntity().setId(null)
+                .setCurrentRepetitionInterval(YEAR)
+                .setNextRepeatDate(LocalDate.now().minusDays(10)));
+
+        List<ChunkDTO> dropped = chunkService.dropOrUnmutate(true, Collections.singletonList(chunk.getId().toString()));
+
+        assertEquals(1, dropped.size());
+        assertEquals(DAY, dropped.get(0).getCurrentRepetitionInterval());
+        ChunkEntity stored = chunkRepository.findById(chunk.getId()).get();
+        assertEquals(DAY, stored.getCurrentRepetitionInterval());
+        assertEquals(LocalDate.now().plusDays(1), stored.getNextRepeatDate());
+        assertFalse(stored.getMutated());
+    }
+
+    @Test
+    public void dropOrUnmutate_shouldUnmutateInOwnTransaction() {
+        ChunkEntity chunk = chunkRepository.save(chunkEntity().setId(null).setCurrentRepetitionInterval(WEEK));
+
+        List<ChunkDTO> unmutated = chunkService.dropOrUnmutate(false, Collections.singletonList(chunk.getId().toString()));
+
+        assertEquals(1, unmutated.size());
+        ChunkEntity stored = chunkRepository.findById(chunk.getId()).get();
+        assertFalse(stored.getMutated());
+        assertEquals(WEEK, stored.getCurrentRepetitionInterval());
+    }
+
+    @Test
+    public void markRepeated_shouldRescheduleInOwnTransaction() {
+        LocalDate past = LocalDate.now().minusDays(1);
+        ChunkEntity chunk = chunkRepository.save(chunkEntity().setId(null).setNextRepeatDate(past));
+
+        Response response = chunkService.markRepeated(chunk.getId());
+
+        assertTrue(response instanceof ChunkDTO);
+        ChunkEntity stored = chunkRepository.findById(chunk.getId()).get();
+        assertEquals(WEEK, stored.getCurrentRepetitionInterval());
+        assertEquals(past.plus(WEEK.getPeriod()), stored.getNextRepeatDate());
+        assertFalse(stored.getMutated());
+    }
+
+    @Test
+    public void moveDir_shouldMoveOverInactiveChunkWithSamePath() {
+        Path from = Paths.get(File.separator + "maps", "old");
+        Path to = Paths.get(File.separator + "maps", "new");
+        String target = to.resolve("a.xmind").toString();
+        ChunkEntity deleted = chunkRepository.save(chunkEntity().setId(null).setPath(target).setActive(false));
+        ChunkEntity moved = chunkRepository.save(chunkEntity().setId(null).setPath(from.resolve("a.xmind").toString()));
+
+        assertTrue(chunkService.moveDir(from, to, Collections.singletonList(target)));
+
+        assertEquals(target, chunkRepository.findById(moved.getId()).get().getPath());
+        assertNull(chunkRepository.findById(deleted.getId()).get().getPath());
+    }
+}
@@ -2,31 +2,48 @@ package com.github.rkharisov.chunks.service;
 
 
 import com.github.rkharisov.Utils;
+import com.github.rkharisov.chunks.hash.ContentHasher;
+import com.github.rkharisov.chunks.hash.FileDigest;
+import com.github.rkharisov.chunks.metrics.IngestMetrics;
 import com.github.rkharisov.chunks.model.entity.ChunkEntity;
+import com.github.rkharisov.chunks.model.entity.Fingerprint;
+import com.github.rkharisov.chunks.model.enums.BulkStatus;
+import com.github.rkharisov.chunks.model.enums.RepeatInterval;
+import com.github.rkharisov.chunks.model.projection.ChunkState;
+import com.github.rkharisov.chunks.model.projection.ChunkView;
+import com.github.rkharisov.chunks.model.request.BulkCommand;
+import com.github.rkharisov.chunks.model.response.BulkResult;
 import com.github.rkharisov.chunks.model.response.ChunkDTO;
 import com.github.rkharisov.chunks.model.response.Response;
 import com.github.rkharisov.chunks.model.response.UnaryResponse;
 import com.github.rkharisov.chunks.repository.ChunkRepository;
 import org.junit.AfterClass;
+import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.InOrder;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.Spy;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.util.ReflectionTestUtils;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.security.NoSuchAlgorithmException;
 import java.time.LocalDate;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
 import java.util.function.UnaryOperator;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 import static com.github.rkharisov.chunks.model.enums.RepeatInterval.*;
 import static org.hamcrest.CoreMatchers.containsString;
@@ -44,28 +61,132 @@ public class ChunkServiceTest extends AbstractTest {
     @Mock
     private ChunkRepository chunkRepository;
 
+    @Spy
+    private ContentHasher contentHasher = new ContentHasher();
+
+    @Mock
+    private DueIndex dueIndex;
+
+    @Spy
+    private ChunkCache chunkCache = new ChunkCache();
+
+    @Mock
+    private IngestMetrics ingestMetrics;
+
+    @Spy
+    private KnownKeys knownKeys = new KnownKeys();
+
+    @Before
+    public void setUp() {
+        ReflectionTestUtils.setField(chunkCache, "maxSize", 100);
+        ReflectionTestUtils.setField(chunkCache, "ttlMs", 60000L);
+    }
+
     @Test
     public void createOrUpdate_shouldCreateChunkIfNew() throws IOException, NoSuchAlgorithmException {
-        doReturn(Optional.empty()).when(chunkRepository).findFirstByPathOrHash(anyString(), any());
+        doReturn(Optional.empty()).when(chunkRepository).findByHash(any());
         Path testPath = createTmpFile();
 
         subj.createOrUpdate(testPath);
 
-        verify(subj).createNewChunk(eq(testPath.toString()), any());
+        verify(subj).createNewChunk(eq(testPath.toString()), any(), any());
         verify(chunkRepository).save(any());
     }
 
+    @Test
+    public void createOrUpdate_shouldSkipLookupsForUnknownKeys() throws IOException, NoSuchAlgorithmException {
+        ReflectionTestUtils.setField(knownKeys, "expectedKeys", 1000L);
+        ReflectionTestUtils.setField(knownKeys, "fpp", 0.01);
+        knownKeys.load(Collections.emptyList());
+        Path testPath = createTmpFile();
+
+        subj.createOrUpdate(testPath);
+
+        verify(subj).createNewChunk(eq(testPath.toString()), any(), any());
+        verify(chunkRepository, never()).findByPath(anyString());
+        verify(chunkRepository, never()).findByHash(any());
+        assertTrue(knownKeys.mightContainPath(testPath.toString()));
+    }
+
+    @Test
+    public void createOrUpdate_shouldKeepPathChunkIfContentBelongsToAnotherChunk() throws IOException, NoSuchAlgorithmException {
+        Path testPath = createTmpFile();
+        byte[] digest = Utils.digest(Files.readAllBytes(testPath));
+        ChunkEntity pathChunk = chunkEntity().setHash(new byte[]{0, 1, 2, 3}).setPath(testPath.toString()).setMutated(false);
+        ChunkEntity hashChunk = chunkEntity().setHash(digest).setPath(randStr());
+
+        doReturn(Optional.of(pathChunk)).when(chunkRepository).findByPath(testPath.toString());
+        doReturn(Optional.of(hashChunk)).when(chunkRepository).findByHash(digest);
+
+        subj.createOrUpdate(testPath);
+
+        InOrder inOrder = inOrder(chunkRepository);
+        inOrder.verify(chunkRepository).saveAndFlush(hashChunk);
+        inOrder.verify(chunkRepository).save(pathChunk);
+        assertNull(hashChunk.getHash());
+        assertArrayEquals(digest, pathChunk.getHash());
+        assertTrue(pathChunk.getMutated());
+        assertTrue(pathChunk.getActive());
+        assertEquals(testPath.toString(), hashChunk.getPath());
+    }
+
+    @Test
+    public void apply_shouldMoveHashChunkOverInactivePathChunk() throws IOException, NoSuchAlgorithmException {
+        Path testPath = createTmpFile();
+        byte[] digest = Utils.digest(Files.readAllBytes(testPath));
+        String oldPath = randStr();
+        ChunkEntity stalePathChunk = chunkEntity().setHash(new byte[]{0, 1, 2, 3}).setPath(testPath.toString()).setActive(false);
+        ChunkEntity liveHashChunk = chunkEntity().setHash(digest).setPath(oldPath).setMutated(false);
+
+        doReturn(Optional.of(stalePathChunk)).when(chunkRepository).findByPath(testPath.toString());
+        doReturn(Optional.of(liveHashChunk)).when(chunkRepository).findByHash(digest);
+
+        Optional<Path> movedFrom = subj.apply(subj.digest(testPath));
+
+        InOrder inOrder = inOrder(chunkRepository);
+        inOrder.verify(chunkRepository).saveAndFlush(stalePathChunk);
+        inOrder.verify(chunkRepository).save(liveHashChunk);
+        verify(chunkRepository, never()).save(stalePathChunk);
+        assertEquals(Optional.of(Paths.get(oldPath)), movedFrom);
+        assertNull(stalePathChunk.getPath());
+        assertFalse(stalePathChunk.getActive());
+        assertEquals(testPath.toString(), liveHashChunk.getPath());
+        assertArrayEquals(digest, liveHashChunk.getHash());
+        assertTrue(liveHashChunk.getActive());
+        assertFalse(liveHashChunk.getMutated());
+    }
+
+    @Test
+    public void apply_shouldReactivateInactivePathChunkWithNewContent() throws IOException, NoSuchAlgorithmException {
+        Path testPath = createTmpFile();
+        byte[] digest = Utils.digest(Files.readAllBytes(testPath));
+        ChunkEntity pathChunk = chunkEntity().setHash(new byte[]{0, 1, 2, 3}).setPath(testPath.toString())
+                .setActive(false).setMutated(false);
+
+        doReturn(Optional.of(pathChunk)).when(chunkRepository).findByPath(testPath.toString());
+        doReturn(Optional.empty()).when(chunkRepository).findByHash(any());
+
+        Optional<Path> movedFrom = subj.apply(subj.digest(testPath));
+
+        verify(chunkRepository).save(pathChunk);
+        verify(chunkRepository, never()).saveAndFlush(any());
+        assertFalse(movedFrom.isPresent());
+        assertArrayEquals(digest, pathChunk.getHash());
+        assertTrue(pathChunk.getActive());
+        assertTrue(pathChunk.getMutated());
+    }
+
     @Test
     public void createOrUpdate_shouldRenameIfChunksNameChanged() throws IOException, NoSuchAlgorithmException {
         Path testPath = createTmpFile();
         byte[] digest = Utils.digest(Files.readAllBytes(testPath));
         ChunkEntity existedChunk = chunkEntity().setHash(digest).setPath(randStr());
 
-        doReturn(Optional.of(existedChunk)).when(chunkRepository).findFirstByPathOrHash(testPath.toString(), digest);
+        doReturn(Optional.of(existedChunk)).when(chunkRepository).findByHash(digest);
 
         subj.createOrUpdate(testPath);
 
-        verify(subj, never()).createNewChunk(eq(testPath.toString()), any());
+        verify(subj, never()).createNewChunk(eq(testPath.toString()), any(), any());
         verify(chunkRepository).save(existedChunk);
 
         assertEquals(testPath.toString(), existedChunk.getPath());
@@ -77,105 +198,151 @@ public class ChunkServiceTest extends AbstractTest {
         byte[] digest = Utils.digest(Files.readAllBytes(testPath));
         ChunkEntity existedChunk = chunkEntity().setHash(new byte[]{0, 1, 2, 3}).setPath(testPath.toString());
 
-        doReturn(Optional.of(existedChunk)).when(chunkRepository).findFirstByPathOrHash(anyString(), any());
+        doReturn(Optional.of(existedChunk)).when(chunkRepository).findByPath(testPath.toString());
 
         subj.createOrUpdate(testPath);
 
-        verify(subj, never()).createNewChunk(eq(testPath.toString()), any());
+        verify(subj, never()).createNewChunk(eq(testPath.toString()), any(), any());
         verify(chunkRepository).save(existedChunk);
 
         assertArrayEquals(digest, existedChunk.getHash());
     }
 
     @Test
-    public void markInactive() throws IOException {
+    public void createOrUpdate_shouldSkipIfFingerprintUnchanged() throws IOException, NoSuchAlgorithmException {
         Path testPath = createTmpFile();
-        ChunkEntity existedChunk = chunkEntity().setActive(true);
+        Fingerprint fingerprint = Fingerprint.of(Files.readAttributes(testPath, BasicFileAttributes.class));
+        ChunkEntity existedChunk = chunkEntity().setPath(testPath.toString()).setFingerprint(fingerprint);
 
-        doReturn(Stream.of(existedChunk)).when(chunkRepository).findByPathStartsWith(testPath.toString());
+        doReturn(Optional.of(existedChunk)).when(chunkRepository).findByPath(testPath.toString());
 
-        subj.markInactive(testPath);
+        subj.createOrUpdate(testPath);
 
-        verify(chunkRepository).saveAll(Collections.singletonList(existedChunk));
-        assertFalse(existedChunk.getActive());
+        verify(contentHasher, never()).hash(any(Path.class), anySet());
+        verify(chunkRepository, never()).save(any());
     }
 
     @Test
-    public void getChunksForToday() throws IOException {
-        Path testPath1 = createTmpFile();
-        ChunkEntity testChunk1 = chunkEntity()
-                .setPath(testPath1.toString())
-                .setNextRepeatDate(LocalDate.now())
-                .setCurrentRepetitionInterval(DAY)
-                .setActive(true);
+    public void createOrUpdate_shouldStoreFingerprint() throws IOException, NoSuchAlgorithmException {
+        Path testPath = createTmpFile();
+        ChunkEntity existedChunk = chunkEntity().setPath(testPath.toString())
+                .setFingerprint(new Fingerprint(1L, 2L, null));
+
+        doReturn(Optional.of(existedChunk)).when(chunkRepository).findByPath(testPath.toString());
+
+        subj.createOrUpdate(testPath);
+
+        verify(chunkRepository).save(existedChunk);
+        assertEquals(Fingerprint.of(Files.readAttributes(testPath, BasicFileAttributes.class)), existedChunk.getFingerprint());
+    }
 
+    @Test
+    public void applyAll_shouldApplyEveryDigestInOrder() throws IOException {
+        doReturn(Optional.empty()).when(chunkRepository).findByHash(any());
+        Path testPath1 = createTmpFile();
         Path testPath2 = createTmpFile();
-        ChunkEntity testChunk2 = chunkEntity()
-                .setPath(testPath2.toString())
-                .setNextRepeatDate(LocalDate.now())
-                .setCurrentRepetitionInterval(MONTH)
-                .setActive(true);
+        FileDigest digest1 = subj.digest(testPath1);
+        FileDigest digest2 = subj.digest(testPath2);
 
-        doReturn(Stream.of(testChunk1, testChunk2)).when(chunkRepository).findAllByActiveIsTrueAndNextRepeatDateIsLessThanEqual(LocalDate.now());
+        subj.applyAll(Arrays.asList(digest1, digest2));
 
-        List<ChunkEntity> chunksForToday = subj.getChunksForToday().collect(Collectors.toList());
+        InOrder inOrder = inOrder(subj);
+        inOrder.verify(subj).apply(digest1);
+        inOrder.verify(subj).apply(digest2);
+    }
 
-        assertEquals(2, chunksForToday.size());
-        assertEquals(testChunk1, chunksForToday.get(0));
-        assertEquals(testChunk2, chunksForToday.get(1));
+    @Test
+    public void applyChanges_shouldDeactivateOnlyDeletesNotPairedWithRename() throws IOException, NoSuchAlgorithmException {
+        Path renamedTo = createTmpFile();
+        byte[] digest = Utils.digest(Files.readAllBytes(renamedTo));
+        Path renamedFrom = renamedTo.resolveSibling(randStr());
+        Path deletedPath = createTmpFile();
+        ChunkEntity existedChunk = chunkEntity().setHash(digest).setPath(renamedFrom.toString());
+
+        doReturn(Optional.of(existedChunk)).when(chunkRepository).findByHash(digest);
+        FileDigest fileDigest = subj.digest(renamedTo);
+
+        Set<Path> movedFrom = subj.applyChanges(Arrays.asList(renamedFrom, deletedPath), Collections.singletonList(fileDigest));
+
+        assertEquals(Collections.singleton(renamedFrom), movedFrom);
+        assertEquals(renamedTo.toString(), existedChunk.getPath());
+        InOrder inOrder = inOrder(subj);
+        inOrder.verify(subj).apply(fileDigest);
+        inOrder.verify(subj).markInactive(Collections.singletonList(deletedPath));
+        verify(chunkRepository, never()).deactivateAll(Collections.singletonList(renamedFrom.toString()));
     }
 
     @Test
-    public void getChunksForDay() throws IOException {
-        LocalDate testDate = LocalDate.now().minusDays(randInt(365));
+    public void markInactive() throws IOException {
+        Path testPath = createTmpFile();
 
-        Path testPath1 = createTmpFile();
-        ChunkEntity testChunk1 = chunkEntity()
-                .setPath(testPath1.toString())
-                .setNextRepeatDate(testDate)
-                .setCurrentRepetitionInterval(DAY)
-                .setActive(true);
+        subj.markInactive(testPath);
 
-        Path testPath2 = createTmpFile();
-        ChunkEntity testChunk2 = chunkEntity()
-                .setPath(testPath2.toString())
-                .setNextRepeatDate(testDate)
-                .setCurrentRepetitionInterval(DAY)
-                .setActive(true);
+        verify(chunkRepository).deactivateAll(Collections.singletonList(testPath.toString()));
+        verify(chunkRepository).deactivateByPathRange(Utils.childrenFrom(testPath.toString()), Utils.childrenTo(testPath.toString()));
+        verify(chunkRepository, never()).saveAll(any());
+    }
 
-        doReturn(Stream.of(testChunk1, testChunk2)).when(chunkRepository).findAllByActiveIsTrueAndNextRepeatDateIsLessThanEqual(testDate);
+    @Test
+    public void markInactive_shouldInvalidateCachedFilesAndDirs() {
+        Path dir = Paths.get(File.separator + "maps", "deleted");
+        ChunkState file = cachedState(dir.resolveSibling("a.xmind").toString());
+        ChunkState nested = cachedState(dir.resolve("b.xmind").toString());
+        ChunkState sibling = cachedState(dir.resolveSibling("deleted2").resolve("c.xmind").toString());
 
-        List<ChunkEntity> chunksForToday = subj.getChunksForDay(testDate).collect(Collectors.toList());
+        subj.markInactive(Arrays.asList(Paths.get(file.getPath()), dir));
 
-        assertEquals(2, chunksForToday.size());
-        assertEquals(testChunk1, chunksForToday.get(0));
-        assertEquals(testChunk2, chunksForToday.get(1));
+        assertNull(cached(file.getId()));
+        assertNull(cached(nested.getId()));
+        assertEquals(sibling, cached(sibling.getId()));
     }
 
     @Test
-    public void getMutated() throws IOException {
-        Path testPath1 = createTmpFile();
+    public void moveDir_shouldInvalidateCachedChunksOfMovedDir() {
+        Path from = Paths.get(File.separator + "maps", "old");
+        Path to = Paths.get(File.separator + "maps", "new");
+        ChunkState moved = cachedState(from.resolve("a.xmind").toString());
+        ChunkState other = cachedState(to.resolveSibling("other").resolve("b.xmind").toString());
 
-        ChunkEntity testChunk1 = chunkEntity()
-                .setPath(testPath1.toString())
-                .setCurrentRepetitionInterval(DAY)
-                .setActive(true)
-                .setMutated(true);
+        assertTrue(subj.moveDir(from, to, Collections.singletonList(to.resolve("a.xmind").toString())));
 
-        Path testPath2 = createTmpFile();
-        ChunkEntity testChunk2 = chunkEntity()
-                .setPath(testPath2.toString())
-                .setCurrentRepetitionInterval(MONTH)
-                .setActive(true)
-                .setMutated(true);
+        assertNull(cached(moved.getId()));
+        assertEquals(other, cached(other.getId()));
+    }
 
-        doReturn(Stream.of(testChunk1, testChunk2)).when(chunkRepository).findAllByActiveIsTrueAndMutatedIsTrue();
+    @Test
+    public void moveDir_shouldRewritePrefixOverInactiveChunksOnly() {
+        Path from = Paths.get(File.separator + "maps", "old");
+        Path to = Paths.get(File.separator + "maps", "new");
+        String to_ = to.toString();
+        List<String> paths = Collections.singletonList(to.resolve("a.xmind").toString());
+
+        assertTrue(subj.moveDir(from, to, paths));
+        InOrder inOrder = inOrder(chunkRepository);
+        //удаленная когда-то карта на том же пути не мешает переносу
+        inOrder.verify(chunkRepository).releaseInactivePaths(paths);
+        inOrder.verify(chunkRepository).movePathRange(Utils.childrenFrom(from.toString()), Utils.childrenTo(from.toString()),
+                from.toString().length() + 1, to_);
+        verify(dueIndex).movePrefix(from.toString(), to_);
+
+        doReturn(true).when(chunkRepository).existsByActiveIsTrueAndPathIn(paths);
+        assertFalse(subj.moveDir(from, to, paths));
+        verify(chunkRepository, times(1)).releaseInactivePaths(any());
+        verify(chunkRepository, times(1)).movePathRange(anyString(), anyString(), anyInt(), anyString());
+    }
+
+    @Test
+    public void markInactive_shouldSkipPathsInsideDeletedDirs() throws IOException {
+        Path dir = createTmpFile().getParent().resolve("deleted");
+        Path nested = dir.resolve("nested.xmind");
+        Path map = dir.resolveSibling("other.xmind");
 
-        List<ChunkEntity> chunksForToday = subj.getMutated().collect(Collectors.toList());
+        subj.markInactive(Arrays.asList(nested, dir, map));
 
-        assertEquals(2, chunksForToday.size());
-        assertEquals(testChunk1, chunksForToday.get(0));
-        assertEquals(testChunk2, chunksForToday.get(1));
+        verify(chunkRepository).deactivateAll(Collections.singletonList(dir.toString()));
+        verify(chunkRepository).deactivateByPathRange(Utils.childrenFrom(dir.toString()), Utils.childrenTo(dir.toString()));
+        verify(chunkRepository).deactivateAll(Collections.singletonList(map.toString()));
+        verify(chunkRepository, never()).deactivateAll(Collections.singletonList(nested.toString()));
     }
 
     @Test
@@ -197,7 +364,7 @@ public class ChunkServiceTest extends AbstractTest {
 
     @Test
     public void markRepeated_shouldReturnMessageIfNotFound() {
-        doReturn(Optional.empty()).when(chunkRepository).findById(any(UUID.class));
+        doReturn(Collections.emptyList()).when(chunkRepository).findStatesByIdIn(anyCollection());
 
         Response genericResponse = subj.markRepeated(uuid());
 
@@ -212,15 +379,14 @@ public class ChunkServiceTest extends AbstractTest {
         UUID uuid = uuid();
         LocalDate dateInTheFuture = LocalDate.now().plusDays(3);
 
-        ChunkEntity testChunk = chunkEntity()
-                .setId(uuid)
-                .setNextRepeatDate(dateInTheFuture);
+        ChunkState testChunk = new ChunkState(uuid, randStr() + XMIND_SUFFIX, DAY, dateInTheFuture, true, false);
 
-        doReturn(Optional.of(testChunk)).when(chunkRepository).findById(uuid);
+        doReturn(Collections.singletonList(testChunk)).when(chunkRepository).findStatesByIdIn(Collections.singletonList(uuid));
 
         Response genericResponse = subj.markRepeated(uuid);
 
         assertTrue(genericResponse instanceof UnaryResponse);
+        verify(chunkRepository, never()).reschedule(any(), any(), any());
         UnaryResponse response = (UnaryResponse) genericResponse;
         assertNotNull(response.getValue());
         assertThat(response.getValue(), containsString(Boolean.TRUE.toString()));
@@ -230,42 +396,78 @@ public class ChunkServiceTest extends AbstractTest {
     @Test
     public void markRepeated_shouldSetNextIntervalWeekIfCurrentRepetitionIntervalDay() {
         LocalDate localDate = LocalDate.now().minusDays(3);
-        ChunkEntity testChunk = chunkEntity()
-                .setId(uuid())
-                .setNextRepeatDate(localDate)
-                .setCurrentRepetitionInterval(DAY);
+        ChunkState testChunk = new ChunkState(uuid(), randStr() + XMIND_SUFFIX, DAY, localDate, true, true);
 
-        doReturn(Optional.of(testChunk)).when(chunkRepository).findById(any(UUID.class));
-        doReturn(testChunk).when(chunkRepository).save(testChunk);
+        doReturn(Collections.singletonList(testChunk)).when(chunkRepository).findStatesByIdIn(anyCollection());
 
-        Response genericResponse = subj.markRepeated(uuid());
+        Response genericResponse = subj.markRepeated(testChunk.getId());
 
         assertTrue(genericResponse instanceof ChunkDTO);
-        verify(chunkRepository).save(testChunk);
-        assertFalse(testChunk.getMutated());
-        assertEquals(WEEK, testChunk.getCurrentRepetitionInterval());
-        assertEquals(localDate.plus(WEEK.getPeriod()), testChunk.getNextRepeatDate());
+        assertEquals(WEEK, ((ChunkDTO) genericResponse).getCurrentRepetitionInterval());
+        verify(chunkRepository).reschedule(Collections.singletonList(testChunk.getId()), WEEK, localDate.plus(WEEK.getPeriod()));
+        verify(dueIndex).put(testChunk.getId(), testChunk.getPath(), localDate.plus(WEEK.getPeriod()), false, true,
+                (ChunkDTO) genericResponse);
+        verify(chunkRepository, never()).save(any());
     }
 
     @Test
     public void markRepeated_shouldSetNextIntervalYearIfCurrentRepetitionIntervalYear() {
         LocalDate localDate = LocalDate.now().minusDays(3);
-        ChunkEntity testChunk = chunkEntity()
-                .setId(uuid())
-                .setNextRepeatDate(localDate)
-                .setCurrentRepetitionInterval(YEAR);
+        ChunkState testChunk = new ChunkState(uuid(), randStr() + XMIND_SUFFIX, YEAR, localDate, true, true);
 
-        doReturn(Optional.of(testChunk)).when(chunkRepository).findById(any(UUID.class));
-        doReturn(testChunk).when(chunkRepository).save(testChunk);
+        doReturn(Collections.singletonList(testChunk)).when(chunkRepository).findStatesByIdIn(anyCollection());
 
-        Response genericResponse = subj.markRepeated(uuid());
+        Response genericResponse = subj.markRepeated(testChunk.getId());
 
         assertTrue(genericResponse instanceof ChunkDTO);
+        assertEquals(YEAR, ((ChunkDTO) genericResponse).getCurrentRepetitionInterval());
+        verify(chunkRepository).reschedule(Collections.singletonList(testChunk.getId()), YEAR, localDate.plus(YEAR.getPeriod()));
+    }
+
+    @Test
+    public void markRepeated_shouldReadStateFromCacheAndStoreNewOne() {
+        LocalDate localDate = LocalDate.now().minusDays(3);
+        ChunkState testChunk = new ChunkState(uuid(), randStr() + XMIND_SUFFIX, DAY, localDate, true, true);
+
+        doReturn(Collections.singletonList(testChunk)).when(chunkRepository).findStatesByIdIn(anyCollection());
 
-        verify(chunkRepository).save(testChunk);
-        assertFalse(testChunk.getMutated());
-        assertEquals(YEAR, testChunk.getCurrentRepetitionInterval());
-        assertEquals(localDate.plus(YEAR.getPeriod()), testChunk.getNextRepeatDate());
+        subj.markRepeated(testChunk.getId());
+        //дата следующего повторения уже в будущем, состояние берется из кеша
+        Response repeatedTwice = subj.markRepeated(testChunk.getId());
+
+        assertTrue(repeatedTwice instanceof UnaryResponse);
+        verify(chunkRepository, times(1)).findStatesByIdIn(anyCollection());
+        verify(chunkRepository, times(1)).reschedule(any(), any(), any());
+        assertEquals(new ChunkState(testChunk.getId(), testChunk.getPath(), WEEK, localDate.plus(WEEK.getPeriod()), true, false),
+                cached(testChunk.getId()));
+    }
+
+    @Test
+    public void applyBulk_shouldGroupUpdatesAndReportEveryCommand() {
+        LocalDate past = LocalDate.now().minusDays(2);
+        ChunkState due = new ChunkState(uuid(), randStr() + XMIND_SUFFIX, DAY, past, true, true);
+        ChunkState future = new ChunkState(uuid(), randStr() + XMIND_SUFFIX, WEEK, LocalDate.now().plusDays(1), true, false);
+        ChunkState mutated = new ChunkState(uuid(), randStr() + XMIND_SUFFIX, MONTH, past, true, true);
+        UUID missing = uuid();
+
+        doReturn(Arrays.asList(due, future, mutated)).when(chunkRepository).findStatesByIdIn(anyCollection());
+
+        List<BulkResult> results = subj.applyBulk(Arrays.asList(
+                new BulkCommand("REPEATED", due.getId().toString()),
+                new BulkCommand("REPEATED", future.getId().toString()),
+                new BulkCommand("UNMUTATE", mutated.getId().toString()),
+                new BulkCommand("DROP", missing.toString()),
+                new BulkCommand("DROP", due.getId().toString()),
+                new BulkCommand("SKIP", due.getId().toString())
+        ));
+
+        assertEquals(Arrays.asList(BulkStatus.OK, BulkStatus.NOT_DUE, BulkStatus.OK, BulkStatus.NOT_FOUND,
+                BulkStatus.DUPLICATE, BulkStatus.INVALID),
+                results.stream().map(BulkResult::getStatus).collect(Collectors.toList()));
+        assertEquals(WEEK, results.get(0).getChunk().getCurrentRepetitionInterval());
+        verify(chunkRepository).reschedule(Collections.singletonList(due.getId()), WEEK, past.plus(WEEK.getPeriod()));
+        verify(chunkRepository).unmutateAll(Collections.singletonList(mutated.getId()));
+        verify(chunkRepository, never()).save(any());
     }
 
     @Test
@@ -278,15 +480,17 @@ public class ChunkServiceTest extends AbstractTest {
         );
 
         List<UUID> uuids = chunkEntityUuids(chunkEntities);
+        List<ChunkView> views = chunkEntities.stream()
+                .map(ce -> view(ce.setMutated(false).setCurrentRepetitionInterval(DAY).setNextRepeatDate(LocalDate.now().plusDays(1))))
+                .collect(Collectors.toList());
+        doReturn(views).when(chunkRepository).findViewsByIdIn(uuids);
 
-        doReturn(chunkEntities).when(chunkRepository).findAllById(uuids);
-        doReturn(chunkEntities).when(chunkRepository).saveAll(chunkEntities);
-
-        subj.dropRepetitionDay(uuids);
+        List<ChunkDTO> dropped = subj.dropRepetitionDay(uuids);
 
-        assertTrue(chunkEntities.stream().noneMatch(ChunkEntity::getMutated));
-        assertTrue(chunkEntities.stream().allMatch(ce -> ce.getCurrentRepetitionInterval() == DAY));
-        assertTrue(chunkEntities.stream().allMatch(ce -> ce.getNextRepeatDate().equals(LocalDate.now().plusDays(1))));
+        verify(chunkRepository).reschedule(uuids, DAY, LocalDate.now().plusDays(1));
+        verify(chunkRepository, never()).saveAll(any());
+        assertEquals(uuids, dropped.stream().map(ChunkDTO::getId).collect(Collectors.toList()));
+        assertTrue(dropped.stream().allMatch(dto -> dto.getCurrentRepetitionInterval() == DAY));
     }
 
     @Test
@@ -294,14 +498,16 @@ public class ChunkServiceTest extends AbstractTest {
         List<ChunkEntity> chunkEntities = chunkEntities(3, ce -> ce.setMutated(true));
 
         List<UUID> uuids = chunkEntityUuids(chunkEntities);
+        List<ChunkView> views = chunkEntities.stream()
+                .map(ce -> view(ce.setMutated(false)))
+                .collect(Collectors.toList());
+        doReturn(views).when(chunkRepository).findViewsByIdIn(uuids);
 
-        doReturn(chunkEntities).when(chunkRepository).findAllById(uuids);
-        doReturn(chunkEntities).when(chunkRepository).saveAll(chunkEntities);
-
-        subj.unmutate(uuids);
+        List<ChunkDTO> unmutated = subj.unmutate(uuids);
 
-        verify(chunkRepository).saveAll(chunkEntities);
-        assertTrue(chunkEntities.stream().noneMatch(ChunkEntity::getMutated));
+        verify(chunkRepository).unmutateAll(uuids);
+        verify(chunkRepository, never()).saveAll(any());
+        assertEquals(uuids, unmutated.stream().map(ChunkDTO::getId).collect(Collectors.toList()));
     }
 
     @Test
@@ -343,6 +549,53 @@ public class ChunkServiceTest extends AbstractTest {
     }
 
 
+    @Test
+    public void dropOrUnmutate_shouldStoreReloadedStatesInCache() {
+        List<ChunkEntity> chunkEntities = chunkEntities(2, ce -> ce.setMutated(true).setCurrentRepetitionInterval(YEAR));
+        List<UUID> uuids = chunkEntityUuids(chunkEntities);
+        chunkEntities.forEach(ce -> cachedState(ce.getId(), ce.getPath(), YEAR, true));
+        List<ChunkView> dropped = chunkEntities.stream()
+                .map(ce -> view(ce.setCurrentRepetitionInterval(DAY).setNextRepeatDate(LocalDate.now().plusDays(1))))
+                .collect(Collectors.toList());
+        doReturn(dropped).when(chunkRepository).findViewsByIdIn(uuids);
+
+        subj.dropOrUnmutate(true, uuids.stream().map(UUID::toString).collect(Collectors.toList()));
+
+        for (ChunkEntity ce : chunkEntities) {
+            assertEquals(new ChunkState(ce.getId(), ce.getPath(), DAY, LocalDate.now().plusDays(1), true, true),
+                    cached(ce.getId()));
+        }
+
+        List<ChunkView> unmutated = chunkEntities.stream()
+                .map(ce -> view(ce.setMutated(false)))
+                .collect(Collectors.toList());
+        doReturn(unmutated).when(chunkRepository).findViewsByIdIn(uuids);
+
+        subj.dropOrUnmutate(false, uuids.stream().map(UUID::toString).collect(Collectors.toList()));
+
+        for (ChunkEntity ce : chunkEntities) {
+            assertFalse(cached(ce.getId()).getMutated());
+        }
+    }
+
+    private ChunkState cachedState(String path) {
+        return cachedState(uuid(), path, DAY, false);
+    }
+
+    private ChunkState cachedState(UUID id, String path, RepeatInterval interval, boolean mutated) {
+        ChunkState state = new ChunkState(id, path, interval, LocalDate.now(), true, mutated);
+        chunkCache.put(state);
+        return state;
+    }
+
+    /**
+     * Состояние в кеше без обращения к базе
+     */
+    private ChunkState cached(UUID id) {
+        List<ChunkState> states = chunkCache.getStates(Collections.singletonList(id), missing -> Collections.emptyList());
+        return states.isEmpty() ? null : states.get(0);
+    }
+
     @AfterClass
     public static void removeTempFiles() throws IOException {
         for (Path tempPath : tempFiles) {
@@ -0,0 +1,233 @@
+package com.github.rkharisov.chunks.service;
+
+import com.github.rkharisov.chunks.hash.FileDigest;
+import com.github.rkharisov.chunks.model.entity.Fingerprint;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.*;
+
+public class DirScannerTest extends AbstractTest {
+
+    private final ChunkService chunkService = mock(ChunkService.class);
+    private final EventJournal eventJournal = mock(EventJournal.class);
+    private final Reconciler reconciler = mock(Reconciler.class);
+    /**
+     * Файлы в порядке хеширования и потоки, в которых они хешировались
+     */
+    private final List<Path> hashed = new CopyOnWriteArrayList<>();
+    private final List<String> hashThreads = new CopyOnWriteArrayList<>();
+    private final Set<Path> persisted = ConcurrentHashMap.newKeySet();
+    private Path mapDir;
+    private DirScanner subj;
+
+    @Before
+    public void setUp() throws IOException {
+        mapDir = Files.createTempDirectory("scanner");
+        subj = new DirScanner();
+        ReflectionTestUtils.setField(subj, "chunkService", chunkService);
+        ReflectionTestUtils.setField(subj, "watchedRoots", mock(WatchedRoots.class));
+        ReflectionTestUtils.setField(subj, "eventJournal", eventJournal);
+        ReflectionTestUtils.setField(subj, "reconciler", reconciler);
+        ReflectionTestUtils.setField(subj, "parallelism", 2);
+        ReflectionTestUtils.setField(subj, "hashThreads", 2);
+        ReflectionTestUtils.setField(subj, "queueCapacity", 100);
+        ReflectionTestUtils.setField(subj, "batchSize", 200);
+        when(eventJournal.startScan(any())).thenReturn(Collections.emptySet());
+        when(chunkService.getActiveFingerprints()).thenReturn(new HashMap<>());
+        when(chunkService.digest(any(), any())).thenAnswer(invocation -> {
+            hashed.add(invocation.getArgument(0));
+            hashThreads.add(Thread.currentThread().getName());
+            return new FileDigest(invocation.getArgument(0), invocation.getArgument(1), null, null, Collections.emptyMap());
+        });
+        //пачка очищается после сохранения, поэтому пути запоминаются во время вызова
+        when(chunkService.applyAll(anyList())).thenAnswer(invocation -> {
+            List<FileDigest> batch = invocation.getArgument(0);
+            batch.forEach(digest -> persisted.add(digest.getPath()));
+            return Collections.emptySet();
+        });
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        deleteTree(mapDir);
+    }
+
+    @Test
+    public void scan_shouldHashOnlyChangedMapsAndPersistThemInBatch() throws Exception {
+        Path changed = Files.write(mapDir.resolve("changed.xmind"), new byte[1]);
+        Path added = Files.write(Files.createDirectory(mapDir.resolve("dir")).resolve("added.xmind"), new byte[2]);
+        Path unchanged = Files.write(mapDir.resolve("dir").resolve("unchanged.xmind"), new byte[3]);
+        Files.write(mapDir.resolve("notes.txt"), new byte[1]);
+        Map<String, Fingerprint> known = new HashMap<>();
+        known.put(unchanged.toString(), fingerprint(unchanged));
+        known.put(changed.toString(), new Fingerprint(100L, 1L, null));
+        when(chunkService.getActiveFingerprints()).thenReturn(known);
+
+        ScanStats stats = subj.scan(mapDir);
+
+        assertEquals(new HashSet<>(Arrays.asList(changed, added)), new HashSet<>(hashed));
+        verify(chunkService).digest(changed, fingerprint(changed));
+        assertEquals(new HashSet<>(Arrays.asList(changed, added)), persisted);
+        verify(chunkService, never()).apply(any());
+        assertEquals(3, stats.getFilesSeen());
+        assertEquals(1, stats.getFilesUnchanged());
+        assertEquals(2, stats.getFilesHashed());
+        assertEquals(2, stats.getFilesPersisted());
+        assertEquals(0, stats.getErrors());
+        assertTrue(stats.isFinished());
+        verify(eventJournal).scanDone(mapDir);
+    }
+
+    @Test
+    public void scan_shouldPersistOneByOneIfBatchFails() throws Exception {
+        Files.write(mapDir.resolve("good.xmind"), new byte[1]);
+        Path bad = Files.write(mapDir.resolve("bad.xmind"), new byte[2]);
+        doThrow(new IllegalStateException("constraint")).when(chunkService).applyAll(anyList());
+        doThrow(new IllegalStateException("constraint")).when(chunkService)
+                .apply(argThat(digest -> digest != null && bad.equals(digest.getPath())));
+
+        ScanStats stats = subj.scan(mapDir);
+
+        verify(chunkService, times(2)).apply(any());
+        assertEquals(1, stats.getFilesPersisted());
+        assertEquals(1, stats.getErrors());
+        verify(eventJournal).scanDone(mapDir);
+    }
+
+    @Test
+    public void scan_shouldVisitLinkedAndLoopedDirsOnce() throws Exception {
+        Path dir = Files.createDirectory(mapDir.resolve("dir"));
+        Path map = Files.write(dir.resolve("a.xmind"), new byte[1]);
+        try {
+            Files.createSymbolicLink(mapDir.resolve("link"), dir);
+            Files.createSymbolicLink(dir.resolve("loop"), mapDir);
+        } catch (UnsupportedOperationException | IOException e) {
+            Assume.assumeNoException(e);
+        }
+
+        ScanStats stats = subj.scan(mapDir);
+
+        assertEquals(1, hashed.size());
+        assertEquals(map.getFileName(), hashed.get(0).getFileName());
+        assertEquals(1, stats.getFilesSeen());
+    }
+
+    @Test
+    public void scan_shouldLetWalkerHashWhenQueueIsFull() throws Exception {
+        ReflectionTestUtils.setField(subj, "parallelism", 1);
+        ReflectionTestUtils.setField(subj, "hashThreads", 1);
+        ReflectionTestUtils.setField(subj, "queueCapacity", 1);
+        for (int i = 0; i < 20; i++) {
+            Files.write(mapDir.resolve(i + ".xmind"), new byte[i + 1]);
+        }
+        when(chunkService.digest(any(), any())).thenAnswer(invocation -> {
+            hashed.add(invocation.getArgument(0));
+            hashThreads.add(Thread.currentThread().getName());
+            Thread.sleep(10);
+            return new FileDigest(invocation.getArgument(0), invocation.getArgument(1), null, null, Collections.emptyMap());
+        });
+
+        ScanStats stats = subj.scan(mapDir);
+
+        assertEquals(20, hashed.size());
+        assertEquals(20, stats.getFilesPersisted());
+        //пул хеширования занят, а его очередь заполнена: файл хеширует сам обходящий поток
+        assertTrue(hashThreads.toString(), hashThreads.stream().anyMatch(name -> name.startsWith("ForkJoinPool")));
+    }
+
+    @Test
+    public void scan_shouldSkipDirsDoneBeforeRestartAndReconcileThemAfterwards() throws Exception {
+        Path done = Files.createDirectory(mapDir.resolve("done"));
+        Files.write(done.resolve("a.xmind"), new byte[1]);
+        Path pending = Files.createDirectory(mapDir.resolve("pending"));
+        Path map = Files.write(Files.createDirectory(pending.resolve("nested")).resolve("b.xmind"), new byte[2]);
+        Path empty = Files.createDirectory(mapDir.resolve("empty"));
+        when(eventJournal.startScan(mapDir)).thenReturn(Collections.singleton(done));
+
+        subj.scan(mapDir);
+
+        assertEquals(Collections.singletonList(map), hashed);
+        verify(eventJournal).scanDirDone(mapDir, pending);
+        verify(eventJournal).scanDirDone(mapDir, empty);
+        verify(eventJournal, never()).scanDirDone(mapDir, done);
+        verify(eventJournal).scanDone(mapDir);
+        verify(reconciler).reconcile(done);
+        verify(reconciler, never()).reconcile(pending);
+    }
+
+    @Test
+    public void scan_shouldMarkDirDoneOnlyAfterItsFilesArePersisted() throws Exception {
+        Path dir = Files.createDirectory(mapDir.resolve("dir"));
+        Files.write(dir.resolve("a.xmind"), new byte[1]);
+        doAnswer(invocation -> {
+            verify(eventJournal, never()).scanDirDone(mapDir, dir);
+            return Collections.emptySet();
+        }).when(chunkService).applyAll(anyList());
+
+        subj.scan(mapDir);
+
+        verify(chunkService).applyAll(anyList());
+        verify(eventJournal).scanDirDone(mapDir, dir);
+    }
+
+    @Test
+    public void scan_shouldHashNewestFoundFilesFirst() throws Exception {
+        ReflectionTestUtils.setField(subj, "recentFirst", true);
+        ReflectionTestUtils.setField(subj, "hashThreads", 1);
+        int count = 6;
+        for (int i = 0; i < count; i++) {
+            Path file = Files.write(mapDir.resolve(i + ".xmind"), new byte[i + 1]);
+            Files.setLastModifiedTime(file, FileTime.fromMillis(TimeUnit.DAYS.toMillis(i + 1)));
+        }
+        ScanStats stats = new ScanStats(mapDir);
+        when(chunkService.digest(any(), any())).thenAnswer(invocation -> {
+            //первый файл хешируется, пока остальные еще ищутся, дальше выбор идет из всех найденных
+            if (hashed.isEmpty()) {
+                long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+                while (stats.getFilesSeen() < count && System.nanoTime() < deadline) {
+                    Thread.sleep(5);
+                }
+                //последний найденный файл ставится в очередь сразу после подсчета
+                Thread.sleep(50);
+            }
+            hashed.add(invocation.getArgument(0));
+            return new FileDigest(invocation.getArgument(0), invocation.getArgument(1), null, null, Collections.emptyMap());
+        });
+
+        subj.scan(stats);
+
+        assertEquals(count, hashed.size());
+        List<Long> rest = new ArrayList<>();
+        for (Path file : hashed.subList(1, count)) {
+            rest.add(Files.getLastModifiedTime(file).toMillis());
+        }
+        List<Long> newestFirst = new ArrayList<>(rest);
+        newestFirst.sort(Comparator.reverseOrder());
+        assertEquals(newestFirst, rest);
+        assertEquals(count, stats.getFilesPersisted());
+    }}
@@ -0,0 +1,119 @@
+package com.github.rkharisov.chunks.service;
+
+import com.github.rkharisov.Utils;
+import com.github.rkharisov.chunks.model.entity.ChunkEntity;
+import com.github.rkharisov.chunks.model.response.ChunkDTO;
+import org.junit.Test;
+
+import java.io.File;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class DueIndexTest extends AbstractTest {
+
+    private final DueIndex subj = new DueIndex();
+
+    @Test
+    public void getActivities_shouldReturnDueAndMutatedChunks() {
+        ChunkEntity due = chunkEntity().setNextRepeatDate(LocalDate.now()).setMutated(false);
+        ChunkEntity future = chunkEntity().setNextRepeatDate(LocalDate.now().plusDays(1)).setMutated(true);
+        rebuild(due, future);
+
+        Map<String, List<ChunkDTO>> activities = subj.getActivities(LocalDate.now());
+
+        assertTrue(subj.isReady());
+        assertEquals(Collections.singletonList(due.getId()), ids(activities.get(DueIndex.REPEAT)));
+        assertEquals(Collections.singletonList(future.getId()), ids(activities.get(DueIndex.MUTATED)));
+    }
+
+    @Test
+    public void put_shouldMoveChunkToNewDateAndDropInactive() {
+        ChunkEntity moved = chunkEntity().setNextRepeatDate(LocalDate.now()).setMutated(false);
+        ChunkEntity deactivated = chunkEntity().setNextRepeatDate(LocalDate.now()).setMutated(false);
+        rebuild(moved, deactivated);
+
+        subj.put(moved.setNextRepeatDate(LocalDate.now().plusDays(7)), dto(moved));
+        subj.put(deactivated.setActive(false), dto(deactivated));
+
+        assertTrue(subj.getActivities(LocalDate.now()).get(DueIndex.REPEAT).isEmpty());
+        assertEquals(Collections.singletonList(moved.getId()),
+                ids(subj.getActivities(LocalDate.now().plusDays(7)).get(DueIndex.REPEAT)));
+    }
+
+    @Test
+    public void removeRange_shouldDropOnlyChunksInsideDir() {
+        String dir = File.separator + "maps" + File.separator + "dir";
+        ChunkEntity inside = chunkEntity().setPath(dir + File.separator + "a.xmind").setMutated(false);
+        ChunkEntity sibling = chunkEntity().setPath(dir + "2" + File.separator + "b.xmind").setMutated(false);
+        rebuild(inside, sibling);
+
+        subj.removeRange(Utils.childrenFrom(dir), Utils.childrenTo(dir));
+
+        assertEquals(Collections.singletonList(sibling.getId()),
+                ids(subj.getActivities(LocalDate.now()).get(DueIndex.REPEAT)));
+    }
+
+    @Test
+    public void movePrefix_shouldRewritePathsOnlyInsideDir() {
+        String dir = File.separator + "maps" + File.separator + "dir";
+        String movedDir = File.separator + "maps" + File.separator + "moved";
+        ChunkEntity inside = chunkEntity().setPath(dir + File.separator + "a.xmind").setMutated(false);
+        ChunkEntity sibling = chunkEntity().setPath(dir + "2" + File.separator + "b.xmind").setMutated(false);
+        rebuild(inside, sibling);
+
+        subj.movePrefix(dir, movedDir);
+
+        Map<UUID, String> paths = subj.getActivities(LocalDate.now()).get(DueIndex.REPEAT).stream()
+                .collect(Collectors.toMap(ChunkDTO::getId, ChunkDTO::getPath));
+        assertEquals(movedDir + File.separator + "a.xmind", paths.get(inside.getId()));
+        assertEquals(sibling.getPath(), paths.get(sibling.getId()));
+    }
+
+    @Test
+    public void hasPathsUnder_shouldSeeOnlyActiveChunksInsideDir() {
+        String dir = File.separator + "maps" + File.separator + "dir";
+        ChunkEntity inside = chunkEntity().setPath(dir + File.separator + "a.xmind").setMutated(false);
+        ChunkEntity sibling = chunkEntity().setPath(dir + "2" + File.separator + "b.xmind").setMutated(false);
+        rebuild(inside, sibling);
+
+        assertTrue(subj.hasPathsUnder(dir));
+
+        subj.put(inside.setActive(false), dto(inside));
+
+        assertFalse(subj.hasPathsUnder(dir));
+        assertTrue(subj.hasPathsUnder(dir + "2"));
+    }
+
+    @Test
+    public void version_shouldGrowWithEveryChange() {
+        ChunkEntity chunk = chunkEntity();
+        rebuild(chunk);
+        long version = subj.getVersion();
+
+        subj.put(chunk.setMutated(false), dto(chunk));
+        subj.removePaths(Collections.singletonList(chunk.getPath()));
+
+        assertEquals(version + 2, subj.getVersion());
+    }
+
+    private void rebuild(ChunkEntity... chunks) {
+        subj.rebuild(() -> Arrays.stream(chunks)
+                .map(this::view)
+                .collect(Collectors.toList()));
+    }
+
+    private ChunkDTO dto(ChunkEntity chunk) {
+        return new ChunkDTO(chunk.getPath(), chunk.getId(), chunk.getCurrentRepetitionInterval(), chunk.getPath());
+    }
+
+    private List<UUID> ids(List<ChunkDTO> dtos) {
+        return dtos.stream().map(ChunkDTO::getId).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,379 @@
+package com.github.rkharisov.chunks.service;
+
+import com.github.rkharisov.chunks.hash.FileDigest;
+import com.github.rkharisov.chunks.metrics.IngestMetrics;
+import com.github.rkharisov.chunks.model.enums.ChangeKind;
+import com.github.rkharisov.chunks.model.projection.PathFingerprint;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+public class EventCoalescerTest extends AbstractTest {
+
+    private final ChunkService chunkService = mock(ChunkService.class);
+    private final WatchedRoots watchedRoots = mock(WatchedRoots.class);
+    private final EventJournal eventJournal = mock(EventJournal.class);
+    private final DueIndex dueIndex = mock(DueIndex.class);
+    private final AtomicLong seq = new AtomicLong();
+    private final StripedExecutor workers = new StripedExecutor("test-worker", 1, 1, false);
+    private final AtomicLong now = new AtomicLong();
+    private EventCoalescer subj;
+    private Path mapDir;
+
+    @Before
+    public void setUp() {
+        when(eventJournal.append(any(), any())).thenAnswer(invocation -> seq.incrementAndGet());
+        subj = new EventCoalescer();
+        ReflectionTestUtils.setField(subj, "chunkService", chunkService);
+        ReflectionTestUtils.setField(subj, "watchedRoots", watchedRoots);
+        ReflectionTestUtils.setField(subj, "eventJournal", eventJournal);
+        ReflectionTestUtils.setField(subj, "dueIndex", dueIndex);
+        ReflectionTestUtils.setField(subj, "ingestMetrics", mock(IngestMetrics.class));
+        ReflectionTestUtils.setField(subj, "workers", workers);
+        ReflectionTestUtils.setField(subj, "quietWindowMs", 500L);
+        ReflectionTestUtils.setField(subj, "maxDelayMs", 5000L);
+        ReflectionTestUtils.setField(subj, "renameWindowMs", 2000L);
+        ReflectionTestUtils.setField(subj, "clock", (LongSupplier) now::get);
+    }
+
+    @After
+    public void tearDown() throws IOException, InterruptedException {
+        workers.shutdown(1000);
+        if (mapDir == null) return;
+        deleteTree(mapDir);
+    }
+
+    @Test
+    public void flush_shouldMergeBurstIntoOneChangeAfterQuietWindow() throws IOException, InterruptedException {
+        Path file = createTmpFile();
+        FileDigest digest = digest(file);
+        doReturn(Optional.of(digest)).when(chunkService).digestIfChanged(file);
+        doReturn(Collections.emptySet()).when(chunkService).applyChanges(any(), any());
+
+        //редактор сохраняет карту удалением и созданием
+        subj.submit(ChangeKind.CREATED, file);
+        advance(100);
+        subj.submit(ChangeKind.DELETED, file);
+        advance(100);
+        subj.submit(ChangeKind.CREATED, file);
+        advance(400);
+        flush(false);
+
+        verify(chunkService, never()).applyChanges(any(), any());
+        assertEquals(1, subj.size());
+
+        advance(100);
+        flush(false);
+
+        verify(chunkService, times(1)).digestIfChanged(file);
+        verify(chunkService, times(1)).applyChanges(Collections.emptyList(), Collections.singletonList(digest));
+        verify(eventJournal).ack(file, 3L);
+        assertEquals(0, subj.size());
+    }
+
+    @Test
+    public void flush_shouldLeaveOnlyDeleteIfFileDeletedAfterCreate() throws IOException, InterruptedException {
+        Path file = createTmpFile();
+        doReturn(Collections.emptySet()).when(chunkService).applyChanges(any(), any());
+
+        subj.submit(ChangeKind.CREATED, file);
+        advance(100);
+        subj.submit(ChangeKind.DELETED, file);
+        //удаление ждет парного создания дольше обычной тишины
+        advance(500);
+        flush(false);
+
+        verify(chunkService, never()).applyChanges(any(), any());
+
+        advance(1500);
+        flush(false);
+
+        verify(chunkService, never()).digestIfChanged(any());
+        verify(chunkService).applyChanges(Collections.singletonList(file), Collections.emptyList());
+        verify(eventJournal).ack(file, 2L);
+    }
+
+    @Test
+    public void flush_shouldApplyAfterMaxDelayUnderConstantChurn() throws IOException, InterruptedException {
+        Path file = createTmpFile();
+        doReturn(Optional.of(digest(file))).when(chunkService).digestIfChanged(file);
+        doReturn(Collections.emptySet()).when(chunkService).applyChanges(any(), any());
+
+        //события приходят чаще окна тишины
+        for (int elapsed = 0; elapsed < 5000; elapsed += 100) {
+            subj.submit(ChangeKind.CREATED, file);
+            flush(false);
+            advance(100);
+        }
+        verify(chunkService, never()).applyChanges(any(), any());
+
+        subj.submit(ChangeKind.CREATED, file);
+        flush(false);
+
+        verify(chunkService, times(1)).applyChanges(eq(Collections.emptyList()), any());
+        assertEquals(0, subj.size());
+    }
+
+    @Test
+    public void isAppliedThrough_shouldIgnoreEventsAcceptedLater() throws IOException, InterruptedException {
+        Path file = createTmpFile();
+        Path later = createTmpFile();
+        doReturn(Collections.emptySet()).when(chunkService).applyChanges(any(), any());
+
+        subj.submit(ChangeKind.CREATED, file);
+        long mark = subj.getAccepted();
+        assertFalse(subj.isAppliedThrough(mark));
+
+        advance(400);
+        subj.submit(ChangeKind.CREATED, later);
+        //событие по тому же пути склеивается с принятым до отметки
+        subj.submit(ChangeKind.CREATED, file);
+        advance(100);
+        flush(false);
+
+        assertFalse(subj.isAppliedThrough(mark));
+
+        advance(500);
+        subj.submit(ChangeKind.CREATED, later);
+        flush(false);
+
+        assertTrue(subj.isAppliedThrough(mark));
+        assertFalse(subj.isAppliedThrough(subj.getAccepted()));
+        assertEquals(1, subj.size());
+    }
+
+    @Test
+    public void flush_shouldNotAckFilesThatFailedToRead() throws IOException, InterruptedException {
+        Path unreadable = createTmpFile();
+        Path changed = createTmpFile();
+        FileDigest digest = digest(changed);
+        doThrow(new IOException("занят")).when(chunkService).digestIfChanged(unreadable);
+        doReturn(Optional.of(digest)).when(chunkService).digestIfChanged(changed);
+        doReturn(Collections.emptySet()).when(chunkService).applyChanges(any(), any());
+
+        subj.submit(ChangeKind.CREATED, unreadable);
+        subj.submit(ChangeKind.CREATED, changed);
+        flush(true);
+
+        verify(chunkService).applyChanges(Collections.emptyList(), Collections.singletonList(digest));
+        verify(eventJournal).ack(changed, 2L);
+        verify(eventJournal, never()).ack(eq(unreadable), anyLong());
+    }
+
+    @Test
+    public void flush_shouldAckOnlyAppliedChangesAfterFallback() throws IOException, InterruptedException {
+        Path failedFile = createTmpFile();
+        Path appliedFile = createTmpFile();
+        Path failedDelete = createTmpFile().resolveSibling(randStr());
+        Path appliedDelete = createTmpFile().resolveSibling(randStr());
+        FileDigest failedDigest = digest(failedFile);
+        FileDigest appliedDigest = digest(appliedFile);
+        doReturn(Optional.of(failedDigest)).when(chunkService).digestIfChanged(failedFile);
+        doReturn(Optional.of(appliedDigest)).when(chunkService).digestIfChanged(appliedFile);
+        doThrow(new IllegalStateException("пачка")).when(chunkService).applyChanges(any(), any());
+        doThrow(new IllegalStateException("файл")).when(chunkService).apply(failedDigest);
+        doReturn(Optional.empty()).when(chunkService).apply(appliedDigest);
+        doThrow(new IllegalStateException("удаление")).when(chunkService).markInactive(failedDelete);
+
+        subj.submit(ChangeKind.CREATED, failedFile);
+        subj.submit(ChangeKind.CREATED, appliedFile);
+        subj.submit(ChangeKind.DELETED, failedDelete);
+        subj.submit(ChangeKind.DELETED, appliedDelete);
+        flush(true);
+
+        verify(chunkService).markInactive(appliedDelete);
+        verify(eventJournal).ack(appliedFile, 2L);
+        verify(eventJournal).ack(appliedDelete, 4L);
+        verify(eventJournal, never()).ack(eq(failedFile), anyLong());
+        verify(eventJournal, never()).ack(eq(failedDelete), anyLong());
+    }
+
+    @Test
+    public void flush_shouldDropQueuedDeleteOfRenamedFile() throws IOException, InterruptedException {
+        Path renamed = createTmpFile(XMIND_SUFFIX);
+        Path old = renamed.resolveSibling(randStr() + XMIND_SUFFIX);
+        FileDigest digest = digest(renamed);
+        doReturn(Optional.of(digest)).when(chunkService).digestIfChanged(renamed);
+        doReturn(Collections.singleton(old)).when(chunkService).applyChanges(Collections.emptyList(), Collections.singletonList(digest));
+
+        subj.submit(ChangeKind.DELETED, old);
+        subj.submit(ChangeKind.CREATED, renamed);
+        //создание готово, удаление еще ждет парного создания
+        advance(500);
+        flush(false);
+
+        verify(eventJournal).ack(renamed, 2L);
+        verify(eventJournal).ack(old, 1L);
+        assertEquals(0, subj.size());
+
+        advance(2000);
+        flush(false);
+
+        verify(chunkService, times(1)).applyChanges(any(), any());
+        verify(chunkService, never()).markInactive(old);
+    }
+
+    @Test
+    public void flush_shouldApplyQueuedDeleteIfCreatedFileIsNotRename() throws IOException, InterruptedException {
+        Path created = createTmpFile(XMIND_SUFFIX);
+        Path old = created.resolveSibling(randStr() + XMIND_SUFFIX);
+        FileDigest digest = digest(created);
+        doReturn(Optional.of(digest)).when(chunkService).digestIfChanged(created);
+        doReturn(Collections.emptySet()).when(chunkService).applyChanges(any(), any());
+
+        subj.submit(ChangeKind.DELETED, old);
+        subj.submit(ChangeKind.CREATED, created);
+        advance(500);
+        flush(false);
+
+        verify(eventJournal).ack(created, 2L);
+        verify(eventJournal, never()).ack(eq(old), anyLong());
+        assertEquals(1, subj.size());
+
+        advance(1500);
+        flush(false);
+
+        verify(chunkService).applyChanges(Collections.singletonList(old), Collections.emptyList());
+        verify(eventJournal).ack(old, 1L);
+        assertEquals(0, subj.size());
+    }
+
+    @Test
+    public void submitDir_shouldMoveDirWithSameFilesWithoutReadingThem() throws IOException, InterruptedException {
+        mapDir = Files.createTempDirectory("coalescer");
+        Path dir = Files.createDirectory(mapDir.resolve("new"));
+        Path file = Files.write(dir.resolve("a.xmind"), new byte[1]);
+        Path nested = Files.write(Files.createDirectory(dir.resolve("nested")).resolve("b.xmind"), new byte[2]);
+        Files.write(dir.resolve("notes.txt"), new byte[1]);
+        Path deleted = mapDir.resolve("old");
+        doReturn(stored(deleted, dir, 0, file, nested)).when(chunkService).getFingerprintsUnder(deleted);
+        doReturn(true).when(chunkService).moveDir(any(), any(), any());
+        subj.submit(ChangeKind.DELETED, deleted);
+
+        subj.submitDir(dir);
+        awaitWorkers();
+
+        verify(chunkService, times(1)).moveDir(deleted, dir, new HashSet<>(Arrays.asList(file.toString(), nested.toString())));
+        verify(chunkService, never()).digestIfChanged(any());
+        verify(chunkService, never()).digest(any());
+        verify(eventJournal).ack(deleted, 1L);
+        assertEquals(0, subj.size());
+    }
+
+    @Test
+    public void submitDir_shouldSubmitFilesIfFingerprintDiffers() throws IOException, InterruptedException {
+        mapDir = Files.createTempDirectory("coalescer");
+        Path dir = Files.createDirectory(mapDir.resolve("new"));
+        Path file = Files.write(dir.resolve("a.xmind"), new byte[1]);
+        Path deleted = mapDir.resolve("old");
+        //файл изменили после переноса
+        doReturn(stored(deleted, dir, 1, file)).when(chunkService).getFingerprintsUnder(deleted);
+        subj.submit(ChangeKind.DELETED, deleted);
+
+        subj.submitDir(dir);
+        awaitWorkers();
+
+        verify(chunkService, never()).moveDir(any(), any(), any());
+        verify(eventJournal, never()).ack(any(), anyLong());
+        //удаление применится своим порядком, а файлы нового каталога - как созданные
+        verify(eventJournal).append(ChangeKind.CREATED, file);
+        assertEquals(2, subj.size());
+    }
+
+    @Test
+    public void submitDir_shouldMoveIntoNestedDirAndSkipDeletesInsideIt() throws IOException, InterruptedException {
+        mapDir = Files.createTempDirectory("coalescer");
+        Path dir = Files.createDirectories(mapDir.resolve("a").resolve("b").resolve("new"));
+        Path nested = Files.write(Files.createDirectory(dir.resolve("nested")).resolve("c.xmind"), new byte[1]);
+        Path deleted = mapDir.resolve("old");
+        Path deletedInside = dir.resolve("gone.xmind");
+        doReturn(stored(deleted, dir, 0, nested)).when(chunkService).getFingerprintsUnder(deleted);
+        doReturn(true).when(chunkService).moveDir(any(), any(), any());
+        subj.submit(ChangeKind.DELETED, deletedInside);
+        subj.submit(ChangeKind.DELETED, deleted);
+
+        subj.submitDir(dir);
+        awaitWorkers();
+
+        verify(chunkService, never()).getFingerprintsUnder(deletedInside);
+        verify(chunkService).moveDir(deleted, dir, Collections.singleton(nested.toString()));
+        verify(eventJournal).ack(deleted, 2L);
+        assertEquals(1, subj.size());
+    }
+
+    @Test
+    public void submitDir_shouldNotQueryDatabaseForDeletedFilesAndDirsWithoutChunks() throws IOException, InterruptedException {
+        mapDir = Files.createTempDirectory("coalescer");
+        Path dir = Files.createDirectory(mapDir.resolve("new"));
+        Path file = Files.write(dir.resolve("a.xmind"), new byte[1]);
+        Path deletedFile = mapDir.resolve("gone.xmind");
+        Path deletedEmptyDir = mapDir.resolve("empty");
+        doReturn(true).when(dueIndex).isReady();
+        doReturn(false).when(dueIndex).hasPathsUnder(deletedEmptyDir.toString());
+        subj.submit(ChangeKind.DELETED, deletedFile);
+        subj.submit(ChangeKind.DELETED, deletedEmptyDir);
+
+        subj.submitDir(dir);
+        awaitWorkers();
+
+        verify(dueIndex, never()).hasPathsUnder(deletedFile.toString());
+        verify(chunkService, never()).getFingerprintsUnder(any());
+        verify(chunkService, never()).moveDir(any(), any(), any());
+        verify(eventJournal).append(ChangeKind.CREATED, file);
+        assertEquals(3, subj.size());
+    }
+
+    /**
+     * Чанки удаленного каталога с отпечатками файлов нового каталога
+     */
+    private Map<String, PathFingerprint> stored(Path deleted, Path dir, long sizeDelta, Path... files) throws IOException {
+        Map<String, PathFingerprint> stored = new HashMap<>();
+        for (Path file : files) {
+            String path = deleted.resolve(dir.relativize(file)).toString();
+            stored.put(path, stored(path, file, true, sizeDelta));
+        }
+        return stored;
+    }
+
+    private void advance(long millis) {
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    private FileDigest digest(Path path) {
+        return new FileDigest(path, null, null, null, Collections.emptyMap());
+    }
+
+    /**
+     * Выполнить сброс и дождаться применения поставленных пачек
+     */
+    private void flush(boolean force) throws InterruptedException {
+        ReflectionTestUtils.invokeMethod(subj, "flush", force);
+        awaitWorkers();
+    }
+
+    private void awaitWorkers() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (workers.size() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(0, workers.size());
+    }
+}
@@ -0,0 +1,119 @@
+package com.github.rkharisov.chunks.service;
+
+import com.github.rkharisov.chunks.model.enums.ChangeKind;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class EventJournalTest extends AbstractTest {
+
+    private Path dir;
+    private Path file;
+    private EventJournal subj;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("journal");
+        file = dir.resolve("events.journal");
+        subj = open();
+    }
+
+    @After
+    public void tearDown() throws IOException, InterruptedException {
+        subj.close();
+        deleteTree(dir);
+    }
+
+    @Test
+    public void open_shouldRestoreOnlyUnacknowledgedEvents() throws IOException, InterruptedException {
+        long first = subj.append(ChangeKind.CREATED, Paths.get("/maps/a.xmind"));
+        subj.append(ChangeKind.DELETED, Paths.get("/maps/b.xmind"));
+        long replaced = subj.append(ChangeKind.CREATED, Paths.get("/maps/c.xmind"));
+        subj.append(ChangeKind.DELETED, Paths.get("/maps/c.xmind"));
+        subj.ack(Paths.get("/maps/a.xmind"), first);
+        //событие, пришедшее после отметки, не снимается
+        subj.ack(Paths.get("/maps/c.xmind"), replaced);
+
+        reopen();
+
+        assertEquals(2, subj.getUnacknowledged().size());
+        assertEquals(ChangeKind.DELETED, subj.getUnacknowledged().get(Paths.get("/maps/b.xmind")));
+        assertEquals(ChangeKind.DELETED, subj.getUnacknowledged().get(Paths.get("/maps/c.xmind")));
+    }
+
+    @Test
+    public void open_shouldDropTornRecord() throws IOException, InterruptedException {
+        subj.append(ChangeKind.CREATED, Paths.get("/maps/a.xmind"));
+        subj.close();
+        long size = Files.size(file);
+        Files.write(file, new byte[]{0, 0, 0, 40, 1, 2}, StandardOpenOption.APPEND);
+        subj = open();
+
+        assertEquals(Collections.singleton(Paths.get("/maps/a.xmind")), subj.getUnacknowledged().keySet());
+        assertEquals(size, Files.size(file));
+        long next = subj.append(ChangeKind.CREATED, Paths.get("/maps/b.xmind"));
+
+        reopen();
+
+        assertTrue(next > 1);
+        assertEquals(2, subj.getUnacknowledged().size());
+    }
+
+    @Test
+    public void startScan_shouldResumeInterruptedScan() throws IOException, InterruptedException {
+        Path root = Paths.get("/maps");
+        assertTrue(subj.startScan(root).isEmpty());
+        subj.scanDirDone(root, root.resolve("done"));
+
+        reopen();
+
+        assertEquals(Collections.singleton(root.resolve("done")), subj.startScan(root));
+        subj.scanDone(root);
+
+        reopen();
+
+        assertTrue(subj.startScan(root).isEmpty());
+    }
+
+    @Test
+    public void compact_shouldKeepOnlyLiveRecords() throws IOException, InterruptedException {
+        ReflectionTestUtils.setField(subj, "compactBytes", 1024L);
+        for (int i = 0; i < 1000; i++) {
+            Path path = Paths.get("/maps/" + i + ".xmind");
+            subj.ack(path, subj.append(ChangeKind.CREATED, path));
+        }
+        subj.append(ChangeKind.DELETED, Paths.get("/maps/live.xmind"));
+        ReflectionTestUtils.invokeMethod(subj, "syncQuietly");
+
+        assertTrue(Files.size(file) < 1024);
+
+        reopen();
+
+        assertEquals(Collections.singleton(Paths.get("/maps/live.xmind")), subj.getUnacknowledged().keySet());
+    }
+
+    private void reopen() throws IOException, InterruptedException {
+        subj.close();
+        subj = open();
+    }
+
+    private EventJournal open() throws IOException {
+        EventJournal journal = new EventJournal();
+        ReflectionTestUtils.setField(journal, "enabled", true);
+        ReflectionTestUtils.setField(journal, "file", file.toString());
+        ReflectionTestUtils.setField(journal, "syncIntervalMs", 10_000L);
+        ReflectionTestUtils.setField(journal, "compactBytes", 4L * 1024 * 1024);
+        journal.open();
+        return journal;
+    }
+}
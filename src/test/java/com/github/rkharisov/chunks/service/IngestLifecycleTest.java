@@ -0,0 +1,80 @@
+package com.github.rkharisov.chunks.service;
+
+import com.github.rkharisov.chunks.model.enums.IngestState;
+import com.github.rkharisov.chunks.model.enums.WatchMode;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.*;
+
+public class IngestLifecycleTest {
+
+    private final WatchedRoots watchedRoots = mock(WatchedRoots.class);
+    private final EventCoalescer eventCoalescer = mock(EventCoalescer.class);
+    private final Reconciler reconciler = mock(Reconciler.class);
+    private final WatchedRoot scanned = new WatchedRoot(Paths.get("/maps/a"), WatchMode.WATCH, new TokenBucket(0, 1));
+    private final WatchedRoot polled = new WatchedRoot(Paths.get("/maps/b"), WatchMode.POLL, new TokenBucket(0, 1));
+    private IngestLifecycle subj;
+
+    @Before
+    public void setUp() {
+        when(watchedRoots.getRoots()).thenReturn(Arrays.asList(scanned, polled));
+        subj = new IngestLifecycle();
+        ReflectionTestUtils.setField(subj, "watchedRoots", watchedRoots);
+        ReflectionTestUtils.setField(subj, "eventCoalescer", eventCoalescer);
+        ReflectionTestUtils.setField(subj, "reconciler", reconciler);
+        when(eventCoalescer.isAppliedThrough(anyLong())).thenReturn(true);
+        when(reconciler.isDoneThrough(anyLong())).thenReturn(true);
+    }
+
+    @Test
+    public void getState_shouldWaitForAllRootsAndQueues() {
+        scanned.onScan(new ScanStats(scanned.getPath()));
+        assertEquals(IngestState.SCANNING, subj.getState());
+
+        scanned.onWatching();
+        //второй каталог еще не начал сканирование
+        assertEquals(IngestState.SCANNING, subj.getState());
+
+        polled.onFailed("недоступен");
+        when(reconciler.getRequested()).thenReturn(3L);
+        when(reconciler.isDoneThrough(3)).thenReturn(false);
+        assertEquals(IngestState.CATCHING_UP, subj.getState());
+
+        when(reconciler.isDoneThrough(3)).thenReturn(true);
+        assertEquals(IngestState.LIVE, subj.getState());
+    }
+
+    @Test
+    public void getState_shouldNotGoBackAfterLive() {
+        scanned.onWatching();
+        polled.onPolling();
+        assertEquals(IngestState.LIVE, subj.getState());
+
+        when(eventCoalescer.size()).thenReturn(100);
+        when(eventCoalescer.isAppliedThrough(anyLong())).thenReturn(false);
+        assertEquals(IngestState.LIVE, subj.getState());
+    }
+
+    @Test
+    public void getState_shouldGoLiveWhenBacklogOfScanIsAppliedDespiteNewEvents() {
+        scanned.onWatching();
+        polled.onPolling();
+        when(eventCoalescer.getAccepted()).thenReturn(10L);
+        when(eventCoalescer.size()).thenReturn(5);
+        when(eventCoalescer.isAppliedThrough(10)).thenReturn(false);
+        assertEquals(IngestState.CATCHING_UP, subj.getState());
+
+        //очередь не пустеет: события до окончания сканирования применены, но приходят новые
+        when(eventCoalescer.getAccepted()).thenReturn(20L);
+        when(eventCoalescer.isAppliedThrough(10)).thenReturn(true);
+        when(eventCoalescer.isAppliedThrough(20)).thenReturn(false);
+        assertEquals(IngestState.LIVE, subj.getState());
+    }
+}
@@ -0,0 +1,114 @@
+package com.github.rkharisov.chunks.service;
+
+import com.github.rkharisov.chunks.hash.FileDigest;
+import com.github.rkharisov.chunks.model.projection.PathFingerprint;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+public class ReconcilerTest extends AbstractTest {
+
+    private final ChunkService chunkService = mock(ChunkService.class);
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private Path mapDir;
+    private Reconciler subj;
+
+    @Before
+    public void setUp() throws IOException {
+        mapDir = Files.createTempDirectory("reconciler");
+        subj = new Reconciler();
+        ReflectionTestUtils.setField(subj, "chunkService", chunkService);
+        ReflectionTestUtils.setField(subj, "watchedRoots", mock(WatchedRoots.class));
+        ReflectionTestUtils.setField(subj, "batchSize", 200);
+        ReflectionTestUtils.setField(subj, "executor", executor);
+        when(chunkService.digest(any(), any())).thenAnswer(invocation ->
+                new FileDigest(invocation.getArgument(0), invocation.getArgument(1), null, null, Collections.emptyMap()));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        executor.shutdownNow();
+        deleteTree(mapDir);
+    }
+
+    @Test
+    public void reconcile_shouldApplyOnlyDifferenceWithDatabase() throws Exception {
+        Path dir = Files.createDirectory(mapDir.resolve("dir"));
+        Path added = Files.write(dir.resolve("added.xmind"), new byte[1]);
+        Path changed = Files.write(dir.resolve("changed.xmind"), new byte[1]);
+        Path unchanged = Files.write(dir.resolve("unchanged.xmind"), new byte[1]);
+        Files.write(dir.resolve("notes.txt"), new byte[1]);
+        Path vanished = dir.resolve("vanished.xmind");
+        Path vanishedBefore = dir.resolve("inactive.xmind");
+        Map<String, PathFingerprint> stored = new HashMap<>();
+        stored.put(changed.toString(), stored(changed, true, 1));
+        stored.put(unchanged.toString(), stored(unchanged, true, 0));
+        stored.put(vanished.toString(), new PathFingerprint(vanished.toString(), true, 1L, 1L, null));
+        stored.put(vanishedBefore.toString(), new PathFingerprint(vanishedBefore.toString(), false, 1L, 1L, null));
+        doReturn(stored).when(chunkService).getFingerprintsUnder(dir);
+
+        subj.reconcile(dir);
+        await();
+
+        verify(chunkService).applyChanges(Collections.singletonList(vanished), Collections.emptyList());
+        verify(chunkService).digest(added, fingerprint(added));
+        verify(chunkService).digest(changed, fingerprint(changed));
+        verify(chunkService, never()).digest(eq(unchanged), any());
+        verify(chunkService, times(2)).applyChanges(any(), any());
+    }
+
+    @Test
+    public void reconcile_shouldSkipDirsAlreadyScheduledWithAncestor() throws Exception {
+        Path parent = Files.createDirectory(mapDir.resolve("parent"));
+        Path nested = Files.createDirectories(parent.resolve("a").resolve("b"));
+        Path sibling = Files.createDirectory(mapDir.resolve("parent2"));
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        executor.execute(() -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        started.await();
+
+        subj.reconcile(parent);
+        subj.reconcile(parent);
+        subj.reconcile(nested);
+        subj.reconcile(sibling);
+
+        assertEquals(2, subj.getQueued());
+        release.countDown();
+        await();
+        verify(chunkService, times(1)).getFingerprintsUnder(parent);
+        verify(chunkService, never()).getFingerprintsUnder(nested);
+        verify(chunkService, times(1)).getFingerprintsUnder(sibling);
+    }
+
+    private void await() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (subj.getQueued() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(0, subj.getQueued());
+    }
+}
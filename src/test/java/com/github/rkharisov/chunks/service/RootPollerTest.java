@@ -0,0 +1,83 @@
+package com.github.rkharisov.chunks.service;
+
+import com.github.rkharisov.chunks.metrics.IngestMetrics;
+import com.github.rkharisov.chunks.model.enums.ChangeKind;
+import com.github.rkharisov.chunks.model.enums.RootState;
+import com.github.rkharisov.chunks.model.enums.WatchMode;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.*;
+
+public class RootPollerTest extends AbstractTest {
+
+    private static final long TIMEOUT = 5000;
+
+    private final EventCoalescer eventCoalescer = mock(EventCoalescer.class);
+    private Path mapDir;
+    private RootPoller subj;
+
+    @After
+    public void tearDown() throws IOException {
+        if (subj != null) subj.close();
+        if (mapDir == null) return;
+        deleteTree(mapDir);
+    }
+
+    @Test
+    public void poll_shouldSubmitCreatedModifiedAndDeletedMaps() throws Exception {
+        mapDir = Files.createTempDirectory("poller");
+        Path dir = Files.createDirectory(mapDir.resolve("dir"));
+        Path modified = Files.write(dir.resolve("modified.xmind"), new byte[1]);
+        Path deleted = Files.write(dir.resolve("deleted.xmind"), new byte[1]);
+        Path ignored = Files.write(dir.resolve("notes.txt"), new byte[1]);
+        WatchedRoot root = new WatchedRoot(mapDir, WatchMode.POLL, new TokenBucket(0, 1));
+        subj = new RootPoller(root, mock(ChunkService.class), mock(DirScanner.class), eventCoalescer,
+                mock(IngestMetrics.class), 50, new TokenBucket(0, 1));
+        new Thread(subj).start();
+        waitForState(root, RootState.POLLING);
+
+        Files.write(modified, new byte[2]);
+        Files.delete(deleted);
+        Files.write(ignored, new byte[2]);
+        Path created = Files.write(Files.createDirectory(mapDir.resolve("new")).resolve("created.xmind"), new byte[1]);
+
+        verify(eventCoalescer, timeout(TIMEOUT)).submit(ChangeKind.CREATED, modified);
+        verify(eventCoalescer, timeout(TIMEOUT)).submit(ChangeKind.DELETED, deleted);
+        verify(eventCoalescer, timeout(TIMEOUT)).submit(ChangeKind.CREATED, created);
+        verify(eventCoalescer, never()).submit(ChangeKind.CREATED, ignored);
+    }
+
+    @Test
+    public void poll_shouldSubmitDeletedDirOnce() throws Exception {
+        mapDir = Files.createTempDirectory("poller");
+        Path dir = Files.createDirectories(mapDir.resolve("maps").resolve("dir").resolve("nested"));
+        Path file = Files.write(dir.resolve("map.xmind"), new byte[1]);
+        WatchedRoot root = new WatchedRoot(mapDir.resolve("maps"), WatchMode.POLL, new TokenBucket(0, 1));
+        subj = new RootPoller(root, mock(ChunkService.class), mock(DirScanner.class), eventCoalescer,
+                mock(IngestMetrics.class), 50, new TokenBucket(0, 1));
+        new Thread(subj).start();
+        waitForState(root, RootState.POLLING);
+
+        //перенос за пределы наблюдаемого каталога одной операцией, опрос не застанет каталог наполовину удаленным
+        Files.move(dir.getParent(), mapDir.resolve("dir"));
+
+        verify(eventCoalescer, timeout(TIMEOUT)).submit(ChangeKind.DELETED, dir.getParent());
+        Thread.sleep(200);
+        verify(eventCoalescer, never()).submit(ChangeKind.DELETED, dir);
+        verify(eventCoalescer, never()).submit(ChangeKind.DELETED, file);
+    }
+
+    private static void waitForState(WatchedRoot root, RootState state) throws InterruptedException {
+        long until = System.currentTimeMillis() + TIMEOUT;
+        while (root.getState() != state && System.currentTimeMillis() < until) {
+            Thread.sleep(10);
+        }
+        assertEquals(state, root.getState());
+    }
+}
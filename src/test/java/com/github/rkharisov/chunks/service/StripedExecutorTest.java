@@ -0,0 +1,85 @@
+package com.github.rkharisov.chunks.service;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.*;
+
+public class StripedExecutorTest {
+
+    @Test
+    public void execute_shouldKeepOrderForOneKey() throws InterruptedException {
+        StripedExecutor subj = new StripedExecutor("test", 4, 4, false);
+        List<Integer> done = Collections.synchronizedList(new ArrayList<>());
+
+        for (int i = 0; i < 100; i++) {
+            int task = i;
+            subj.execute("dir", () -> done.add(task));
+        }
+        subj.shutdown(5000);
+
+        assertEquals(IntStream.range(0, 100).boxed().collect(Collectors.toList()), done);
+    }
+
+    @Test
+    public void execute_shouldNotBlockOtherKeys() throws InterruptedException {
+        StripedExecutor subj = new StripedExecutor("test", 2, 2, false);
+        CountDownLatch slow = new CountDownLatch(1);
+        CountDownLatch fast = new CountDownLatch(1);
+
+        //ключи 0 и 1 попадают в разные полосы
+        subj.execute(0, () -> {
+            try {
+                slow.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        subj.execute(1, fast::countDown);
+
+        assertTrue(fast.await(5, TimeUnit.SECONDS));
+        slow.countDown();
+        subj.shutdown(5000);
+        assertEquals(0, subj.size());
+    }
+
+    @Test
+    public void shutdown_shouldNotWaitForTasksRejectedByStoppedPool() throws InterruptedException {
+        StripedExecutor subj = new StripedExecutor("test", 1, 1, false);
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<Integer> done = Collections.synchronizedList(new ArrayList<>());
+        subj.execute("dir", () -> {
+            running.countDown();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        subj.execute("dir", () -> done.add(1));
+        subj.execute("dir", () -> done.add(2));
+        assertTrue(running.await(5, TimeUnit.SECONDS));
+
+        //первая задача не успела: пул остановлен, а две задачи остались в полосе
+        subj.shutdown(10);
+        release.countDown();
+        long started = System.nanoTime();
+        subj.shutdown(5000);
+
+        assertTrue(System.nanoTime() - started < TimeUnit.SECONDS.toNanos(1));
+        assertEquals(0, subj.size());
+        assertTrue(done.isEmpty());
+
+        subj.execute("dir", () -> done.add(3));
+        assertEquals(0, subj.size());
+        assertTrue(done.isEmpty());
+    }
+}
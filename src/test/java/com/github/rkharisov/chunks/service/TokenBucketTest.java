@@ -0,0 +1,60 @@
+package com.github.rkharisov.chunks.service;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class TokenBucketTest {
+
+    private static final long TOKEN_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final AtomicLong now = new AtomicLong();
+
+    @Test
+    public void acquire_shouldSpendBurstThenQueueWaiters() throws InterruptedException {
+        TokenBucket subj = new TokenBucket(100, 2, now::get);
+
+        assertEquals(0, subj.acquire());
+        assertEquals(0, subj.acquire());
+        //разрешения резервируются: каждый следующий ждет на одно разрешение дольше
+        assertEquals(TOKEN_NANOS, subj.acquire());
+        assertEquals(2 * TOKEN_NANOS, subj.acquire());
+    }
+
+    @Test
+    public void acquire_shouldRefillByElapsedTimeUpToBurst() throws InterruptedException {
+        TokenBucket subj = new TokenBucket(100, 2, now::get);
+        subj.acquire();
+        subj.acquire();
+        subj.acquire();
+
+        //за 30 мс долг в одно разрешение погашен и накоплено еще два
+        advance(30);
+        assertEquals(0, subj.acquire());
+        assertEquals(0, subj.acquire());
+        assertEquals(TOKEN_NANOS, subj.acquire());
+
+        //за долгую паузу накапливается не больше burst
+        advance(1000);
+        assertEquals(0, subj.acquire());
+        assertEquals(0, subj.acquire());
+        assertEquals(TOKEN_NANOS, subj.acquire());
+    }
+
+    @Test
+    public void acquire_shouldNotWaitIfUnlimited() throws InterruptedException {
+        TokenBucket subj = new TokenBucket(0, 1, now::get);
+
+        assertFalse(subj.isLimited());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(0, subj.acquire());
+        }
+    }
+
+    private void advance(long millis) {
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+}
@@ -0,0 +1,101 @@
+package com.github.rkharisov.chunks.service;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.read.ListAppender;
+import com.github.rkharisov.chunks.model.enums.WatchMode;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class WatchedRootsTest {
+
+    private static final String MAPS = File.separator + "maps";
+
+    private final Logger logger = (Logger) LoggerFactory.getLogger(WatchedRoots.class);
+    private final ListAppender<ILoggingEvent> appender = new ListAppender<>();
+    private final WatchedRoots subj = new WatchedRoots();
+
+    @Before
+    public void setUp() {
+        appender.start();
+        logger.addAppender(appender);
+        ReflectionTestUtils.setField(subj, "filesPerSecond", 0.0);
+        ReflectionTestUtils.setField(subj, "burst", 100);
+    }
+
+    @After
+    public void tearDown() {
+        logger.detachAppender(appender);
+        appender.stop();
+    }
+
+    @Test
+    public void init_shouldParseModePerRoot() {
+        init(dir("a"), " " + WatchedRoots.POLL_PREFIX + dir("b") + " ", "", dir("ab"));
+
+        List<WatchedRoot> roots = subj.getRoots();
+
+        assertEquals(Arrays.asList(path("a"), path("b"), path("ab")),
+                roots.stream().map(WatchedRoot::getPath).collect(Collectors.toList()));
+        assertEquals(Arrays.asList(WatchMode.WATCH, WatchMode.POLL, WatchMode.WATCH),
+                roots.stream().map(WatchedRoot::getMode).collect(Collectors.toList()));
+        assertTrue(warnings().isEmpty());
+    }
+
+    @Test
+    public void init_shouldSkipNestedAndDuplicateRootsWithWarning() {
+        Path nested = path("a").resolve("nested");
+        init(dir("a"), WatchedRoots.POLL_PREFIX + nested, MAPS, dir("a") + File.separator + "." + File.separator);
+
+        List<WatchedRoot> roots = subj.getRoots();
+
+        assertEquals(1, roots.size());
+        assertEquals(path("a"), roots.get(0).getPath());
+        assertEquals(WatchMode.WATCH, roots.get(0).getMode());
+        List<String> warnings = warnings();
+        assertEquals(3, warnings.size());
+        assertTrue(warnings.get(0).contains(nested.toString()));
+    }
+
+    @Test
+    public void rootOf_shouldMatchWholePathComponents() {
+        init(dir("a"), dir("ab"));
+
+        assertEquals(path("a"), subj.rootOf(path("a").resolve("map.xmind")).get().getPath());
+        assertEquals(path("ab"), subj.rootOf(path("ab").resolve("map.xmind")).get().getPath());
+        assertFalse(subj.rootOf(path("c").resolve("map.xmind")).isPresent());
+    }
+
+    private void init(String... mapDirs) {
+        ReflectionTestUtils.setField(subj, "mapDirs", mapDirs);
+        ReflectionTestUtils.invokeMethod(subj, "init");
+    }
+
+    private static String dir(String name) {
+        return MAPS + File.separator + name;
+    }
+
+    private static Path path(String name) {
+        return Paths.get(dir(name)).toAbsolutePath();
+    }
+
+    private List<String> warnings() {
+        return appender.list.stream()
+                .filter(event -> event.getLevel() == Level.WARN)
+                .map(ILoggingEvent::getFormattedMessage)
+                .collect(Collectors.toList());
+    }
+}
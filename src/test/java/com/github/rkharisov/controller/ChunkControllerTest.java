@@ -0,0 +1,189 @@
+package com.github.rkharisov.controller;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.rkharisov.chunks.model.entity.ChunkEntity;
+import com.github.rkharisov.chunks.model.enums.IngestState;
+import com.github.rkharisov.chunks.model.projection.ChunkView;
+import com.github.rkharisov.chunks.repository.ChunkRepository;
+import com.github.rkharisov.chunks.service.AbstractTest;
+import com.github.rkharisov.chunks.service.ActivityService;
+import com.github.rkharisov.chunks.service.BulkCommandService;
+import com.github.rkharisov.chunks.service.ChunkService;
+import com.github.rkharisov.chunks.service.DueIndex;
+import com.github.rkharisov.chunks.service.IngestLifecycle;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+
+public class ChunkControllerTest extends AbstractTest {
+
+    private final ChunkRepository chunkRepository = mock(ChunkRepository.class);
+    private final ChunkService chunkService = mock(ChunkService.class);
+    private final IngestLifecycle ingestLifecycle = mock(IngestLifecycle.class);
+    private final DueIndex dueIndex = new DueIndex();
+    private MockMvc mockMvc;
+
+    @Before
+    public void setUp() {
+        ActivityService activityService = new ActivityService();
+        ReflectionTestUtils.setField(activityService, "dueIndex", dueIndex);
+        ReflectionTestUtils.setField(activityService, "chunkService", chunkService);
+        ReflectionTestUtils.setField(activityService, "chunkRepository", chunkRepository);
+        ReflectionTestUtils.setField(activityService, "objectMapper", new ObjectMapper());
+        ReflectionTestUtils.setField(activityService, "maxPageSize", 1000);
+        ChunkController controller = new ChunkController();
+        ReflectionTestUtils.setField(controller, "activityService", activityService);
+        ReflectionTestUtils.setField(controller, "chunkService", chunkService);
+        ReflectionTestUtils.setField(controller, "ingestLifecycle", ingestLifecycle);
+        BulkCommandService bulkCommandService = new BulkCommandService();
+        ReflectionTestUtils.setField(bulkCommandService, "chunkService", chunkService);
+        ReflectionTestUtils.setField(bulkCommandService, "objectMapper", new ObjectMapper());
+        ReflectionTestUtils.setField(bulkCommandService, "maxCommands", 2);
+        ReflectionTestUtils.setField(controller, "bulkCommandService", bulkCommandService);
+        when(ingestLifecycle.getState()).thenReturn(IngestState.LIVE);
+        mockMvc = MockMvcBuilders.standaloneSetup(controller).build();
+    }
+
+    @Test
+    public void getActivitiesForToday_shouldAnswerNotModifiedToMatchingWeakAndWildcardTags() throws Exception {
+        dueIndex.rebuild(() -> Collections.singletonList(view(chunkEntity())));
+        String eTag = mockMvc.perform(get("/"))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+        assertNotNull(eTag);
+
+        for (String ifNoneMatch : Arrays.asList(eTag, "W/" + eTag, "*", "\"other\", " + eTag)) {
+            mockMvc.perform(get("/").header(HttpHeaders.IF_NONE_MATCH, ifNoneMatch))
+                    .andExpect(status().isNotModified())
+                    .andExpect(header().string(HttpHeaders.ETAG, eTag))
+                    .andExpect(header().string(ChunkController.INGEST_STATE_HEADER, IngestState.LIVE.name()));
+        }
+    }
+
+    @Test
+    public void getActivitiesForToday_shouldAnswerBodyToStaleTag() throws Exception {
+        dueIndex.rebuild(() -> Collections.singletonList(view(chunkEntity())));
+        String stale = mockMvc.perform(get("/")).andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+        //новая версия индекса меняет ETag
+        dueIndex.rebuild(Collections::emptyList);
+
+        String eTag = mockMvc.perform(get("/").header(HttpHeaders.IF_NONE_MATCH, stale))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$." + DueIndex.REPEAT + ".length()").value(0))
+                .andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+        assertNotNull(eTag);
+        assertNotEquals(stale, eTag);
+    }
+
+    @Test
+    public void getActivitiesForToday_shouldNotSendETagBeforeIndexIsReady() throws Exception {
+        doReturn(Collections.emptyMap()).when(chunkService).queryActivities(any());
+
+        mockMvc.perform(get("/").header(HttpHeaders.IF_NONE_MATCH, "*"))
+                .andExpect(status().isOk())
+                .andExpect(header().doesNotExist(HttpHeaders.ETAG));
+
+        verify(chunkService).queryActivities(any());
+    }
+
+    @Test
+    public void getRepeatPage_shouldReturnItemsAndNextCursor() throws Exception {
+        ChunkView first = view(chunkEntity().setNextRepeatDate(LocalDate.now().minusDays(1)));
+        ChunkView second = view(chunkEntity().setNextRepeatDate(LocalDate.now()));
+        doReturn(Arrays.asList(first, second)).when(chunkRepository).findDueFirstPage(any(), eq(PageRequest.of(0, 2)));
+
+        mockMvc.perform(get("/repeat").param("size", "2"))
+                .andExpect(status().isOk())
+                .andExpect(header().string(ChunkController.INGEST_STATE_HEADER, IngestState.LIVE.name()))
+                .andExpect(jsonPath("$.items.length()").value(2))
+                .andExpect(jsonPath("$.items[0].id").value(first.getId().toString()))
+                .andExpect(jsonPath("$.items[0].name").value(first.getName()))
+                .andExpect(jsonPath("$.items[1].id").value(second.getId().toString()))
+                .andExpect(jsonPath("$.next").exists());
+    }
+
+    @Test
+    public void getRepeatPage_shouldAnswerBadRequestToMalformedCursor() throws Exception {
+        mockMvc.perform(get("/repeat").param("cursor", "%%%"))
+                .andExpect(status().isBadRequest());
+
+        verify(chunkRepository, never()).findDuePageAfter(any(), any(), any(), any());
+    }
+
+    @Test
+    public void streamActivitiesForToday_shouldStreamRepeatAndMutatedArrays() throws Exception {
+        ChunkEntity due = chunkEntity().setNextRepeatDate(LocalDate.now()).setMutated(false);
+        ChunkEntity mutated = chunkEntity().setNextRepeatDate(LocalDate.now().plusDays(3)).setMutated(true);
+        doAnswer(invocation -> Arrays.asList(due, mutated).stream().map(this::view))
+                .when(chunkService).getActivityViews(any());
+
+        MvcResult started = mockMvc.perform(get("/stream"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        mockMvc.perform(asyncDispatch(started))
+                .andExpect(status().isOk())
+                .andExpect(header().string(ChunkController.INGEST_STATE_HEADER, IngestState.LIVE.name()))
+                .andExpect(jsonPath("$." + DueIndex.REPEAT + ".length()").value(1))
+                .andExpect(jsonPath("$." + DueIndex.REPEAT + "[0].id").value(due.getId().toString()))
+                .andExpect(jsonPath("$." + DueIndex.REPEAT + "[0].path").value(due.getPath()))
+                .andExpect(jsonPath("$." + DueIndex.MUTATED + ".length()").value(1))
+                .andExpect(jsonPath("$." + DueIndex.MUTATED + "[0].id").value(mutated.getId().toString()));
+    }
+
+    @Test
+    public void streamActivitiesForToday_shouldWriteEmptyArraysIfNothingIsDue() throws Exception {
+        doAnswer(invocation -> Collections.<ChunkView>emptyList().stream()).when(chunkService).getActivityViews(any());
+
+        MvcResult started = mockMvc.perform(get("/stream"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        mockMvc.perform(asyncDispatch(started))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$." + DueIndex.REPEAT + ".length()").value(0))
+                .andExpect(jsonPath("$." + DueIndex.MUTATED + ".length()").value(0));
+    }
+
+    @Test
+    public void bulk_shouldAnswerBadRequestToBatchLargerThanMaxCommands() throws Exception {
+        String command = "{\"op\": \"DROP\", \"id\": \"" + uuid() + "\"}";
+
+        mockMvc.perform(post("/bulk").contentType(MediaType.APPLICATION_JSON)
+                .content("[" + command + ", " + command + ", " + command + "]"))
+                .andExpect(status().isBadRequest());
+
+        verify(chunkService, never()).applyBulk(anyList());
+    }
+
+    @Test
+    public void bulk_shouldAnswerBadRequestToMalformedJson() throws Exception {
+        mockMvc.perform(post("/bulk").contentType(MediaType.APPLICATION_JSON).content("[{\"op\": \"DROP\","))
+                .andExpect(status().isBadRequest());
+        mockMvc.perform(post("/bulk").contentType(MediaType.APPLICATION_JSON).content("{\"op\": \"DROP\"}"))
+                .andExpect(status().isBadRequest());
+
+        verify(chunkService, never()).applyBulk(anyList());
+    }
+}